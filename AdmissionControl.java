@@ -0,0 +1,94 @@
+/**
+ * Admisión de las consultas pesadas de un servidor de procesamiento. Cada consulta reserva una
+ * plaza y la memoria de trabajo que se estima que va a necesitar; si no caben, espera un tiempo
+ * acotado y, si siguen sin caber, se rechaza para que el coordinador pruebe otra réplica. Así un
+ * pico de consultas alarga la cola o se rechaza en lugar de agotar la memoria del servidor.
+ *
+ * <p>Una consulta que por sí sola supera el presupuesto se admite cuando no hay ninguna otra en
+ * curso: de otro modo nunca podría atenderse.
+ */
+public class AdmissionControl {
+    /** Peso de la última consulta en la media de duraciones con la que se calcula Retry-After. */
+    private static final double DURATION_WEIGHT = 0.2;
+
+    private final int maxConcurrent;
+    private final long memoryBudget;
+    private final Metrics metrics;
+    private int running;
+    private long reserved;
+    private double meanMillis = 1000;
+
+    public AdmissionControl(int maxConcurrent, long memoryBudget, Metrics metrics) {
+        this.maxConcurrent = maxConcurrent;
+        this.memoryBudget = memoryBudget;
+        this.metrics = metrics;
+        metrics.gauge("admission_running", this::running);
+        metrics.gauge("admission_reserved_bytes", this::reserved);
+        metrics.gauge("admission_budget_bytes", () -> memoryBudget);
+    }
+
+    /** Plaza de una consulta admitida; al cerrarla se libera su memoria reservada. */
+    public class Permit implements AutoCloseable {
+        private final long bytes;
+        private final long start = System.nanoTime();
+        private boolean closed;
+
+        private Permit(long bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public void close() {
+            synchronized (AdmissionControl.this) {
+                if (closed) return;
+                closed = true;
+                running--;
+                reserved -= bytes;
+                double millis = (System.nanoTime() - start) / 1e6;
+                meanMillis += DURATION_WEIGHT * (millis - meanMillis);
+                AdmissionControl.this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Admite una consulta que necesita {@code bytes} de memoria, esperando como mucho
+     * {@code waitMillis} a que haya sitio.
+     *
+     * @return la plaza, que hay que cerrar al terminar, o null si no se admite
+     */
+    public synchronized Permit tryAcquire(long bytes, long waitMillis) throws InterruptedException {
+        long start = System.nanoTime();
+        long waitUntil = start + waitMillis * 1_000_000;
+        while (!fits(bytes)) {
+            long remaining = waitUntil - System.nanoTime();
+            if (remaining <= 0) {
+                metrics.increment(Metrics.series("admission_rejected_total", "reason",
+                        running >= maxConcurrent ? "concurrency" : "memory"));
+                return null;
+            }
+            wait(Math.max(1, remaining / 1_000_000));
+        }
+        running++;
+        reserved += bytes;
+        metrics.time("admission_wait_seconds", start);
+        return new Permit(bytes);
+    }
+
+    private boolean fits(long bytes) {
+        return running == 0 || running < maxConcurrent && reserved + bytes <= memoryBudget;
+    }
+
+    /** Segundos que conviene esperar antes de reintentar: lo que suele tardar una consulta. */
+    public synchronized long retryAfterSeconds() {
+        return Math.max(1, (long) Math.ceil(meanMillis / 1000));
+    }
+
+    private synchronized long running() {
+        return running;
+    }
+
+    private synchronized long reserved() {
+        return reserved;
+    }
+}
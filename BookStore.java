@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Libros asignados a un servidor. Cada libro se tokeniza la primera vez que se necesita: se
+ * lee el texto mapeado en memoria, se escribe un archivo compacto de tokens y se mapea ese
+ * archivo, de modo que en el heap solo queda el diccionario de palabras. Los tokens y los
+ * conjuntos de n-gramas se conservan en una {@link IndexSnapshot} y se reutilizan al reiniciar
+ * mientras el texto de origen no cambie. Los conjuntos se leen y se guardan con el CRC32 del texto
+ * del que salen los tokens cargados, no con el del texto actual.
+ */
+public class BookStore {
+    private static final int DECODE_CHUNK = 1 << 16;
+
+    private final List<Path> paths;
+    private final IndexSnapshot snapshot;
+    private final WordDictionary dictionary;
+    private final Metrics metrics;
+    private final AtomicReferenceArray<TokenizedBook> books;
+    /** CRC32 del texto de cada libro cargado; se fija antes de publicar el libro. */
+    private final AtomicLongArray checksums;
+
+    /**
+     * @param dictionary diccionario del servidor, ya cargado de la instantánea; se comparte entre
+     *                   las asignaciones sucesivas para que los tokens guardados sigan valiendo
+     */
+    public BookStore(List<Path> paths, IndexSnapshot snapshot, WordDictionary dictionary, Metrics metrics) {
+        this.paths = paths;
+        this.snapshot = snapshot;
+        this.dictionary = dictionary;
+        this.metrics = metrics;
+        this.books = new AtomicReferenceArray<>(paths.size());
+        this.checksums = new AtomicLongArray(paths.size());
+    }
+
+    public int size() {
+        return books.length();
+    }
+
+    public WordDictionary dictionary() {
+        return dictionary;
+    }
+
+    /** Tokens de los libros cargados hasta ahora. */
+    public long loadedTokens() {
+        long tokens = 0;
+        for (int bookId = 0; bookId < books.length(); bookId++) {
+            TokenizedBook book = books.get(bookId);
+            if (book != null) tokens += book.tokenCount();
+        }
+        return tokens;
+    }
+
+    /**
+     * Toma el libro ya tokenizado de otro almacén, si lo tiene cargado; se usa al pasar a una
+     * asignación nueva para no volver a leer los libros que no han cambiado.
+     */
+    public void reuse(int bookId, BookStore from, int fromId) {
+        TokenizedBook book = from.books.get(fromId);
+        if (book == null) return;
+        synchronized (dictionary) {
+            if (books.get(bookId) != null) return;
+            checksums.set(bookId, from.checksums.get(fromId));
+            books.set(bookId, book);
+        }
+    }
+
+    /** Tamaño del texto original, para estimar el trabajo antes de tokenizar. */
+    public long textSize(int bookId) {
+        try {
+            return Files.size(paths.get(bookId));
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Devuelve el libro tokenizado. La tokenización se serializa porque alimenta el diccionario
+     * compartido; una vez cargado, el acceso no toma el lock.
+     */
+    public TokenizedBook get(int bookId) {
+        TokenizedBook book = books.get(bookId);
+        if (book != null) return book;
+
+        synchronized (dictionary) {
+            if (books.get(bookId) != null) return books.get(bookId);
+            try {
+                book = load(bookId);
+            } catch (IOException e) {
+                Log.error("Error leyendo libro " + paths.get(bookId).getFileName() + ": " + e.getMessage());
+                book = TokenizedBook.tokenize("", dictionary);
+                checksums.set(bookId, -1);
+            }
+            books.set(bookId, book);
+            return book;
+        }
+    }
+
+    /**
+     * Conjunto de n-gramas del libro. Los de los tamaños que se cachean ({@link Shard#cached}) se
+     * leen de la instantánea si existen; si no, se calculan y se guardan para el siguiente
+     * arranque. Los demás se calculan para la consulta y no se guardan.
+     */
+    public NGramSet ngrams(int bookId, int nWords) {
+        TokenizedBook book = get(bookId);
+        long start = System.nanoTime();
+        if (!Shard.cached(nWords)) {
+            NGramSet set = NGramSet.of(book, nWords, dictionary);
+            metrics.phase("extract", start);
+            return set;
+        }
+        Path file = ngramFile(bookId, nWords);
+        NGramSet saved = mapSaved(file);
+        if (saved != null) {
+            metrics.phase("load", start);
+            return saved;
+        }
+        NGramSet set = NGramSet.of(book, nWords, dictionary);
+        metrics.phase("extract", start);
+        return save(set, file);
+    }
+
+    /**
+     * Conjuntos de los tamaños de {@code minWords} a {@code maxWords}, en ese orden. Los que no
+     * están en la instantánea se calculan juntos con una sola pasada por el libro, y se guardan
+     * los de los tamaños que se cachean.
+     */
+    public NGramSet[] ngrams(int bookId, int minWords, int maxWords) {
+        TokenizedBook book = get(bookId);
+        NGramSet[] sets = new NGramSet[maxWords - minWords + 1];
+        long start = System.nanoTime();
+        int first = -1;
+        int last = -1;
+        for (int n = minWords; n <= maxWords; n++) {
+            if (Shard.cached(n)) sets[n - minWords] = mapSaved(ngramFile(bookId, n));
+            if (sets[n - minWords] != null) continue;
+            if (first < 0) first = n;
+            last = n;
+        }
+        if (first < 0) {
+            metrics.phase("load", start);
+            return sets;
+        }
+        NGramSet[] computed = NGramSet.ofRange(book, first, last, dictionary);
+        metrics.phase("extract", start);
+        for (int n = first; n <= last; n++) {
+            if (sets[n - minWords] != null) continue;
+            NGramSet set = computed[n - first];
+            sets[n - minWords] = Shard.cached(n) ? save(set, ngramFile(bookId, n)) : set;
+        }
+        return sets;
+    }
+
+    /**
+     * Archivo de los n-gramas del libro ya cargado, con el CRC de sus tokens; null si el libro no
+     * se pudo leer y sus tokens no corresponden a ningún texto.
+     */
+    private Path ngramFile(int bookId, int nWords) {
+        long crc = checksums.get(bookId);
+        return crc < 0 ? null : snapshot.ngramFile(paths.get(bookId).getFileName().toString(), crc, nWords);
+    }
+
+    /** Conjunto guardado en la instantánea, o null si no está o no se puede leer. */
+    private NGramSet mapSaved(Path file) {
+        if (file == null || !Files.exists(file)) return null;
+        try {
+            return NGramSet.map(file);
+        } catch (IOException e) {
+            Log.warn("No se pudieron leer los n-gramas de " + file.getFileName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** Guarda el conjunto y devuelve su copia mapeada; si falla, el conjunto en memoria. */
+    private NGramSet save(NGramSet set, Path file) {
+        if (file == null) return set;
+        try {
+            set.writeTo(file);
+            NGramSet mapped = NGramSet.map(file);
+            if (mapped != null) return mapped;
+        } catch (IOException e) {
+            Log.error("Error guardando n-gramas de " + file.getFileName() + ": " + e.getMessage());
+        }
+        return set;
+    }
+
+    /**
+     * Indica si la instantánea tiene los conjuntos de {@code nWords} palabras de todos los libros.
+     * Los de un libro aún sin cargar no se pueden buscar: se cuentan como que faltan.
+     */
+    public boolean hasNGrams(int nWords) {
+        for (int bookId = 0; bookId < paths.size(); bookId++) {
+            if (books.get(bookId) == null) return false;
+            Path file = ngramFile(bookId, nWords);
+            if (file == null || !Files.exists(file)) return false;
+        }
+        return !paths.isEmpty();
+    }
+
+    /** Carga los tokens del libro y fija el CRC del texto del que salen. */
+    private TokenizedBook load(int bookId) throws IOException {
+        Path path = paths.get(bookId);
+        String bookName = path.getFileName().toString();
+        long start = System.nanoTime();
+        long current = snapshot.currentChecksum(path, dictionary);
+        if (current >= 0) {
+            TokenizedBook book = TokenizedBook.map(snapshot.tokenFile(bookName));
+            checksums.set(bookId, current);
+            metrics.phase("load", start);
+            return book;
+        }
+
+        // Primero se invalida: si el proceso se interrumpe, el libro se regenera en el próximo arranque
+        snapshot.invalidate(bookName);
+        TokenizedBook.Tokenizer tokenizer = new TokenizedBook.Tokenizer(dictionary);
+        long crc;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            crc = IndexSnapshot.checksum(bytes);
+            decode(bytes, tokenizer);
+        }
+
+        Path tokenFile = snapshot.tokenFile(bookName);
+        tokenizer.finish().writeTo(tokenFile);
+        snapshot.saveDictionary(dictionary);
+        snapshot.markCurrent(path, crc, dictionary);
+        metrics.phase("tokenize", start);
+        TokenizedBook book = TokenizedBook.map(tokenFile);
+        checksums.set(bookId, crc);
+        return book;
+    }
+
+    /** Decodifica UTF-8 por fragmentos de tamaño fijo; las secuencias inválidas se reemplazan. */
+    static void decode(ByteBuffer bytes, TokenizedBook.Tokenizer tokenizer) {
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CharBuffer chunk = CharBuffer.allocate(DECODE_CHUNK);
+        while (true) {
+            CoderResult result = decoder.decode(bytes, chunk, true);
+            chunk.flip();
+            tokenizer.accept(chunk);
+            chunk.compact();
+            if (result.isUnderflow()) break;
+        }
+        decoder.flush(chunk);
+        chunk.flip();
+        tokenizer.accept(chunk);
+    }
+}
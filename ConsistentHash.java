@@ -0,0 +1,155 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Anillo de hash consistente con nodos virtuales. Cada libro pertenece al primer punto del
+ * anillo que sigue a su hash, de modo que al entrar o salir un servidor solo cambian de dueño
+ * los libros de los tramos afectados. Todos los servidores calculan el mismo anillo a partir de
+ * la misma lista de miembros.
+ * <p>
+ * {@link #assign} añade un límite de carga: el trabajo de un libro crece con su tamaño y con el
+ * número de libros con los que se compara, así que un reparto solo por número de libros deja
+ * servidores mucho más cargados que otros.
+ */
+public class ConsistentHash {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final long[] points;
+    private final String[] owners;
+
+    public ConsistentHash(Collection<String> members) {
+        int size = members.size() * VIRTUAL_NODES;
+        long[] keys = new long[size];
+        String[] names = new String[size];
+        int i = 0;
+        for (String member : members) {
+            for (int replica = 0; replica < VIRTUAL_NODES; replica++) {
+                keys[i] = hash(member + "#" + replica);
+                names[i++] = member;
+            }
+        }
+
+        // Orden de los puntos por hash, con los dueños en paralelo
+        Integer[] order = new Integer[size];
+        for (int k = 0; k < size; k++) {
+            order[k] = k;
+        }
+        Arrays.sort(order, (a, b) -> keys[a] != keys[b] ? Long.compare(keys[a], keys[b]) : names[a].compareTo(names[b]));
+        points = new long[size];
+        owners = new String[size];
+        for (int k = 0; k < size; k++) {
+            points[k] = keys[order[k]];
+            owners[k] = names[order[k]];
+        }
+    }
+
+    /** Miembro dueño de {@code key}, o null si el anillo está vacío. */
+    public String ownerOf(String key) {
+        if (points.length == 0) return null;
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * Reparto con carga acotada: cada libro va al primer miembro del anillo, a partir de su hash,
+     * cuya carga no supere en más de {@code slack} la de un reparto perfecto; si ninguno cabe, al
+     * que quede menos cargado. Los libros se colocan de mayor a menor, así que los pequeños
+     * rellenan los huecos. La carga estimada de un servidor es {@link #work}.
+     *
+     * @param keys    nombres de los libros
+     * @param weights trabajo estimado de cada libro (proporcional a sus tokens)
+     * @return dueño de cada libro, en el mismo orden que {@code keys}
+     */
+    public String[] assign(List<String> keys, long[] weights, double slack) {
+        String[] assigned = new String[keys.size()];
+        if (points.length == 0) return assigned;
+
+        Set<String> members = new HashSet<>(Arrays.asList(owners));
+        double total = 0;
+        double squares = 0;
+        for (long weight : weights) {
+            total += weight;
+            squares += (double) weight * weight;
+        }
+        double mean = Math.max(1, total / Math.max(1, weights.length));
+        double share = total / members.size();
+        double capacity = (1 + slack) * (share + (share * share - squares / members.size()) / (2 * mean));
+
+        Integer[] order = new Integer[keys.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> weights[a] != weights[b] ? Long.compare(weights[b], weights[a]) : keys.get(a).compareTo(keys.get(b)));
+
+        Map<String, double[]> loads = new HashMap<>();
+        for (String member : members) {
+            loads.put(member, new double[2]);
+        }
+        for (int book : order) {
+            int start = Arrays.binarySearch(points, hash(keys.get(book)));
+            if (start < 0) {
+                start = -start - 1;
+            }
+            String chosen = null;
+            String lightest = null;
+            double lightestLoad = Double.MAX_VALUE;
+            Set<String> seen = new HashSet<>();
+            for (int step = 0; step < points.length && seen.size() < members.size(); step++) {
+                String member = owners[(start + step) % points.length];
+                if (!seen.add(member)) continue;
+                double[] load = loads.get(member);
+                double after = load[1] + weights[book] + weights[book] * load[0] / mean;
+                if (after <= capacity) {
+                    chosen = member;
+                    break;
+                }
+                if (after < lightestLoad) {
+                    lightest = member;
+                    lightestLoad = after;
+                }
+            }
+            if (chosen == null) {
+                chosen = lightest;
+            }
+            double[] load = loads.get(chosen);
+            load[1] += weights[book] + weights[book] * load[0] / mean;
+            load[0] += weights[book];
+            assigned[book] = chosen;
+        }
+        return assigned;
+    }
+
+    /**
+     * Trabajo estimado de un conjunto de libros: el total de tokens (extraer y ordenar n-gramas)
+     * más la suma de productos por pares dividida por el tamaño medio de libro (cruzar sus
+     * conjuntos y emitir coincidencias). Así ambos términos se miden en tokens.
+     */
+    public static double work(long[] weights, double meanWeight) {
+        double total = 0;
+        double squares = 0;
+        for (long weight : weights) {
+            total += weight;
+            squares += (double) weight * weight;
+        }
+        return total + (total * total - squares) / (2 * Math.max(1, meanWeight));
+    }
+
+    /** FNV-1a de 64 bits sobre los bytes UTF-8, con el finalizador de {@link WordDictionary#mix}. */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return WordDictionary.mix(hash);
+    }
+}
@@ -5,9 +5,15 @@ import java.util.concurrent.*;
 public class ConsoleApp {
     private static final Scanner scanner = new Scanner(System.in);
     private static Process webServerProcess;
-    private static Process[] processingServerProcesses = new Process[3];
+    private static final int PROCESSING_SERVERS = processingServers();
+    private static Process[] processingServerProcesses = new Process[PROCESSING_SERVERS];
     private static boolean serversRunning = false;
     
+    /** Servidores de procesamiento que se arrancan: PROCESSING_SERVERS o, por defecto, 4 (dos grupos de dos réplicas). */
+    private static int processingServers() {
+        return Params.envInt("PROCESSING_SERVERS", 4);
+    }
+    
     public static void main(String[] args) {
         System.out.println("    SISTEMA DISTRIBUIDO DE BÚSQUEDA DE SECUENCIAS IDENTICAS DE N PALABRAS ");
         System.out.println();
@@ -63,10 +69,13 @@ public class ConsoleApp {
             System.out.println("Compilando código fuente...");
             compileJavaFiles();
             
-            // Iniciar los 3 servidores 
-            for (int i = 1; i <= 3; i++) {
-                ProcessBuilder pb = new ProcessBuilder("java", "ProcessingServer", String.valueOf(i));
+            // Iniciar los servidores de procesamiento; se registran solos en el servidor web
+            for (int i = 1; i <= PROCESSING_SERVERS; i++) {
+                int port = 8080 + i;
+                ProcessBuilder pb = new ProcessBuilder("java", "ProcessingServer", String.valueOf(i), String.valueOf(port));
                 pb.directory(new File("."));
+                pb.environment().put("COORDINATOR_URL", "http://localhost:8080");
+                pb.environment().put("ADVERTISED_URL", "http://localhost:" + port);
                 processingServerProcesses[i-1] = pb.start();
                 System.out.println("- Servidor de procesamiento " + i + " iniciado (puerto " + (8080 + i) + ")");
                 Thread.sleep(2000); // Esperar un poco entre servidores
@@ -128,12 +137,12 @@ public class ConsoleApp {
         System.out.println("  - Función: Interfaz web y coordinación");
         System.out.println();
         System.out.println("Servidores de Procesamiento:");
-        System.out.println("  - Servidor 1: Puerto 8081 (procesa 1/3 de los libros)");
-        System.out.println("  - Servidor 2: Puerto 8082 (procesa 1/3 de los libros)");
-        System.out.println("  - Servidor 3: Puerto 8083 (procesa 1/3 de los libros)");
+        for (int i = 1; i <= PROCESSING_SERVERS; i++) {
+            System.out.println("  - Servidor " + i + ": Puerto " + (8080 + i));
+        }
         System.out.println();
-        System.out.println("Todos los servidores trabajan en paralelo para");
-        System.out.println("distribuir la carga de procesamiento de texto.");
+        System.out.println("Los servidores se agrupan en réplicas con los mismos libros;");
+        System.out.println("los grupos trabajan en paralelo y se reparten los libros.");
     }
     
     private static void stopServers() {
@@ -159,7 +168,7 @@ public class ConsoleApp {
         }
         
         // Detener servidores de procesamiento
-        for (int i = 0; i < 3; i++) {
+        for (int i = 0; i < PROCESSING_SERVERS; i++) {
             if (processingServerProcesses[i] != null && processingServerProcesses[i].isAlive()) {
                 processingServerProcesses[i].destroy();
                 try {
@@ -197,7 +206,7 @@ public class ConsoleApp {
         }
         
         // Estado de servidores de procesamiento
-        for (int i = 0; i < 3; i++) {
+        for (int i = 0; i < PROCESSING_SERVERS; i++) {
             if (processingServerProcesses[i] != null && processingServerProcesses[i].isAlive()) {
                 System.out.println("✅ Servidor Procesamiento " + (i + 1) + " (puerto " + (8081 + i) + "): ACTIVO");
             } else {
@@ -215,15 +224,15 @@ public class ConsoleApp {
         System.out.println();
         System.out.println("DESCRIPCIÓN:");
         System.out.println("Este sistema distribuido busca frases idénticas de n palabras");
-        System.out.println("entre diferentes libros usando 3 servidores de procesamiento");
+        System.out.println("entre diferentes libros usando " + PROCESSING_SERVERS + " servidores de procesamiento");
         System.out.println("que trabajan en paralelo.");
         System.out.println();
         System.out.println("ARQUITECTURA:");
         System.out.println("- 1 Servidor Web (puerto 8080): Interfaz de usuario y coordinador");
-        System.out.println("- 3 Servidores de Procesamiento (puertos 8081-8083): Análisis de texto");
+        System.out.println("- " + PROCESSING_SERVERS + " Servidores de Procesamiento (puertos 8081-" + (8080 + PROCESSING_SERVERS) + "): Análisis de texto");
         System.out.println();
         System.out.println("FUNCIONAMIENTO:");
-        System.out.println("1. Los libros se distribuyen equitativamente entre los 3 servidores");
+        System.out.println("1. Los libros se reparten por hash consistente entre grupos de réplicas");
         System.out.println("2. Cada servidor procesa su conjunto de libros en paralelo");
         System.out.println("3. Se extraen n-gramas (frases de n palabras) de cada libro");
         System.out.println("4. Se comparan los n-gramas entre libros para encontrar coincidencias");
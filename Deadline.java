@@ -0,0 +1,54 @@
+import com.sun.net.httpserver.HttpExchange;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Plazo de una consulta. El coordinador envía en {@link #HEADER} cuánto va a esperar la respuesta
+ * y el servidor de procesamiento lo cuenta desde que recibe la petición: pasado ese tiempo el
+ * coordinador ya la ha dado por perdida, así que el cálculo que la atiende se abandona en el
+ * siguiente punto de comprobación en lugar de seguir ocupando hilos y memoria.
+ */
+public class Deadline {
+    public static final String HEADER = "X-Timeout-Millis";
+
+    /** Sin plazo: para el trabajo que se comparte entre consultas o que se queda en la caché. */
+    public static final Deadline NONE = new Deadline(0, false);
+
+    private final long expiresAt;
+    private final boolean bounded;
+
+    private Deadline(long expiresAt, boolean bounded) {
+        this.expiresAt = expiresAt;
+        this.bounded = bounded;
+    }
+
+    public static Deadline after(long millis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), true);
+    }
+
+    /** Plazo de la cabecera de la petición; sin ella, la consulta no tiene plazo. */
+    public static Deadline of(HttpExchange exchange) {
+        String timeout = exchange.getRequestHeaders().getFirst(HEADER);
+        if (timeout == null) return NONE;
+        try {
+            return after(Long.parseLong(timeout.trim()));
+        } catch (NumberFormatException e) {
+            return NONE;
+        }
+    }
+
+    /** Milisegundos que quedan, o {@code Long.MAX_VALUE} sin plazo. */
+    public long remainingMillis() {
+        if (!bounded) return Long.MAX_VALUE;
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+    }
+
+    public boolean expired() {
+        return bounded && expiresAt - System.nanoTime() <= 0;
+    }
+
+    /** Punto de comprobación: lanza {@link CancellationException} si el plazo ha pasado. */
+    public void check() {
+        if (expired()) throw new CancellationException("plazo de la consulta agotado");
+    }
+}
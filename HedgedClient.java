@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Peticiones a un grupo de réplicas que tienen los mismos libros. Se envía a una réplica y, si no
+ * ha respondido cuando pasa el percentil {@link #HEDGE_PERCENTILE} de los tiempos recientes de esa
+ * operación, se envía también a la siguiente y se usa la primera respuesta. Si una réplica falla
+ * se pasa enseguida a otra, y las que no aceptan conexiones se evitan durante un tiempo.
+ */
+public class HedgedClient {
+    /** Percentil del tiempo hasta la respuesta a partir del que se pide a otra réplica. */
+    static final double HEDGE_PERCENTILE = 0.95;
+    /** Espera mínima antes de repetir una petición, para no duplicar las rápidas. */
+    private static final long MIN_HEDGE_MILLIS = 20;
+    /** Espera mientras no hay suficientes muestras de una operación. */
+    private static final long DEFAULT_HEDGE_MILLIS = 1000;
+    /** Tiempo durante el que se evita una réplica que rechazó la conexión. */
+    private static final long DOWN_MILLIS = 5000;
+
+    private final HttpClient client;
+    private final ScheduledExecutorService scheduler;
+    private final Metrics metrics;
+    private final Map<String, Latencies> latencies = new ConcurrentHashMap<>();
+    private final Map<String, Long> downUntil = new ConcurrentHashMap<>();
+    private final AtomicInteger rotation = new AtomicInteger();
+
+    public HedgedClient(HttpClient client, ScheduledExecutorService scheduler, Metrics metrics) {
+        this.client = client;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Envía la petición a las réplicas de un grupo y completa con la primera respuesta correcta
+     * (200); el cuerpo de las demás se descarta. Falla solo si fallan todas.
+     *
+     * @param operation nombre de la operación, para llevar sus tiempos por separado
+     * @param replicas  urls base de las réplicas del grupo
+     * @param request   petición para una url base
+     */
+    public CompletableFuture<HttpResponse<InputStream>> send(String operation, List<String> replicas,
+                                                             Function<String, HttpRequest> request) {
+        Attempts attempts = new Attempts(operation, order(replicas), request);
+        attempts.next();
+        return attempts.result;
+    }
+
+    /** Réplicas vivas primero, rotando la primera para repartir la carga. */
+    private List<String> order(List<String> replicas) {
+        long now = System.currentTimeMillis();
+        int start = Math.floorMod(rotation.getAndIncrement(), replicas.size());
+        List<String> live = new ArrayList<>();
+        List<String> down = new ArrayList<>();
+        for (int i = 0; i < replicas.size(); i++) {
+            String replica = replicas.get((start + i) % replicas.size());
+            if (downUntil.getOrDefault(replica, 0L) > now) {
+                down.add(replica);
+            } else {
+                live.add(replica);
+            }
+        }
+        live.addAll(down);
+        return live;
+    }
+
+    /** Intentos de una petición: cada uno a la siguiente réplica de la lista. */
+    private class Attempts {
+        final String operation;
+        final List<String> replicas;
+        final Function<String, HttpRequest> request;
+        final CompletableFuture<HttpResponse<InputStream>> result = new CompletableFuture<>();
+        final long start = System.nanoTime();
+        private int sent;
+        private int pending;
+        private Throwable lastError;
+
+        Attempts(String operation, List<String> replicas, Function<String, HttpRequest> request) {
+            this.operation = operation;
+            this.replicas = replicas;
+            this.request = request;
+        }
+
+        /** Envía a la siguiente réplica, si queda alguna, y programa la petición de respaldo. */
+        void next() {
+            String replica;
+            boolean more;
+            synchronized (this) {
+                if (result.isDone() || sent == replicas.size()) return;
+                if (sent > 0) {
+                    Log.debug(() -> "Petición " + operation + " repetida en " + replicas.get(sent));
+                    metrics.increment(Metrics.series("backend_retries_total", "operation", operation));
+                }
+                replica = replicas.get(sent++);
+                more = sent < replicas.size();
+                pending++;
+            }
+            long sentAt = System.nanoTime();
+            client.sendAsync(request.apply(replica), BodyHandlers.ofInputStream())
+                    .whenComplete((response, error) -> completed(replica, sentAt, response, error));
+            if (more) {
+                scheduler.schedule(this::next, hedgeDelay(operation), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void completed(String replica, long sentAt, HttpResponse<InputStream> response, Throwable error) {
+            if (error == null && response.statusCode() == 200) {
+                // Hasta las cabeceras de la réplica, aunque gane otra: es su tiempo de respuesta
+                metrics.time("backend_seconds{operation=\"" + operation + "\",replica=\"" + replica + "\"}", sentAt);
+                if (result.complete(response)) {
+                    latencies.computeIfAbsent(operation, k -> new Latencies())
+                            .add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                } else {
+                    close(response);
+                }
+                return;
+            }
+
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (cause instanceof ConnectException || cause instanceof HttpTimeoutException) {
+                    downUntil.put(replica, System.currentTimeMillis() + DOWN_MILLIS);
+                }
+                error = new IOException(replica + ": " + (cause.getMessage() != null ? cause.getMessage() : cause.toString()), cause);
+            } else {
+                close(response);
+                error = new IOException("HTTP " + response.statusCode() + " de " + response.uri());
+            }
+
+            metrics.increment("backend_errors_total{operation=\"" + operation + "\",replica=\"" + replica + "\"}");
+            boolean exhausted;
+            synchronized (this) {
+                lastError = error;
+                pending--;
+                exhausted = pending == 0 && sent == replicas.size();
+            }
+            if (exhausted) {
+                result.completeExceptionally(lastError);
+            } else {
+                // Sin esperar al percentil: la réplica ha fallado
+                next();
+            }
+        }
+    }
+
+    private long hedgeDelay(String operation) {
+        Latencies recent = latencies.get(operation);
+        long delay = recent == null ? -1 : recent.percentile(HEDGE_PERCENTILE);
+        return delay < 0 ? DEFAULT_HEDGE_MILLIS : Math.max(MIN_HEDGE_MILLIS, delay);
+    }
+
+    private static void close(HttpResponse<InputStream> response) {
+        try {
+            response.body().close();
+        } catch (IOException e) {
+            // Nada que hacer: la respuesta se descarta
+        }
+    }
+
+    /** Últimos tiempos hasta la respuesta de una operación, en una ventana circular. */
+    static class Latencies {
+        private static final int WINDOW = 256;
+        private static final int MIN_SAMPLES = 16;
+
+        private final long[] samples = new long[WINDOW];
+        private int count;
+        private int next;
+
+        synchronized void add(long millis) {
+            samples[next] = millis;
+            next = (next + 1) % WINDOW;
+            count = Math.min(count + 1, WINDOW);
+        }
+
+        /** Percentil de la ventana, o -1 si aún hay pocas muestras. */
+        synchronized long percentile(double fraction) {
+            if (count < MIN_SAMPLES) return -1;
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) Math.ceil(fraction * count) - 1)];
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Instantánea en disco de lo que un servidor deriva de sus libros, para arrancar sin volver a
+ * tokenizar ni a calcular hashes:
+ * <ul>
+ *   <li>{@code dictionary.bin}: palabras del diccionario en orden de id, solo se añade al final.</li>
+ *   <li>{@code <libro>.meta}: tamaño, fecha de modificación y CRC32 del texto de origen, y
+ *       cuántas palabras tenía el diccionario al tokenizarlo.</li>
+ *   <li>{@code <libro>.tok}: tokens del libro ({@link TokenizedBook#writeTo}).</li>
+ *   <li>{@code <libro>.<crc>.<n>.ngrams}: conjunto de n-gramas del libro ({@link NGramSet#writeTo})
+ *       calculado con los tokens del texto con ese CRC32.</li>
+ * </ul>
+ * El diccionario, los metadatos y los conjuntos llevan {@link #VERSION}; si cambia el formato,
+ * la instantánea se descarta. Los tokens de un libro solo se usan si su {@code .meta} es válido.
+ * Un shard anterior que sigue respondiendo con los tokens de antes de un cambio guarda sus
+ * conjuntos con el CRC de antes, así que no los puede tomar el shard nuevo.
+ */
+public class IndexSnapshot {
+    /** 3: el nombre de los conjuntos lleva el CRC32 del texto del que salen. */
+    static final int VERSION = 3;
+
+    private final Path directory;
+    private int savedWords;
+
+    public IndexSnapshot(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path tokenFile(String bookName) {
+        return directory.resolve(bookName + ".tok");
+    }
+
+    public Path ngramFile(String bookName, long crc, int nWords) {
+        return directory.resolve(bookName + "." + Long.toHexString(crc) + "." + nWords + ".ngrams");
+    }
+
+    private Path metaFile(String bookName) {
+        return directory.resolve(bookName + ".meta");
+    }
+
+    private Path dictionaryFile() {
+        return directory.resolve("dictionary.bin");
+    }
+
+    /**
+     * Carga el diccionario guardado en {@code dictionary}, que debe estar vacío. Un registro
+     * incompleto al final (por una escritura interrumpida) se recorta.
+     */
+    public void loadDictionary(WordDictionary dictionary) throws IOException {
+        Files.createDirectories(directory);
+        Path file = dictionaryFile();
+        if (!Files.exists(file)) return;
+
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != VERSION) {
+                discard();
+                return;
+            }
+            validLength = Integer.BYTES;
+            while (true) {
+                int length = in.readUnsignedShort();
+                byte[] utf = new byte[length];
+                in.readFully(utf);
+                char[] word = new String(utf, StandardCharsets.UTF_8).toCharArray();
+                dictionary.intern(word, word.length);
+                validLength += 2 + length;
+            }
+        } catch (EOFException e) {
+            // Fin del archivo: validLength marca el último registro completo
+        }
+
+        if (validLength < Integer.BYTES) {
+            discard();
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(validLength);
+        }
+        savedWords = dictionary.size();
+    }
+
+    /** Añade al archivo las palabras internadas desde el último guardado. */
+    public void saveDictionary(WordDictionary dictionary) throws IOException {
+        if (savedWords == dictionary.size()) return;
+        Path file = dictionaryFile();
+        boolean create = !Files.exists(file);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND), 1 << 16))) {
+            if (create) {
+                out.writeInt(VERSION);
+            }
+            for (int id = savedWords; id < dictionary.size(); id++) {
+                byte[] utf = dictionary.word(id).getBytes(StandardCharsets.UTF_8);
+                out.writeShort(utf.length);
+                out.write(utf);
+            }
+        }
+        savedWords = dictionary.size();
+    }
+
+    /**
+     * CRC32 del texto del libro si sus archivos corresponden al texto actual y a un diccionario
+     * que contiene todos sus ids; si no, -1. Si solo cambió la fecha, se compara el CRC32 y, si
+     * coincide, se actualiza la fecha guardada.
+     */
+    public long currentChecksum(Path source, WordDictionary dictionary) throws IOException {
+        String bookName = source.getFileName().toString();
+        Path meta = metaFile(bookName);
+        if (!Files.exists(meta) || !Files.exists(tokenFile(bookName))) return -1;
+
+        long size;
+        long modified;
+        long crc;
+        int dictionaryWords;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(meta))) {
+            if (in.readInt() != VERSION) return -1;
+            size = in.readLong();
+            modified = in.readLong();
+            crc = in.readLong();
+            dictionaryWords = in.readInt();
+        } catch (EOFException e) {
+            return -1;
+        }
+
+        if (dictionaryWords > dictionary.size()) return -1;
+
+        if (size != Files.size(source)) return -1;
+        long currentModified = Files.getLastModifiedTime(source).toMillis();
+        if (modified == currentModified) return crc;
+        if (crc != checksum(source)) return -1;
+
+        writeMeta(bookName, size, currentModified, crc, dictionaryWords);
+        return crc;
+    }
+
+    /** Registra el libro como actualizado; se escribe al final, después de sus tokens. */
+    public void markCurrent(Path source, long crc, WordDictionary dictionary) throws IOException {
+        writeMeta(source.getFileName().toString(), Files.size(source),
+                Files.getLastModifiedTime(source).toMillis(), crc, dictionary.size());
+    }
+
+    /** Borra los archivos derivados de un libro antes de regenerarlos. */
+    public void invalidate(String bookName) throws IOException {
+        Files.createDirectories(directory);
+        Files.deleteIfExists(metaFile(bookName));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, glob(bookName) + ".*.ngrams")) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private void writeMeta(String bookName, long size, long modified, long crc, int dictionaryWords) throws IOException {
+        Path temp = directory.resolve(bookName + ".meta.tmp");
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+            out.writeInt(VERSION);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeLong(crc);
+            out.writeInt(dictionaryWords);
+        }
+        Files.move(temp, metaFile(bookName), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void discard() throws IOException {
+        Log.info("Instantánea en " + directory + " con otra versión; se regenera");
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    public static long checksum(ByteBuffer bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes.duplicate());
+        return crc.getValue();
+    }
+
+    private static long checksum(Path source) throws IOException {
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return checksum(bytes);
+        }
+    }
+
+    /** Escapa los caracteres especiales de glob presentes en los nombres de libro (p. ej. corchetes). */
+    private static String glob(String name) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : name.toCharArray()) {
+            if ("*?[]{}\\,".indexOf(c) >= 0) escaped.append('\\');
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+}
@@ -0,0 +1,331 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Genera carga contra el WebServer y mide la latencia de extremo a extremo. Las peticiones salen
+ * de un registro JSON por líneas ({@code --log}: un objeto plano por línea con los parámetros del
+ * formulario y, opcionalmente, {@code "path"}, por defecto {@code /search}) o de una mezcla
+ * sintética de {@code nWords} ({@code --nWords 2,3,4}), y se repiten en orden hasta terminar.
+ * <p>
+ * Con {@code --concurrency N} hay N clientes que envían la siguiente petición al recibir la
+ * respuesta (bucle cerrado). Con {@code --rate R} se envían R peticiones por segundo aunque las
+ * anteriores no hayan terminado (bucle abierto), y la latencia se cuenta desde el instante en
+ * que tocaba enviarla, de modo que un servidor lento no esconde su espera retrasando la carga.
+ * Con {@code --local K} arranca en este mismo proceso el WebServer y K servidores de
+ * procesamiento con los libros de {@code LIBROS_TXT}, para medir sin desplegar nada.
+ * <p>
+ * El informe da el rendimiento, los códigos de respuesta, los aciertos de la caché de resultados
+ * y los percentiles de latencia en total y por tipo de petición ({@link LatencyHistogram}).
+ *
+ * <pre>
+ * java LoadGenerator --nWords 2,3,4,6 --concurrency 8 --duration 60
+ * java LoadGenerator --log consultas.jsonl --rate 5 --duration 120 --warmup 10
+ * RESULT_CACHE_MB=0 java LoadGenerator --local 4 --nWords 4 --concurrency 4
+ * </pre>
+ */
+public class LoadGenerator {
+    /** Un valor plano de un objeto JSON: cadena, número o booleano. */
+    private static final Pattern JSON_FIELD = Pattern.compile("\"([^\"]+)\"\\s*:\\s*(\"((?:[^\"\\\\]|\\\\.)*)\"|[-+.\\w]+)");
+    /** Salida del informe; con {@code --local} los registros de los servidores van a un archivo. */
+    private static final PrintStream console = System.out;
+    private static final String LOCAL_LOG = "servidores-locales.log";
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(120);
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final String baseUrl;
+    private final List<Request> requests;
+    private final AtomicInteger next = new AtomicInteger();
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> statuses = new ConcurrentHashMap<>();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong lastResponse = new AtomicLong();
+    /** Hasta este instante (nanoTime) no se registra nada: es el calentamiento. */
+    private volatile long recordFrom;
+    private volatile long stopAt;
+
+    /** Una petición del registro: ruta, cuerpo del formulario y etiqueta para el informe. */
+    private static class Request {
+        final String path;
+        final String form;
+        final String label;
+
+        Request(String path, String form, String label) {
+            this.path = path;
+            this.form = form;
+            this.label = label;
+        }
+    }
+
+    LoadGenerator(String baseUrl, List<Request> requests) {
+        this.baseUrl = baseUrl;
+        this.requests = requests;
+    }
+
+    /** Cuenta los bytes del cuerpo sin guardarlos. */
+    private static class CountingSubscriber implements Flow.Subscriber<List<ByteBuffer>> {
+        long bytes;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(List<ByteBuffer> buffers) {
+            for (ByteBuffer buffer : buffers) {
+                bytes += buffer.remaining();
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+
+    /** Envía una petición; la latencia se cuenta desde {@code intended} (nanoTime). */
+    private CompletableFuture<Void> send(long intended) {
+        Request request = requests.get(Math.floorMod(next.getAndIncrement(), requests.size()));
+        HttpRequest http = HttpRequest.newBuilder(URI.create(baseUrl + request.path))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .POST(HttpRequest.BodyPublishers.ofString(request.form))
+                .build();
+        inFlight.incrementAndGet();
+        return client.sendAsync(http, info -> HttpResponse.BodySubscribers.fromSubscriber(new CountingSubscriber(), s -> s.bytes))
+                .handle((response, error) -> {
+                    inFlight.decrementAndGet();
+                    long end = System.nanoTime();
+                    // Cuentan todas las que tocaba enviar dentro de la medida, aunque terminen después
+                    if (intended < recordFrom || intended >= stopAt) return null;
+                    String status = error != null ? "error" : Integer.toString(response.statusCode());
+                    statuses.computeIfAbsent(status, k -> new AtomicLong()).incrementAndGet();
+                    if (error != null) return null;
+                    long micros = (end - intended) / 1000;
+                    histograms.computeIfAbsent("total", k -> new LatencyHistogram()).record(micros);
+                    histograms.computeIfAbsent(request.label, k -> new LatencyHistogram()).record(micros);
+                    bytes.addAndGet(response.body());
+                    completed.incrementAndGet();
+                    lastResponse.accumulateAndGet(end, Math::max);
+                    if ("HIT".equals(response.headers().firstValue("X-Cache").orElse(""))) cacheHits.incrementAndGet();
+                    return null;
+                });
+    }
+
+    /** Bucle cerrado: cada cliente envía la siguiente petición al terminar la anterior. */
+    void runClosed(int concurrency) throws InterruptedException {
+        for (int i = 0; i < concurrency; i++) {
+            closedClient();
+        }
+        Thread.sleep(Math.max(0, (stopAt - System.nanoTime()) / 1_000_000));
+        drain();
+    }
+
+    /** Espera a las peticiones en curso: descartarlas dejaría fuera justo las más lentas. */
+    private void drain() throws InterruptedException {
+        long deadline = System.nanoTime() + REQUEST_TIMEOUT.toNanos();
+        while (inFlight.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private CompletableFuture<Void> closedClient() {
+        if (System.nanoTime() >= stopAt) return CompletableFuture.completedFuture(null);
+        return send(System.nanoTime()).thenCompose(ignored -> closedClient());
+    }
+
+    /**
+     * Bucle abierto: una petición cada {@code 1 / rate} segundos según el reloj, sin esperar a las
+     * anteriores. Si hay {@code maxInFlight} en curso, la petición se descarta y se cuenta.
+     */
+    void runOpen(double rate, int maxInFlight) throws InterruptedException {
+        long interval = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        for (long i = 0; ; i++) {
+            long intended = start + i * interval;
+            if (intended >= stopAt) break;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            if (inFlight.get() >= maxInFlight) {
+                if (intended >= recordFrom) dropped.incrementAndGet();
+                continue;
+            }
+            send(intended);
+        }
+        drain();
+    }
+
+    /** El rendimiento se calcula desde el fin del calentamiento hasta el final o la última respuesta. */
+    void report() {
+        double seconds = (Math.max(stopAt, lastResponse.get()) - recordFrom) / 1e9;
+        console.println();
+        console.println(String.format(Locale.ROOT, "%d respuestas correctas en %.1f s: %.2f peticiones/s, %.2f MB/s",
+                completed.get(), seconds, completed.get() / seconds, bytes.get() / seconds / (1024 * 1024)));
+        console.println("Códigos de respuesta: " + new TreeMap<>(statuses));
+        if (dropped.get() > 0) {
+            console.println("Descartadas por demasiadas peticiones en curso: " + dropped.get());
+        }
+        if (completed.get() > 0) {
+            console.println(String.format(Locale.ROOT, "Respondidas desde la caché de resultados: %.1f %%",
+                    cacheHits.get() * 100.0 / completed.get()));
+        }
+        console.println();
+        console.println(String.format(Locale.ROOT, "%-24s %8s %9s %9s %9s %9s %9s %9s %9s",
+                "Latencia (ms)", "n", "media", "p50", "p90", "p99", "p99.9", "p99.99", "máx"));
+        Map<String, LatencyHistogram> ordered = new TreeMap<>(histograms);
+        LatencyHistogram total = ordered.remove("total");
+        if (total != null) ordered = prepend("total", total, ordered);
+        for (Map.Entry<String, LatencyHistogram> entry : ordered.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            console.println(String.format(Locale.ROOT, "%-24s %8d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f",
+                    entry.getKey(), histogram.count(), histogram.mean() / 1000, histogram.percentile(0.5) / 1000.0,
+                    histogram.percentile(0.9) / 1000.0, histogram.percentile(0.99) / 1000.0,
+                    histogram.percentile(0.999) / 1000.0, histogram.percentile(0.9999) / 1000.0, histogram.max() / 1000.0));
+        }
+    }
+
+    private static Map<String, LatencyHistogram> prepend(String key, LatencyHistogram value, Map<String, LatencyHistogram> rest) {
+        Map<String, LatencyHistogram> ordered = new LinkedHashMap<>();
+        ordered.put(key, value);
+        ordered.putAll(rest);
+        return ordered;
+    }
+
+    /** Peticiones del registro JSON por líneas; se ignoran las líneas sin parámetros de búsqueda. */
+    private static List<Request> readLog(String file) throws IOException {
+        List<Request> requests = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            Map<String, String> fields = new LinkedHashMap<>();
+            Matcher matcher = JSON_FIELD.matcher(line);
+            while (matcher.find()) {
+                fields.put(matcher.group(1), matcher.group(3) != null ? matcher.group(3).replace("\\\"", "\"") : matcher.group(2));
+            }
+            String path = fields.getOrDefault("path", "/search");
+            fields.remove("path");
+            if (!fields.containsKey("nWords") && !fields.containsKey("phrase")) continue;
+
+            StringBuilder form = new StringBuilder();
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                if (form.length() > 0) form.append('&');
+                form.append(field.getKey()).append('=').append(URLEncoder.encode(field.getValue(), StandardCharsets.UTF_8));
+            }
+            requests.add(new Request(path, form.toString(), path.substring(1) + label(fields)));
+        }
+        return requests;
+    }
+
+    private static String label(Map<String, String> fields) {
+        return fields.containsKey("nWords") ? " n=" + fields.get("nWords")
+                + ("local".equals(fields.get("mode")) ? " local" : "")
+                + (Boolean.parseBoolean(fields.get("passages")) ? " pasajes" : "") : "";
+    }
+
+    private static List<Request> synthetic(String nWordsList, String extra) {
+        List<Request> requests = new ArrayList<>();
+        for (String nWords : nWordsList.split(",")) {
+            String form = "nWords=" + nWords.trim() + "&format=json" + (extra.isEmpty() ? "" : "&" + extra);
+            requests.add(new Request("/search", form, "search n=" + nWords.trim()));
+        }
+        return requests;
+    }
+
+    /**
+     * Arranca en este proceso el WebServer y {@code servers} servidores de procesamiento, y
+     * espera a que todos tengan aplicada la misma configuración. Lo que escriben va a
+     * {@link #LOCAL_LOG} para no mezclarse con el informe.
+     */
+    private static void startLocal(int servers) throws Exception {
+        System.setOut(new PrintStream(new FileOutputStream(LOCAL_LOG), true));
+        console.println("Registros de los servidores locales en " + LOCAL_LOG);
+        new WebServer().start();
+        for (int i = 1; i <= servers; i++) {
+            int port = 8080 + i;
+            new ProcessingServer(port, "local-" + i, "http://localhost:8080", "http://localhost:" + port).start();
+        }
+        HttpClient client = HttpClient.newHttpClient();
+        Pattern epoch = Pattern.compile("\"epoch\":(\\d+)");
+        while (true) {
+            String cluster = client.send(HttpRequest.newBuilder(URI.create("http://localhost:8080/cluster")).build(),
+                    HttpResponse.BodyHandlers.ofString()).body();
+            Matcher matcher = epoch.matcher(cluster);
+            if (matcher.find() && cluster.split("\"appliedEpoch\":" + matcher.group(1) + ",", -1).length - 1 == servers) break;
+            Thread.sleep(500);
+        }
+        console.println("Clúster local listo con " + servers + " servidores de procesamiento");
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                System.err.println("Opción no válida: " + args[i]);
+                System.exit(2);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        List<Request> requests = options.containsKey("log") ? readLog(options.get("log"))
+                : synthetic(options.getOrDefault("nWords", "2,3,4"), options.getOrDefault("params", ""));
+        if (requests.isEmpty()) {
+            System.err.println("El registro no tiene ninguna petición con nWords o phrase");
+            System.exit(2);
+        }
+        if (options.containsKey("local")) {
+            startLocal(Integer.parseInt(options.get("local")));
+        }
+
+        LoadGenerator generator = new LoadGenerator(options.getOrDefault("url", "http://localhost:8080"), requests);
+        double warmup = Double.parseDouble(options.getOrDefault("warmup", "5"));
+        double duration = Double.parseDouble(options.getOrDefault("duration", "30"));
+        long start = System.nanoTime();
+        generator.recordFrom = start + (long) (warmup * 1e9);
+        generator.stopAt = generator.recordFrom + (long) (duration * 1e9);
+
+        if (options.containsKey("rate")) {
+            double rate = Double.parseDouble(options.get("rate"));
+            console.println("Bucle abierto a " + rate + " peticiones/s durante " + duration + " s (más " + warmup + " s de calentamiento)...");
+            generator.runOpen(rate, Integer.parseInt(options.getOrDefault("maxInFlight", "1000")));
+        } else {
+            int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "4"));
+            console.println("Bucle cerrado con " + concurrency + " clientes durante " + duration + " s (más " + warmup + " s de calentamiento)...");
+            generator.runClosed(concurrency);
+        }
+        generator.report();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.PrintStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.function.Supplier;
+
+/**
+ * Registro de los servidores con niveles. El nivel se fija con {@code LOG_LEVEL} (ERROR, WARN,
+ * INFO o DEBUG; INFO por defecto) y los mensajes de un nivel desactivado no llegan a escribirse:
+ * los de DEBUG, que son los que se escriben en cada consulta, se reciben como {@link Supplier}
+ * para que ni siquiera se construya el texto. Los errores y avisos van a la salida de errores.
+ */
+public class Log {
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+    private static volatile Level level = configuredLevel();
+
+    private Log() {
+    }
+
+    private static Level configuredLevel() {
+        String configured = System.getenv("LOG_LEVEL");
+        if (configured == null || configured.isBlank()) return Level.INFO;
+        try {
+            return Level.valueOf(configured.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("LOG_LEVEL no válido: " + configured + "; se usa INFO");
+            return Level.INFO;
+        }
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean enabled(Level messageLevel) {
+        return messageLevel.compareTo(level) <= 0;
+    }
+
+    public static void error(String message) {
+        write(Level.ERROR, message);
+    }
+
+    public static void error(String message, Throwable error) {
+        write(Level.ERROR, message + ": " + (error.getMessage() != null ? error.getMessage() : error.toString()));
+    }
+
+    public static void warn(String message) {
+        write(Level.WARN, message);
+    }
+
+    public static void info(String message) {
+        write(Level.INFO, message);
+    }
+
+    public static void debug(Supplier<String> message) {
+        if (enabled(Level.DEBUG)) write(Level.DEBUG, message.get());
+    }
+
+    private static void write(Level messageLevel, String message) {
+        if (!enabled(messageLevel)) return;
+        PrintStream out = messageLevel.compareTo(Level.WARN) <= 0 ? System.err : System.out;
+        out.println(LocalDateTime.now().format(TIME) + " " + messageLevel + " " + message);
+    }
+}
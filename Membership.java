@@ -0,0 +1,286 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Servidores de procesamiento vivos, según sus avisos periódicos a {@code /register}. Cada alta o
+ * baja abre una nueva configuración (epoch); los servidores reparten los libros por hash
+ * consistente y la confirman en su siguiente aviso. Solo se planifican consultas sobre una
+ * configuración que todos han aplicado, de modo que cada libro está en un único grupo. También
+ * se abre una configuración cuando un servidor informa de otro corpus (libros añadidos, quitados
+ * o modificados en su directorio), y solo se consulta una en la que todos tienen el mismo: los
+ * ids globales de los libros son su posición en el corpus.
+ * <p>
+ * Los servidores se organizan en grupos de réplicas que tienen los mismos libros: el que llega
+ * entra en el grupo con menos miembros y solo se abre un grupo nuevo cuando todos tienen ya
+ * {@code replication} réplicas. Un servidor no cambia de grupo mientras sigue vivo, así que la
+ * caída o el reinicio de una réplica no mueve libros: el grupo sigue atendido por las demás.
+ */
+public class Membership {
+    private final long expiryMillis;
+    private final int replication;
+    private final TreeMap<String, Member> members = new TreeMap<>();
+    private long epoch = System.currentTimeMillis();
+    private int nextGroup;
+    private long reportedEpoch;
+    private Ready lastReady;
+
+    /**
+     * @param expiryMillis tiempo sin avisos tras el que un servidor se da por caído
+     * @param replication  réplicas por grupo antes de abrir uno nuevo
+     */
+    public Membership(long expiryMillis, int replication) {
+        this.expiryMillis = expiryMillis;
+        this.replication = Math.max(1, replication);
+    }
+
+    private static class Member {
+        String url;
+        int group;
+        long lastSeen;
+        long appliedEpoch;
+        long previousEpoch;
+        long version;
+        long corpus;
+        int books;
+        long load;
+        long tokens;
+    }
+
+    /** Última configuración aplicada por todos: grupos con los ids de sus miembros. */
+    private static class Ready {
+        final long epoch;
+        final List<List<String>> groups;
+        final long version;
+
+        Ready(long epoch, List<List<String>> groups, long version) {
+            this.epoch = epoch;
+            this.groups = groups;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Configuración lista para consultar: por cada grupo de libros, las urls de sus réplicas
+     * ordenadas por id, y la versión del corpus.
+     */
+    public static class View {
+        final long epoch;
+        final List<List<String>> groups;
+        final long version;
+
+        View(long epoch, List<List<String>> groups, long version) {
+            this.epoch = epoch;
+            this.groups = groups;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Registra el aviso de un servidor y devuelve la configuración vigente: su número en la
+     * primera línea y después una línea "id grupo" por miembro. Con el aviso llega la carga del
+     * servidor: libros asignados, trabajo estimado y tokens ya cargados.
+     *
+     * @param previousEpoch configuración anterior, que el servidor sigue atendiendo mientras el
+     *                      coordinador no tenga otra lista
+     * @param corpus        versión del corpus que el servidor tiene en su directorio
+     */
+    public synchronized String register(String id, String url, long appliedEpoch, long previousEpoch, long version,
+                                        long corpus, int books, long load, long tokens) {
+        Member member = members.get(id);
+        if (member == null || !member.url.equals(url)) {
+            member = new Member();
+            member.url = url;
+            member.group = groupForNewMember();
+            members.put(id, member);
+            epoch++;
+            Log.info("Servidor " + id + " (" + url + ") se une al clúster en el grupo " + member.group
+                    + ": " + members.size() + " miembros, configuración " + epoch);
+        } else if (member.corpus != corpus) {
+            epoch++;
+            Log.info("Servidor " + id + " tiene otro corpus (" + Long.toHexString(corpus) + "): configuración " + epoch);
+        }
+        member.corpus = corpus;
+        member.lastSeen = System.currentTimeMillis();
+        member.appliedEpoch = appliedEpoch;
+        member.previousEpoch = previousEpoch;
+        member.version = version;
+        member.books = books;
+        member.load = load;
+        member.tokens = tokens;
+        if (reportedEpoch != epoch && current() != null) {
+            reportedEpoch = epoch;
+            Log.info("Configuración " + epoch + " aplicada. " + loadReport());
+        }
+
+        StringBuilder response = new StringBuilder().append(epoch).append('\n');
+        for (Map.Entry<String, Member> entry : members.entrySet()) {
+            response.append(entry.getKey()).append(' ').append(entry.getValue().group).append('\n');
+        }
+        return response.toString();
+    }
+
+    /** El grupo con menos réplicas, o uno nuevo si todos tienen ya las suficientes. */
+    private int groupForNewMember() {
+        Map<Integer, Integer> sizes = groupSizes();
+        int smallest = -1;
+        for (Map.Entry<Integer, Integer> group : sizes.entrySet()) {
+            if (smallest < 0 || group.getValue() < sizes.get(smallest)) {
+                smallest = group.getKey();
+            }
+        }
+        if (smallest >= 0 && sizes.get(smallest) < replication) return smallest;
+        return nextGroup++;
+    }
+
+    private Map<Integer, Integer> groupSizes() {
+        Map<Integer, Integer> sizes = new TreeMap<>();
+        for (Member member : members.values()) {
+            sizes.merge(member.group, 1, Integer::sum);
+        }
+        return sizes;
+    }
+
+    /** Da de baja a los servidores que han dejado de avisar. */
+    public synchronized void expire() {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Member>> iterator = members.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Member> entry = iterator.next();
+            if (now - entry.getValue().lastSeen > expiryMillis) {
+                // Se toman los datos antes de borrar: TreeMap puede reutilizar la entrada
+                String id = entry.getKey();
+                int group = entry.getValue().group;
+                iterator.remove();
+                epoch++;
+                Integer remaining = groupSizes().get(group);
+                Log.info("Servidor " + id + " sin avisos; sale del clúster: " + members.size()
+                        + " miembros, configuración " + epoch + (remaining == null
+                        ? "; el grupo " + group + " desaparece y sus libros se reparten"
+                        : "; quedan " + remaining + " réplicas en el grupo " + group));
+            }
+        }
+    }
+
+    /**
+     * Carga de cada servidor y desequilibrio entre grupos (carga máxima sobre la media): el
+     * tiempo de una búsqueda lo marca el grupo más cargado.
+     */
+    public synchronized String loadReport() {
+        StringBuilder report = new StringBuilder("Carga estimada por servidor:");
+        Map<Integer, Long> groupLoads = new TreeMap<>();
+        for (Map.Entry<String, Member> entry : members.entrySet()) {
+            Member member = entry.getValue();
+            report.append(' ').append(entry.getKey()).append('=').append(member.load)
+                  .append(" (grupo ").append(member.group).append(", ").append(member.books).append(" libros)");
+            groupLoads.put(member.group, member.load);
+        }
+        long total = 0;
+        long max = 0;
+        for (long load : groupLoads.values()) {
+            total += load;
+            max = Math.max(max, load);
+        }
+        if (total > 0) {
+            report.append(String.format(Locale.ROOT, "; desequilibrio %.2f", max * (double) groupLoads.size() / total));
+        }
+        return report.toString();
+    }
+
+    /** Estado de los miembros en JSON: configuración, url, grupo y carga de cada servidor. */
+    public synchronized String toJson() {
+        StringBuilder json = new StringBuilder("{\"epoch\":").append(epoch)
+                .append(",\"replication\":").append(replication).append(",\"members\":[");
+        String separator = "";
+        for (Map.Entry<String, Member> entry : members.entrySet()) {
+            Member member = entry.getValue();
+            json.append(separator).append("{\"id\":").append(quote(entry.getKey()))
+                .append(",\"url\":").append(quote(member.url))
+                .append(",\"group\":").append(member.group)
+                .append(",\"appliedEpoch\":").append(member.appliedEpoch)
+                .append(",\"corpus\":").append(quote(Long.toHexString(member.corpus)))
+                .append(",\"books\":").append(member.books)
+                .append(",\"load\":").append(member.load)
+                .append(",\"tokens\":").append(member.tokens)
+                .append('}');
+            separator = ",";
+        }
+        return json.append("]}").toString();
+    }
+
+    /** Url de cada miembro, por id. */
+    public synchronized Map<String, String> urls() {
+        Map<String, String> urls = new TreeMap<>();
+        for (Map.Entry<String, Member> entry : members.entrySet()) {
+            urls.put(entry.getKey(), entry.getValue().url);
+        }
+        return urls;
+    }
+
+    private static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    /**
+     * Configuración sobre la que planificar consultas, o null si no hay ninguna. Si todos han
+     * aplicado la vigente, se usa esa. Si no, se sigue usando la última que todos aplicaron,
+     * con las réplicas que aún la atienden (la tienen como actual o como anterior), mientras
+     * cada grupo conserve alguna; así un alta o una baja no interrumpe las búsquedas.
+     * La versión combina los grupos y la versión de sus libros, para invalidar la caché cuando
+     * cambia el reparto o algún libro.
+     */
+    public synchronized View view() {
+        View current = current();
+        if (current != null || lastReady == null) return current;
+
+        List<List<String>> groups = new ArrayList<>();
+        for (List<String> ids : lastReady.groups) {
+            List<String> urls = new ArrayList<>();
+            for (String id : ids) {
+                Member member = members.get(id);
+                if (member != null && (member.appliedEpoch == lastReady.epoch || member.previousEpoch == lastReady.epoch)) {
+                    urls.add(member.url);
+                }
+            }
+            if (urls.isEmpty()) return null;
+            groups.add(Collections.unmodifiableList(urls));
+        }
+        return new View(lastReady.epoch, Collections.unmodifiableList(groups), lastReady.version);
+    }
+
+    /** La configuración vigente si todos los servidores la han aplicado; se recuerda como lista. */
+    private View current() {
+        if (members.isEmpty()) return null;
+        Map<Integer, List<String>> ids = new TreeMap<>();
+        Map<Integer, List<String>> urls = new TreeMap<>();
+        Map<Integer, Long> groupVersions = new TreeMap<>();
+        long corpus = members.firstEntry().getValue().corpus;
+        for (Map.Entry<String, Member> entry : members.entrySet()) {
+            Member member = entry.getValue();
+            if (member.appliedEpoch != epoch || member.corpus != corpus) return null;
+            ids.computeIfAbsent(member.group, k -> new ArrayList<>()).add(entry.getKey());
+            urls.computeIfAbsent(member.group, k -> new ArrayList<>()).add(member.url);
+            groupVersions.put(member.group, member.version);
+        }
+        // Las réplicas de un grupo tienen los mismos libros: que entre o salga una no cambia la versión
+        long version = corpus * 31 + groupVersions.size();
+        for (Map.Entry<Integer, Long> group : groupVersions.entrySet()) {
+            version = version * 31 + group.getKey();
+            version = version * 31 + group.getValue();
+        }
+        version = WordDictionary.mix(version);
+
+        List<List<String>> groups = new ArrayList<>();
+        for (List<String> group : urls.values()) {
+            groups.add(Collections.unmodifiableList(group));
+        }
+        if (lastReady == null || lastReady.epoch != epoch) {
+            lastReady = new Ready(epoch, new ArrayList<>(ids.values()), version);
+        }
+        return new View(epoch, Collections.unmodifiableList(groups), version);
+    }
+}
@@ -0,0 +1,182 @@
+import com.sun.net.httpserver.HttpHandler;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Métricas de un servidor, que se publican en {@code GET /metrics} con el formato de texto de
+ * Prometheus. Hay contadores, valores instantáneos (medidos al consultar o fijados al calcular
+ * algo) y tiempos, que se guardan en un {@link LatencyHistogram} por serie y se publican como
+ * resumen con sus percentiles. Cada serie se identifica por su nombre y sus etiquetas, ya
+ * escritas: {@code phase_seconds{phase="extract"}}. Registrar cuesta unas pocas operaciones
+ * atómicas, así que se puede hacer en cada consulta.
+ */
+public class Metrics {
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+    private final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> values = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private final Map<String, LatencyHistogram> timers = new ConcurrentHashMap<>();
+
+    public Metrics() {
+        Runtime runtime = Runtime.getRuntime();
+        gauge("jvm_heap_used_bytes", () -> runtime.totalMemory() - runtime.freeMemory());
+        gauge("jvm_heap_committed_bytes", runtime::totalMemory);
+        gauge("jvm_heap_max_bytes", runtime::maxMemory);
+        gauge("jvm_threads", () -> ManagementFactory.getThreadMXBean().getThreadCount());
+        gauge("jvm_gc_collections", () -> ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionCount).sum());
+        gauge("jvm_gc_time_millis", () -> ManagementFactory.getGarbageCollectorMXBeans().stream()
+                .mapToLong(GarbageCollectorMXBean::getCollectionTime).sum());
+    }
+
+    /** Nombre de una serie con una etiqueta. */
+    public static String series(String name, String label, Object value) {
+        return name + "{" + label + "=\"" + value + "\"}";
+    }
+
+    public void increment(String series) {
+        add(series, 1);
+    }
+
+    public void add(String series, long amount) {
+        counters.computeIfAbsent(series, k -> new LongAdder()).add(amount);
+    }
+
+    /** Fija un valor instantáneo, como el tamaño de algo recién calculado. */
+    public void set(String series, long value) {
+        values.computeIfAbsent(series, k -> new AtomicLong()).set(value);
+    }
+
+    /** Valor instantáneo que se mide en cada consulta de las métricas. */
+    public void gauge(String series, LongSupplier value) {
+        gauges.put(series, value);
+    }
+
+    /** Registra el tiempo transcurrido desde {@code startNanos} ({@link System#nanoTime}). */
+    public void time(String series, long startNanos) {
+        timers.computeIfAbsent(series, k -> new LatencyHistogram()).record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    /** Tiempo de una fase del cálculo. */
+    public void phase(String phase, long startNanos) {
+        time(series("phase_seconds", "phase", phase), startNanos);
+    }
+
+    /**
+     * Envuelve un manejador para contar sus peticiones por código de respuesta y medir su
+     * duración. Los manejadores del coordinador responden desde otros hilos, así que la petición
+     * termina cuando se cierra el cuerpo de la respuesta y no cuando vuelve el manejador.
+     */
+    public HttpHandler timed(String path, HttpHandler handler) {
+        String duration = series("request_seconds", "path", path);
+        return exchange -> {
+            long start = System.nanoTime();
+            AtomicBoolean finished = new AtomicBoolean();
+            OutputStream body = exchange.getResponseBody();
+            exchange.setStreams(null, new FilterOutputStream(body) {
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    out.write(bytes, offset, length);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (finished.compareAndSet(false, true)) {
+                            time(duration, start);
+                            increment("requests_total{path=\"" + path + "\",status=\"" + exchange.getResponseCode() + "\"}");
+                        }
+                    }
+                }
+            });
+            handler.handle(exchange);
+        };
+    }
+
+    /** Manejador de {@code GET /metrics}. */
+    public HttpHandler handler() {
+        return exchange -> {
+            byte[] response = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=UTF-8");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(response);
+            }
+        };
+    }
+
+    /** Todas las series, agrupadas por nombre y ordenadas. */
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        Map<String, Long> counted = new TreeMap<>();
+        counters.forEach((series, counter) -> counted.put(series, counter.sum()));
+        appendValues(out, counted, "counter");
+
+        Map<String, Long> measured = new TreeMap<>();
+        values.forEach((series, value) -> measured.put(series, value.get()));
+        gauges.forEach((series, value) -> measured.put(series, value.getAsLong()));
+        appendValues(out, measured, "gauge");
+
+        String lastName = null;
+        for (Map.Entry<String, LatencyHistogram> entry : new ConcurrentSkipListMap<>(timers).entrySet()) {
+            String name = baseName(entry.getKey());
+            String labels = labels(entry.getKey());
+            LatencyHistogram histogram = entry.getValue();
+            if (!name.equals(lastName)) {
+                out.append("# TYPE ").append(name).append(" summary\n");
+                lastName = name;
+            }
+            for (double quantile : QUANTILES) {
+                out.append(name).append('{').append(labels).append(labels.isEmpty() ? "" : ",")
+                   .append("quantile=\"").append(quantile).append("\"} ")
+                   .append(seconds(histogram.percentile(quantile))).append('\n');
+            }
+            String suffix = labels.isEmpty() ? " " : "{" + labels + "} ";
+            out.append(name).append("_sum").append(suffix).append(seconds(histogram.sum())).append('\n');
+            out.append(name).append("_count").append(suffix).append(histogram.count()).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void appendValues(StringBuilder out, Map<String, Long> series, String type) {
+        String lastName = null;
+        for (Map.Entry<String, Long> entry : series.entrySet()) {
+            String name = baseName(entry.getKey());
+            if (!name.equals(lastName)) {
+                out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+                lastName = name;
+            }
+            out.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+    }
+
+    private static String baseName(String series) {
+        int brace = series.indexOf('{');
+        return brace < 0 ? series : series.substring(0, brace);
+    }
+
+    private static String labels(String series) {
+        int brace = series.indexOf('{');
+        return brace < 0 ? "" : series.substring(brace + 1, series.length() - 1);
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+}
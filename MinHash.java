@@ -0,0 +1,77 @@
+import java.util.Arrays;
+
+/**
+ * Firmas MinHash de los conjuntos de n-gramas, para estimar la similitud de Jaccard entre dos
+ * libros sin cruzar sus conjuntos, y bandas LSH para encontrar los pares parecidos sin comparar
+ * todos con todos. Se usa una sola permutación (el hash del n-grama vuelto a mezclar) repartida
+ * en {@link #SIZE} cubetas: cada posición de la firma es el mínimo de su cubeta, de modo que la
+ * firma cuesta una pasada por el conjunto. Las cubetas vacías (solo en libros muy cortos) toman
+ * el valor de la siguiente que no lo está, desplazado según la distancia.
+ */
+public class MinHash {
+    /** Posiciones de cada firma. */
+    public static final int SIZE = 128;
+    private static final int BIN_BITS = 7;
+    private static final long SEED = 0x2545f4914f6cdd1dL;
+    private static final long EMPTY = Long.MAX_VALUE;
+    /** Desplazamiento por cubeta de distancia al rellenar las vacías; evita igualdades casuales. */
+    private static final long OFFSET = 0x9e3779b97f4a7c15L;
+
+    private MinHash() {
+    }
+
+    public static long[] signature(NGramSet set) {
+        long[] signature = new long[SIZE];
+        Arrays.fill(signature, EMPTY);
+        for (int i = 0; i < set.size(); i++) {
+            long hash = WordDictionary.mix(set.hash(i) ^ SEED);
+            int bin = (int) (hash >>> (Long.SIZE - BIN_BITS));
+            long value = hash & (EMPTY >>> BIN_BITS);
+            if (value < signature[bin]) signature[bin] = value;
+        }
+        if (set.size() == 0) return signature;
+
+        for (int bin = 0; bin < SIZE; bin++) {
+            if (signature[bin] != EMPTY) continue;
+            int distance = 1;
+            while (signature[(bin + distance) % SIZE] == EMPTY || signature[(bin + distance) % SIZE] < 0) {
+                distance++;
+            }
+            // Negativo para distinguirlo de los mínimos propios; no se toma como origen de otra cubeta
+            signature[bin] = (signature[(bin + distance) % SIZE] + distance * OFFSET) | Long.MIN_VALUE;
+        }
+        return signature;
+    }
+
+    /** Estimación de la similitud de Jaccard: fracción de posiciones iguales de las firmas. */
+    public static double similarity(long[] first, long[] second) {
+        int equal = 0;
+        for (int i = 0; i < SIZE; i++) {
+            if (first[i] == second[i]) equal++;
+        }
+        return equal / (double) SIZE;
+    }
+
+    /**
+     * Filas por banda para un umbral de similitud: las mayores cuyo umbral aproximado de LSH,
+     * {@code (1 / bandas) ^ (1 / filas)}, no pasa del pedido. Con más filas hay menos candidatos
+     * falsos; quedarse por debajo del umbral evita perder pares que lo superan.
+     */
+    public static int rowsPerBand(double threshold) {
+        int best = 1;
+        for (int rows = 1; rows <= SIZE; rows++) {
+            int bands = SIZE / rows;
+            if (Math.pow(1.0 / bands, 1.0 / rows) <= threshold) best = rows;
+        }
+        return best;
+    }
+
+    /** Clave de la banda {@code band} de una firma: los libros con la misma clave son candidatos. */
+    public static long bandKey(long[] signature, int band, int rows) {
+        long key = band;
+        for (int i = band * rows; i < (band + 1) * rows; i++) {
+            key = WordDictionary.mix(key * 31 + signature[i]);
+        }
+        return key;
+    }
+}
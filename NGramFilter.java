@@ -0,0 +1,92 @@
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Descarta los n-gramas triviales antes de emitirlos: los formados solo por palabras vacías
+ * ("de la", "en el que") y los presentes en demasiados libros. La frecuencia de documento de un
+ * n-grama es el número de libros que lo contienen, la misma lista que ya se calcula al cruzarlos,
+ * así que filtrar no cuesta una pasada más. Los n-gramas se comparan como conjuntos (cada libro
+ * lo tiene o no), de modo que un mínimo de TF-IDF equivale a un máximo de libros.
+ * Lo aplican los servidores de procesamiento, salvo el máximo de libros en la búsqueda global,
+ * que aplica el coordinador después de unir las huellas de todos ellos.
+ */
+public class NGramFilter {
+    public static final NGramFilter NONE = new NGramFilter(false, 0);
+
+    /** Palabras vacías del español, ya normalizadas como los libros (minúsculas, solo letras). */
+    private static final Set<String> STOPWORDS = Set.of(
+            "a", "al", "algo", "algún", "alguna", "algunas", "alguno", "algunos", "ante", "antes", "aquel",
+            "aquella", "aquello", "aquí", "así", "aún", "bien", "cada", "casi", "como", "cómo", "con", "contra",
+            "cual", "cuál", "cuando", "cuándo", "cuanto", "de", "del", "desde", "donde", "dónde", "durante", "e",
+            "el", "él", "ella", "ellas", "ello", "ellos", "en", "entonces", "entre", "era", "eran", "es", "esa",
+            "esas", "ese", "eso", "esos", "esta", "está", "estaba", "están", "estas", "este", "esto", "estos",
+            "fue", "ha", "había", "han", "hasta", "hay", "la", "las", "le", "les", "lo", "los", "más", "me",
+            "mi", "mis", "mucho", "muy", "nada", "ni", "no", "nos", "nosotros", "o", "os", "otra", "otro",
+            "para", "pero", "poco", "por", "porque", "qué", "que", "quien", "quién", "se", "sea", "ser", "si",
+            "sí", "sin", "sobre", "son", "su", "sus", "también", "tan", "te", "tenía", "ti", "tiene", "todo",
+            "todos", "tu", "tú", "tus", "u", "un", "una", "unas", "uno", "unos", "usted", "y", "ya", "yo");
+
+    /** Solo n-gramas con alguna palabra que no sea vacía. */
+    public final boolean stopwords;
+    /** Máximo de libros en los que puede estar un n-grama; 0 sin límite. */
+    public final int maxBooks;
+
+    public NGramFilter(boolean stopwords, int maxBooks) {
+        this.stopwords = stopwords;
+        this.maxBooks = Math.max(0, maxBooks);
+    }
+
+    /** Filtro de los parámetros {@code stopwords} y {@code maxBooks} de una petición. */
+    public static NGramFilter of(Map<String, String> params) {
+        boolean stopwords = Boolean.parseBoolean(params.get("stopwords"));
+        int maxBooks = Integer.parseInt(params.getOrDefault("maxBooks", "0"));
+        return stopwords || maxBooks > 0 ? new NGramFilter(stopwords, maxBooks) : NONE;
+    }
+
+    public boolean isActive() {
+        return stopwords || maxBooks > 0;
+    }
+
+    /** Parámetros para reenviar el filtro a los servidores de procesamiento. */
+    public String toForm() {
+        return "&stopwords=" + stopwords + "&maxBooks=" + maxBooks;
+    }
+
+    /** Con más de {@code maxBooks} libros el n-grama es demasiado común. */
+    public boolean tooCommon(int books) {
+        return maxBooks > 0 && books > maxBooks;
+    }
+
+    /** Si hay que descartar un n-grama de texto conocido presente en {@code books} libros. */
+    public boolean rejects(String phrase, int books) {
+        if (tooCommon(books)) return true;
+        if (!stopwords) return false;
+        for (String word : phrase.split(" ")) {
+            if (!STOPWORDS.contains(word)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Si hay que descartar el n-grama del libro del shard por estar formado solo por palabras
+     * vacías. El máximo de libros no se comprueba: con las huellas de una partición el servidor
+     * solo ve sus libros, y lo aplica el coordinador al unirlas.
+     */
+    public boolean onlyStopwords(Shard shard, int bookId, int position, int nWords) {
+        if (!stopwords) return false;
+        for (int k = position; k < position + nWords; k++) {
+            if (!STOPWORDS.contains(shard.wordAt(bookId, k))) return false;
+        }
+        return true;
+    }
+
+    /** Descripción para los registros, vacía si no filtra nada. */
+    public String describe() {
+        if (!isActive()) return "";
+        StringBuilder description = new StringBuilder(" (sin");
+        if (stopwords) description.append(" frases de solo palabras vacías");
+        if (stopwords && maxBooks > 0) description.append(" ni");
+        if (maxBooks > 0) description.append(" frases en más de ").append(maxBooks).append(" libros");
+        return description.append(')').toString();
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.*;
+
+/**
+ * Índice invertido de n-gramas de un tamaño fijo: hash del n-grama -> libros que lo contienen.
+ * Solo se conservan los n-gramas presentes en al menos dos libros, que son los únicos que
+ * pueden producir coincidencias. Las listas de libros se guardan contiguas en un único arreglo.
+ */
+public class NGramIndex {
+    private final int nWords;
+    private final long[] hashes;
+    private final String[] phrases;
+    private final int[] postingStarts;
+    private final int[] postingBooks;
+
+    private NGramIndex(int nWords, long[] hashes, String[] phrases, int[] postingStarts, int[] postingBooks) {
+        this.nWords = nWords;
+        this.hashes = hashes;
+        this.phrases = phrases;
+        this.postingStarts = postingStarts;
+        this.postingBooks = postingBooks;
+    }
+
+    public int getNWords() {
+        return nWords;
+    }
+
+    /** Número de n-gramas compartidos por dos o más libros. */
+    public int size() {
+        return phrases.length;
+    }
+
+    /** Hash del n-grama; las entradas están en orden ascendente de hash (con signo). */
+    public long getHash(int entry) {
+        return hashes[entry];
+    }
+
+    /** Primera entrada cuyo hash pertenece a una partición igual o posterior a {@code partition}. */
+    public int partitionStart(int partition, int partitions) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (NGramSet.partitionOf(hashes[mid], partitions) < partition) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    public String getPhrase(int entry) {
+        return phrases[entry];
+    }
+
+    public int getBookCount(int entry) {
+        return postingStarts[entry + 1] - postingStarts[entry];
+    }
+
+    /** Libros del n-grama en orden ascendente de identificador. */
+    public int getBook(int entry, int i) {
+        return postingBooks[postingStarts[entry] + i];
+    }
+
+    /** Une índices parciales (por ejemplo, de rangos de hash distintos) conservando su orden. */
+    public static NGramIndex concat(int nWords, List<NGramIndex> parts) {
+        int entries = 0;
+        int books = 0;
+        for (NGramIndex part : parts) {
+            entries += part.size();
+            books += part.postingBooks.length;
+        }
+
+        long[] hashes = new long[entries];
+        String[] phrases = new String[entries];
+        int[] postingStarts = new int[entries + 1];
+        int[] postingBooks = new int[books];
+        int entryOffset = 0;
+        int bookOffset = 0;
+        for (NGramIndex part : parts) {
+            System.arraycopy(part.hashes, 0, hashes, entryOffset, part.size());
+            System.arraycopy(part.phrases, 0, phrases, entryOffset, part.size());
+            for (int entry = 1; entry <= part.size(); entry++) {
+                postingStarts[entryOffset + entry] = bookOffset + part.postingStarts[entry];
+            }
+            System.arraycopy(part.postingBooks, 0, postingBooks, bookOffset, part.postingBooks.length);
+            entryOffset += part.size();
+            bookOffset += part.postingBooks.length;
+        }
+        return new NGramIndex(nWords, hashes, phrases, postingStarts, postingBooks);
+    }
+
+    /** Acumula los n-gramas compartidos en el orden en que se añaden. */
+    public static class Builder {
+        private final int nWords;
+        private final List<String> phrases = new ArrayList<>();
+        private long[] hashes = new long[1024];
+        private int[] postingStarts = new int[1024];
+        private int[] postingBooks = new int[2048];
+        private int booksSize;
+
+        public Builder(int nWords) {
+            this.nWords = nWords;
+        }
+
+        /**
+         * Añade un n-grama con los {@code count} primeros libros de {@code books}, ya ordenados.
+         * Los n-gramas se añaden en orden ascendente de hash.
+         */
+        public void add(long hash, String phrase, int[] books, int count) {
+            int entry = phrases.size();
+            phrases.add(phrase);
+            if (entry + 2 > postingStarts.length) {
+                postingStarts = Arrays.copyOf(postingStarts, postingStarts.length * 2);
+            }
+            if (entry + 1 > hashes.length) {
+                hashes = Arrays.copyOf(hashes, hashes.length * 2);
+            }
+            hashes[entry] = hash;
+            if (booksSize + count > postingBooks.length) {
+                postingBooks = Arrays.copyOf(postingBooks, Math.max(postingBooks.length * 2, booksSize + count));
+            }
+            System.arraycopy(books, 0, postingBooks, booksSize, count);
+            booksSize += count;
+            postingStarts[entry + 1] = booksSize;
+        }
+
+        public NGramIndex build() {
+            int entries = phrases.size();
+            return new NGramIndex(nWords, Arrays.copyOf(hashes, entries), phrases.toArray(new String[0]),
+                    Arrays.copyOf(postingStarts, entries + 1), Arrays.copyOf(postingBooks, booksSize));
+        }
+    }
+}
@@ -0,0 +1,263 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * N-gramas distintos de un libro para un tamaño fijo: hashes ordenados (orden con signo de
+ * {@code long}) y, en paralelo, la primera posición del libro donde aparece cada uno. Puede
+ * residir en el heap o en un archivo mapeado de la instantánea.
+ */
+public class NGramSet {
+    private final LongBuffer hashes;
+    private final IntBuffer positions;
+
+    private NGramSet(LongBuffer hashes, IntBuffer positions) {
+        this.hashes = hashes;
+        this.positions = positions;
+    }
+
+    public int size() {
+        return hashes.limit();
+    }
+
+    public long hash(int i) {
+        return hashes.get(i);
+    }
+
+    public int position(int i) {
+        return positions.get(i);
+    }
+
+    /** Índice del hash en el conjunto, o -1 si el libro no tiene ese n-grama. */
+    public int indexOf(long hash) {
+        int low = 0;
+        int high = size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long value = hashes.get(mid);
+            if (value < hash) {
+                low = mid + 1;
+            } else if (value > hash) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /** Primer índice cuyo hash pertenece a una partición igual o posterior a {@code partition}. */
+    public int partitionStart(int partition, int partitions) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (partitionOf(hashes.get(mid), partitions) < partition) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Partición por rangos del espacio de hashes. Es monótona respecto al orden con signo de
+     * {@code long}, de modo que cada partición es un tramo contiguo de un conjunto ordenado.
+     */
+    public static int partitionOf(long hash, int partitions) {
+        return (int) ((((hash ^ Long.MIN_VALUE) >>> 32) * partitions) >>> 32);
+    }
+
+    public static NGramSet of(TokenizedBook book, int nWords, WordDictionary dictionary) {
+        int capacity = Math.max(0, book.tokenCount() - nWords + 1);
+        long[] hashes = new long[capacity];
+        int[] positions = new int[capacity];
+        int[] size = { 0 };
+        book.forEachNGram(nWords, dictionary, (hash, position) -> {
+            hashes[size[0]] = hash;
+            positions[size[0]++] = position;
+        });
+        return sorted(hashes, positions, size[0]);
+    }
+
+    /**
+     * Conjuntos de todos los tamaños de {@code minWords} a {@code maxWords} con una sola pasada
+     * por los tokens del libro; el de {@code n} palabras queda en la posición {@code n - minWords}.
+     */
+    public static NGramSet[] ofRange(TokenizedBook book, int minWords, int maxWords, WordDictionary dictionary) {
+        int sizes = maxWords - minWords + 1;
+        long[][] hashes = new long[sizes][];
+        int[][] positions = new int[sizes][];
+        int[] counts = new int[sizes];
+        for (int i = 0; i < sizes; i++) {
+            int capacity = Math.max(0, book.tokenCount() - (minWords + i) + 1);
+            hashes[i] = new long[capacity];
+            positions[i] = new int[capacity];
+        }
+        book.forEachNGram(minWords, maxWords, dictionary, (nWords, hash, position) -> {
+            int i = nWords - minWords;
+            hashes[i][counts[i]] = hash;
+            positions[i][counts[i]++] = position;
+        });
+
+        NGramSet[] sets = new NGramSet[sizes];
+        for (int i = 0; i < sizes; i++) {
+            sets[i] = sorted(hashes[i], positions[i], counts[i]);
+            // Cada conjunto ya ordenado tiene su copia: los arreglos de trabajo pueden liberarse
+            hashes[i] = null;
+            positions[i] = null;
+        }
+        return sets;
+    }
+
+    private static NGramSet sorted(long[] hashes, int[] positions, int size) {
+        radixSort(hashes, positions, size);
+
+        // El orden es estable: el primero de cada grupo es la aparición más temprana
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || hashes[i] != hashes[unique - 1]) {
+                hashes[unique] = hashes[i];
+                positions[unique++] = positions[i];
+            }
+        }
+        return new NGramSet(LongBuffer.wrap(Arrays.copyOf(hashes, unique)), IntBuffer.wrap(Arrays.copyOf(positions, unique)));
+    }
+
+    /**
+     * Guarda versión, tamaño, hashes y posiciones. Se escribe en un temporal propio y se renombra,
+     * de modo que dos construcciones simultáneas del mismo conjunto no se pisan y quien ya tiene
+     * mapeado el archivo anterior lo sigue leyendo entero.
+     */
+    public void writeTo(Path file) throws IOException {
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName() + ".", ".tmp");
+        try {
+            write(temp);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    private void write(Path temp) throws IOException {
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.nativeOrder());
+            buffer.putInt(IndexSnapshot.VERSION).putInt(size());
+            for (int i = 0; i < size(); i++) {
+                if (buffer.remaining() < Long.BYTES) flush(buffer, channel);
+                buffer.putLong(hashes.get(i));
+            }
+            for (int i = 0; i < size(); i++) {
+                if (buffer.remaining() < Integer.BYTES) flush(buffer, channel);
+                buffer.putInt(positions.get(i));
+            }
+            flush(buffer, channel);
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /** Mapea un archivo escrito con {@link #writeTo}; devuelve null si es de otra versión. */
+    public static NGramSet map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.nativeOrder());
+            if (channel.size() < 2 * Integer.BYTES || mapped.getInt(0) != IndexSnapshot.VERSION) return null;
+            int size = mapped.getInt(Integer.BYTES);
+            if (channel.size() != 2L * Integer.BYTES + (long) size * (Long.BYTES + Integer.BYTES)) return null;
+
+            LongBuffer hashes = mapped.duplicate().position(2 * Integer.BYTES).limit(2 * Integer.BYTES + size * Long.BYTES)
+                    .slice().order(ByteOrder.nativeOrder()).asLongBuffer();
+            IntBuffer positions = mapped.duplicate().position(2 * Integer.BYTES + size * Long.BYTES)
+                    .slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+            return new NGramSet(hashes, positions);
+        }
+    }
+
+    /** Radix sort LSD de 8 bits, estable, que arrastra las posiciones junto a cada hash. */
+    private static void radixSort(long[] keys, int[] values, int length) {
+        if (length == 0) return;
+        long[] keyBuffer = new long[length];
+        int[] valueBuffer = new int[length];
+        int[] counts = new int[256];
+
+        for (int shift = 0; shift < 64; shift += 8) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < length; i++) {
+                counts[digit(keys[i], shift)]++;
+            }
+            if (counts[digit(keys[0], shift)] == length) continue;
+
+            for (int d = 0, offset = 0; d < 256; d++) {
+                int count = counts[d];
+                counts[d] = offset;
+                offset += count;
+            }
+            for (int i = 0; i < length; i++) {
+                int target = counts[digit(keys[i], shift)]++;
+                keyBuffer[target] = keys[i];
+                valueBuffer[target] = values[i];
+            }
+            System.arraycopy(keyBuffer, 0, keys, 0, length);
+            System.arraycopy(valueBuffer, 0, values, 0, length);
+        }
+    }
+
+    private static int digit(long key, int shift) {
+        // Invertir el bit de signo hace que el orden sin signo coincida con el orden con signo
+        return (int) ((key ^ Long.MIN_VALUE) >>> shift) & 0xFF;
+    }
+
+    /** Recibe cada hash presente en alguno de los conjuntos, con los conjuntos que lo contienen. */
+    public interface GroupSink {
+        void accept(long hash, int[] members, int[] positions, int count);
+    }
+
+    /**
+     * Mezcla lineal de los tramos {@code [from[i], to[i])} de cada conjunto, en orden de hash.
+     * Los arreglos que recibe el sink se reutilizan entre llamadas.
+     */
+    public static void merge(NGramSet[] sets, int[] from, int[] to, GroupSink sink) {
+        int[] cursor = from.clone();
+        int[] members = new int[sets.length];
+        int[] positions = new int[sets.length];
+
+        while (true) {
+            long min = 0;
+            boolean found = false;
+            for (int i = 0; i < sets.length; i++) {
+                if (cursor[i] < to[i] && (!found || sets[i].hashes.get(cursor[i]) < min)) {
+                    min = sets[i].hashes.get(cursor[i]);
+                    found = true;
+                }
+            }
+            if (!found) return;
+
+            int count = 0;
+            for (int i = 0; i < sets.length; i++) {
+                if (cursor[i] < to[i] && sets[i].hashes.get(cursor[i]) == min) {
+                    members[count] = i;
+                    positions[count++] = sets[i].positions.get(cursor[i]++);
+                }
+            }
+            sink.accept(min, members, positions, count);
+        }
+    }
+}
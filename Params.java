@@ -0,0 +1,38 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Lectura de parámetros, compartida por el servidor web, los de procesamiento y la consola: el
+ * cuerpo de los formularios ({@code clave=valor&...}) y las variables de entorno de configuración,
+ * que sin valor o en blanco toman el de por defecto.
+ */
+final class Params {
+    private Params() {
+    }
+
+    static Map<String, String> parseForm(String body) {
+        Map<String, String> params = new HashMap<>();
+        for (String pair : body.split("&")) {
+            String[] keyValue = pair.split("=", 2);
+            if (keyValue.length == 2) {
+                params.put(keyValue[0].trim(), keyValue[1].trim());
+            }
+        }
+        return params;
+    }
+
+    static String env(String name, String defaultValue) {
+        String configured = System.getenv(name);
+        return configured != null && !configured.isBlank() ? configured.trim() : defaultValue;
+    }
+
+    static int envInt(String name, int defaultValue) {
+        String configured = env(name, null);
+        return configured != null ? Integer.parseInt(configured) : defaultValue;
+    }
+
+    static long envLong(String name, long defaultValue) {
+        String configured = env(name, null);
+        return configured != null ? Long.parseLong(configured) : defaultValue;
+    }
+}
@@ -0,0 +1,441 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+/**
+ * Búsqueda de pasajes: en lugar de cada n-grama compartido, los tramos más largos comunes a dos
+ * libros, una vez cada uno. Las huellas llegan con la primera posición del n-grama en cada libro
+ * y cada n-grama compartido es una semilla (posición en cada libro) de su par. Las semillas de un
+ * par con la misma diferencia de posiciones (diagonal) que se solapan o quedan cerca forman un
+ * candidato; después se piden las palabras de los dos tramos, con un margen de
+ * {@code nWords - 1} a cada lado, y se comparan para quedarse con las secuencias iguales de al
+ * menos {@code nWords} palabras. Así un pasaje sigue aunque cruce líneas, donde no hay n-gramas.
+ * En el modo local solo se cruzan libros del mismo grupo.
+ *
+ * <p>Los conjuntos de n-gramas guardan solo la primera aparición de cada uno, así que solo hay
+ * semilla allí. Un pasaje cuyos n-gramas aparecen todos antes en alguno de los dos libros (un
+ * párrafo repetido, o uno hecho de frases muy comunes) no se encuentra en esa segunda aparición;
+ * si solo se repiten algunos, basta con que quede una semilla para encontrarlo entero.
+ */
+class PassageSearch {
+    /** Candidatos a pasaje que se comprueban con cada petición de texto a los servidores. */
+    private static final int PASSAGE_BATCH = 8192;
+    /** Semillas que se guardan a la vez (8 bytes cada una); con más, los pares se reparten en rondas. */
+    private static final long MAX_SEEDS = 1 << 23;
+    /**
+     * Semillas por ronda que se buscan al repartir: la mitad del máximo, porque el hash del par
+     * no reparte las semillas exactamente por igual.
+     */
+    private static final long ROUND_SEEDS = MAX_SEEDS / 2;
+    /** Rondas como máximo; cada una vuelve a pedir todas las huellas. Con más, se rechaza la búsqueda. */
+    private static final int MAX_ROUNDS = 32;
+
+    /**
+     * Unión de las huellas de una partición, con la primera posición de cada n-grama en cada
+     * libro; entrega cada n-grama compartido a {@code shared} según se une. Anota el nombre y el
+     * grupo de cada libro que aparece.
+     */
+    interface Fingerprints {
+        CompletableFuture<Void> merge(int partition, int partitions, Map<Integer, String> bookNames,
+                                      Map<Integer, Integer> bookServers, Consumer<WebServer.SharedNGram> shared);
+    }
+
+    private final WebServer.Search search;
+    private final Fingerprints fingerprints;
+    private final HedgedClient client;
+    private final ExecutorService workers;
+    private final Map<Integer, String> bookNames = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> bookServers = new ConcurrentHashMap<>();
+    /** Errores de la primera pasada, que llega antes de empezar la respuesta. */
+    private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+    private Round first;
+
+    PassageSearch(WebServer.Search search, Fingerprints fingerprints, HedgedClient client, ExecutorService workers) {
+        this.search = search;
+        this.fingerprints = fingerprints;
+        this.client = client;
+        this.workers = workers;
+    }
+
+    /**
+     * Primera pasada por las huellas, antes de responder: cuenta las semillas de todos los pares
+     * y las guarda si no pasan de {@link #MAX_SEEDS}. Así, si son demasiadas, aún puede
+     * rechazarse la búsqueda.
+     */
+    CompletableFuture<Void> seed() {
+        first = new Round(0, 1);
+        return collect(first, errors::add);
+    }
+
+    /** Rondas necesarias para que las semillas de cada una quepan en memoria. */
+    private int rounds() {
+        return first.seeds != null ? 1 : (int) Math.min(Integer.MAX_VALUE, (first.total + ROUND_SEEDS - 1) / ROUND_SEEDS);
+    }
+
+    /**
+     * Motivo para rechazar la búsqueda si hay más semillas de las que se admiten aun
+     * repartiéndolas en {@link #MAX_ROUNDS} rondas; si no, null.
+     */
+    String rejection() {
+        if (rounds() <= MAX_ROUNDS) return null;
+        return "Demasiadas coincidencias para buscar pasajes de " + search.nWords + " palabras: " + first.total
+                + " semillas, el máximo es " + MAX_ROUNDS * ROUND_SEEDS + "; usa un nWords mayor, maxBooks o stopwords=true";
+    }
+
+    /**
+     * Entrega los pasajes. Si las semillas cupieron en la primera pasada se comprueban ya; si
+     * no, los pares se reparten por su hash en rondas y cada una vuelve a pedir las huellas y
+     * guarda solo las semillas de sus pares, de modo que la memoria no depende del número total
+     * de semillas. Cada par entra entero en una ronda, así que el resultado es el mismo.
+     */
+    CompletableFuture<Void> run() {
+        for (String error : errors) {
+            search.error(error);
+        }
+        search.books(bookNames);
+        int rounds = rounds();
+        if (rounds == 1) return verify(first);
+        Log.debug(() -> first.total + " semillas: los pares se reparten en " + rounds + " rondas");
+        return runRounds(0, rounds);
+    }
+
+    private CompletableFuture<Void> runRounds(int round, int rounds) {
+        if (round == rounds || search.cancelled()) return CompletableFuture.completedFuture(null);
+        Round next = new Round(round, rounds);
+        return collect(next, search::error)
+                .thenComposeAsync(ignored -> verify(next), workers)
+                .thenCompose(ignored -> runRounds(round + 1, rounds));
+    }
+
+    /** Une las huellas de todas las particiones a la vez y añade las semillas a {@code round}. */
+    private CompletableFuture<Void> collect(Round round, Consumer<String> errors) {
+        int partitions = search.view.groups.size();
+        Log.debug(() -> "Buscando semillas en " + partitions + " particiones (ronda " + (round.round + 1) + " de " + round.rounds + ")...");
+        List<CompletableFuture<Void>> merges = new ArrayList<>();
+        for (int p = 0; p < partitions; p++) {
+            final int partition = p;
+            merges.add(fingerprints.merge(partition, partitions, bookNames, bookServers, round::add)
+                    .exceptionally(error -> {
+                        errors.accept("partición " + (partition + 1) + ": " + WebServer.rootMessage(error));
+                        return null;
+                    }));
+        }
+        return CompletableFuture.allOf(merges.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Une las semillas de la ronda par a par y comprueba los candidatos por lotes de
+     * {@link #PASSAGE_BATCH}, cada lote antes de unir el siguiente. Las semillas de un par se
+     * sueltan al unirlas y los inicios de sus pasajes al terminar con él: además de las semillas
+     * de la ronda, solo se guardan un lote de candidatos y los de un par.
+     */
+    private CompletableFuture<Void> verify(Round round) {
+        if (round.seeds == null) {
+            search.error("ronda " + (round.round + 1) + " de " + round.rounds + ": " + round.total
+                    + " semillas, más de las " + MAX_SEEDS + " que caben; se omiten sus pares");
+            return CompletableFuture.completedFuture(null);
+        }
+        Log.debug(() -> round.total + " semillas en " + round.seeds.size() + " pares de libros");
+        return verifySpans(round.seeds.entrySet().iterator(), new ArrayList<>(), new TreeMap<>());
+    }
+
+    private CompletableFuture<Void> verifySpans(Iterator<Map.Entry<Long, Seeds>> pairs, List<Span> pending,
+                                                TreeMap<Long, Set<Long>> found) {
+        while (pending.size() < PASSAGE_BATCH && pairs.hasNext()) {
+            chainSeeds(pairs.next(), search.nWords, pending);
+            pairs.remove();
+        }
+        if (pending.isEmpty() || search.cancelled()) return CompletableFuture.completedFuture(null);
+        List<Span> batch = new ArrayList<>(pending.subList(0, Math.min(pending.size(), PASSAGE_BATCH)));
+        pending.subList(0, batch.size()).clear();
+        return verifyBatch(batch, found).thenCompose(ignored -> {
+            // Los candidatos van por par: los pares anteriores al siguiente ya están terminados
+            if (pending.isEmpty()) {
+                found.clear();
+            } else {
+                found.headMap(WebServer.pairKey(pending.get(0).first, pending.get(0).second)).clear();
+            }
+            return verifySpans(pairs, pending, found);
+        });
+    }
+
+    /**
+     * Une las semillas de un par por diagonal y posición y añade los candidatos a
+     * {@code spans}. Dos semillas van al mismo candidato si entre sus n-gramas quedan como
+     * mucho {@code 2 * (nWords - 1)} palabras: los márgenes de candidatos distintos no se
+     * solapan y ningún pasaje sale dos veces.
+     */
+    private static void chainSeeds(Map.Entry<Long, Seeds> pair, int nWords, List<Span> spans) {
+        int maxGap = 2 * (nWords - 1);
+        int first = (int) (pair.getKey() >>> 32);
+        int second = (int) (long) pair.getKey();
+        long[] values = pair.getValue().values;
+        int size = pair.getValue().size;
+        Arrays.sort(values, 0, size);
+        int i = 0;
+        while (i < size) {
+            int diagonal = (int) (values[i] >> 32);
+            int start = (int) values[i];
+            int end = start + nWords;
+            int j = i + 1;
+            while (j < size && (int) (values[j] >> 32) == diagonal && (int) values[j] <= end + maxGap) {
+                end = Math.max(end, (int) values[j] + nWords);
+                j++;
+            }
+            spans.add(new Span(first, second, diagonal, start, end, nWords - 1, false));
+            i = j;
+        }
+    }
+
+    /**
+     * Pide las palabras de los dos tramos de cada candidato al grupo que tiene cada libro y
+     * busca en ellos los pasajes. Los que llegan al borde de lo pedido (entre líneas muy
+     * cortas faltan n-gramas) se vuelven a comprobar con más margen antes de seguir. Un
+     * pasaje largo puede alcanzarse desde varias semillas: {@code found} guarda el inicio de
+     * los ya entregados, por par y diagonal, para entregar cada uno una sola vez.
+     */
+    private CompletableFuture<Void> verifyBatch(List<Span> batch, Map<Long, Set<Long>> found) {
+        // Por grupo, los tramos pedidos; por candidato, dónde está cada uno de sus dos tramos
+        Map<Integer, List<int[]>> requests = new HashMap<>();
+        int[][] slots = new int[batch.size()][];
+        for (int k = 0; k < batch.size(); k++) {
+            Span span = batch.get(k);
+            int left = span.left();
+            int length = span.length();
+            int firstServer = bookServers.get(span.first);
+            int secondServer = bookServers.get(span.second);
+            List<int[]> firstRequests = requests.computeIfAbsent(firstServer, s -> new ArrayList<>());
+            int firstSlot = firstRequests.size();
+            firstRequests.add(new int[] { span.first, span.start - left, length });
+            // Si los dos libros están en el mismo grupo, las dos listas son la misma
+            List<int[]> secondRequests = requests.computeIfAbsent(secondServer, s -> new ArrayList<>());
+            int secondSlot = secondRequests.size();
+            secondRequests.add(new int[] { span.second, span.start + span.diagonal - left, length });
+            slots[k] = new int[] { firstServer, firstSlot, secondServer, secondSlot };
+        }
+        Map<Integer, CompletableFuture<List<SpanText>>> texts = new HashMap<>();
+        for (Map.Entry<Integer, List<int[]>> entry : requests.entrySet()) {
+            int server = entry.getKey();
+            texts.put(server, fetchText(server, entry.getValue()).exceptionally(error -> {
+                search.error("grupo " + (server + 1) + ": " + WebServer.rootMessage(error));
+                return null;
+            }));
+        }
+
+        return CompletableFuture.allOf(texts.values().toArray(new CompletableFuture<?>[0])).thenComposeAsync(ignored -> {
+            List<WebServer.Passage> passages = new ArrayList<>();
+            List<Span> extensions = new ArrayList<>();
+            long words = 0;
+            Map<Long, int[]> pairCounts = new HashMap<>();
+            for (int k = 0; k < batch.size(); k++) {
+                List<SpanText> firstTexts = texts.get(slots[k][0]).join();
+                List<SpanText> secondTexts = texts.get(slots[k][2]).join();
+                if (firstTexts == null || secondTexts == null) continue;
+                Span span = batch.get(k);
+                int before = passages.size();
+                long pair = WebServer.pairKey(span.first, span.second);
+                findPassages(span, firstTexts.get(slots[k][1]), secondTexts.get(slots[k][3]), search.nWords,
+                        found.computeIfAbsent(pair, key -> new HashSet<>()), passages, extensions);
+                for (int i = before; i < passages.size(); i++) {
+                    words += passages.get(i).words;
+                }
+                if (search.pairs && passages.size() > before) {
+                    pairCounts.computeIfAbsent(pair, key -> new int[1])[0] += passages.size() - before;
+                }
+            }
+            search.count(passages.size(), words, pairCounts);
+            search.passages(passages);
+            if (extensions.isEmpty() || search.cancelled()) return CompletableFuture.completedFuture(null);
+            return verifyBatch(mergeOverlapping(extensions), found);
+        }, workers);
+    }
+
+    /**
+     * Secuencias iguales de al menos {@code nWords} palabras en los dos tramos de un
+     * candidato. Las que llegan a un borde que no es el principio o el final de un libro
+     * pueden seguir: en lugar de entregarlas se añaden a {@code extensions} con ocho veces
+     * más margen. {@code found} tiene el inicio y la diagonal de los pasajes ya entregados
+     * del par.
+     */
+    private static void findPassages(Span span, SpanText first, SpanText second, int nWords, Set<Long> found,
+                                     List<WebServer.Passage> passages, List<Span> extensions) {
+        int left = span.left();
+        int windowStart = span.start - left;
+        int length = Math.min(first.words.length, second.words.length);
+        int start = 0;
+        for (int k = 0; k <= length; k++) {
+            if (k < length && first.words[k].equals(second.words[k])) continue;
+            boolean keep = k - start >= nWords && (!span.extension || start <= left && left < k);
+            if (keep && (start == 0 && left == span.margin || k == span.length())) {
+                extensions.add(new Span(span.first, span.second, span.diagonal, windowStart + start, windowStart + k,
+                        span.margin * 8, true));
+            } else if (keep && found.add((long) span.diagonal << 32 | windowStart + start)) {
+                passages.add(new WebServer.Passage(span.first, first.lines[start], span.second, second.lines[start], k - start,
+                        String.join(" ", Arrays.asList(first.words).subList(start, k))));
+            }
+            start = k + 1;
+        }
+    }
+
+    /**
+     * Une las ampliaciones de un mismo par y diagonal que se solapan: son partes de un mismo
+     * pasaje. Llegan en el orden de los candidatos, por par, diagonal y posición.
+     */
+    private static List<Span> mergeOverlapping(List<Span> extensions) {
+        List<Span> merged = new ArrayList<>();
+        for (Span span : extensions) {
+            Span last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && last.first == span.first && last.second == span.second && last.diagonal == span.diagonal
+                    && span.start <= last.end) {
+                merged.set(merged.size() - 1, new Span(last.first, last.second, last.diagonal, last.start,
+                        Math.max(last.end, span.end), Math.max(last.margin, span.margin), true));
+            } else {
+                merged.add(span);
+            }
+        }
+        return merged;
+    }
+
+    private CompletableFuture<List<SpanText>> fetchText(int server, List<int[]> spans) {
+        ByteArrayOutputStream request = new ByteArrayOutputStream(4 + spans.size() * 12);
+        try (DataOutputStream out = new DataOutputStream(request)) {
+            out.writeInt(spans.size());
+            for (int[] span : spans) {
+                out.writeInt(span[0]);
+                out.writeInt(span[1]);
+                out.writeInt(span[2]);
+            }
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        byte[] body = request.toByteArray();
+        return client.send("text", search.view.groups.get(server), url -> WebServer.post(url + "/text", search.view.epoch,
+                        "application/octet-stream", BodyPublishers.ofByteArray(body)))
+                .thenApplyAsync(response -> {
+                    List<SpanText> texts = new ArrayList<>(spans.size());
+                    try (DataInputStream in = new DataInputStream(new BufferedInputStream(WebServer.body(response), 1 << 16))) {
+                        for (int i = 0; i < spans.size(); i++) {
+                            String[] words = new String[in.readInt()];
+                            int[] lines = new int[words.length];
+                            for (int k = 0; k < words.length; k++) {
+                                words[k] = in.readUTF();
+                                lines[k] = in.readInt();
+                            }
+                            texts.add(new SpanText(words, lines));
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return texts;
+                }, workers);
+    }
+
+    /**
+     * Semillas de los pares que tocan a la ronda {@code round} de {@code rounds} según el hash
+     * del par: por cada n-grama compartido, una por cada par de sus libros (en el modo local,
+     * del mismo grupo). Las cuenta todas, pero deja de guardarlas si pasan de {@link #MAX_SEEDS}.
+     */
+    private class Round {
+        final int round;
+        final int rounds;
+        /** Por par, sus semillas en orden de par; null si no han cabido. */
+        Map<Long, Seeds> seeds = new TreeMap<>();
+        long total;
+
+        Round(int round, int rounds) {
+            this.round = round;
+            this.rounds = rounds;
+        }
+
+        synchronized void add(WebServer.SharedNGram ngram) {
+            for (int i = 0; i < ngram.books.length; i++) {
+                for (int j = i + 1; j < ngram.books.length; j++) {
+                    if (search.local && !bookServers.get(ngram.books[i]).equals(bookServers.get(ngram.books[j]))) continue;
+                    long pair = WebServer.pairKey(ngram.books[i], ngram.books[j]);
+                    if (rounds > 1 && Math.floorMod(WordDictionary.mix(pair), rounds) != round) continue;
+                    if (++total > MAX_SEEDS) seeds = null;
+                    if (seeds == null) continue;
+                    long diagonal = ngram.positions[j] - ngram.positions[i];
+                    seeds.computeIfAbsent(pair, k -> new Seeds()).add(diagonal << 32 | ngram.positions[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Candidato a pasaje: tramo {@code [start, end)} del primer libro cuyas posiciones más
+     * {@code diagonal} dan el tramo correspondiente del segundo. Se compara con {@code margin}
+     * palabras más a cada lado; si es la ampliación de un pasaje que llegaba al borde,
+     * {@code extension} indica que solo interesa la secuencia que lo contiene.
+     */
+    private static class Span {
+        final int first;
+        final int second;
+        final int diagonal;
+        final int start;
+        final int end;
+        final int margin;
+        final boolean extension;
+
+        Span(int first, int second, int diagonal, int start, int end, int margin, boolean extension) {
+            this.first = first;
+            this.second = second;
+            this.diagonal = diagonal;
+            this.start = start;
+            this.end = end;
+            this.margin = margin;
+            this.extension = extension;
+        }
+
+        /** Margen a la izquierda, recortado al principio de los dos libros. */
+        int left() {
+            return Math.min(margin, Math.min(start, start + diagonal));
+        }
+
+        /** Palabras que se piden de cada libro; el servidor las recorta al final del libro. */
+        int length() {
+            return end - start + left() + margin;
+        }
+    }
+
+    /** Palabras de un tramo de libro y la línea del texto original de cada una. */
+    private static class SpanText {
+        final String[] words;
+        final int[] lines;
+
+        SpanText(String[] words, int[] lines) {
+            this.words = words;
+            this.lines = lines;
+        }
+    }
+
+    /** Semillas de un par de libros: (diagonal, posición en el primero) codificadas en un long. */
+    private static class Seeds {
+        long[] values = new long[16];
+        int size;
+
+        void add(long seed) {
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = seed;
+        }
+    }
+}
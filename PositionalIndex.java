@@ -0,0 +1,67 @@
+import java.util.Arrays;
+
+/**
+ * Índice posicional de los libros de un shard: para cada id de palabra, las apariciones
+ * (libro, posición del token) en orden de libro y de posición. Una frase se busca recorriendo
+ * las apariciones de su palabra menos frecuente y comparando los tokens de alrededor, sin
+ * calcular n-gramas. Las listas se guardan contiguas, como en {@link NGramIndex}.
+ */
+public class PositionalIndex {
+    /** Inicio de las apariciones de cada palabra; la palabra w ocupa [starts[w], starts[w + 1]). */
+    private final int[] starts;
+    private final int[] books;
+    private final int[] positions;
+
+    private PositionalIndex(int[] starts, int[] books, int[] positions) {
+        this.starts = starts;
+        this.books = books;
+        this.positions = positions;
+    }
+
+    /**
+     * Construye el índice con dos pasadas por los tokens: una cuenta las apariciones de cada
+     * palabra y otra las coloca.
+     *
+     * @param words palabras del diccionario cuando los libros ya están tokenizados
+     */
+    public static PositionalIndex build(TokenizedBook[] books, int words) {
+        int[] starts = new int[words + 1];
+        long total = 0;
+        for (TokenizedBook book : books) {
+            for (int position = 0; position < book.tokenCount(); position++) {
+                starts[book.token(position) + 1]++;
+            }
+            total += book.tokenCount();
+        }
+        for (int word = 0; word < words; word++) {
+            starts[word + 1] += starts[word];
+        }
+
+        int[] next = Arrays.copyOf(starts, words);
+        int[] bookIds = new int[(int) total];
+        int[] positions = new int[(int) total];
+        for (int bookId = 0; bookId < books.length; bookId++) {
+            TokenizedBook book = books[bookId];
+            for (int position = 0; position < book.tokenCount(); position++) {
+                int slot = next[book.token(position)]++;
+                bookIds[slot] = bookId;
+                positions[slot] = position;
+            }
+        }
+        return new PositionalIndex(starts, bookIds, positions);
+    }
+
+    /** Apariciones de la palabra; 0 si no está en ningún libro del shard. */
+    public int count(int word) {
+        if (word < 0 || word + 1 >= starts.length) return 0;
+        return starts[word + 1] - starts[word];
+    }
+
+    public int book(int word, int i) {
+        return books[starts[word] + i];
+    }
+
+    public int position(int word, int i) {
+        return positions[starts[word] + i];
+    }
+}
@@ -2,223 +2,1151 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import java.io.*;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.regex.Pattern;
 
 public class ProcessingServer {
     private int port;
-    private int serverId;
-    private List<String> assignedBooks;
-    private Map<String, List<String>> bookContent;
+    private String serverId;
+    private String coordinatorUrl;
+    private String advertisedUrl;
+    private volatile Corpus corpus;
+    private WordDictionary dictionary;
+    private IndexSnapshot snapshot;
     private static final String BOOKS_DIRECTORY = "LIBROS_TXT";
+    
+    /** Margen sobre la carga de un reparto perfecto que puede recibir cada servidor. */
+    private static final double BALANCE_SLACK = 0.1;
+    
+    /** Cada cuánto se anuncia el servidor al coordinador; este lo da por caído tras tres avisos perdidos. */
+    private static final long HEARTBEAT_SECONDS = 2;
+    
+    /** Cada cuánto se revisa el directorio de libros, si no se configura CORPUS_SCAN_SECONDS. */
+    private static final long DEFAULT_SCAN_SECONDS = 10;
+    
+    /** Tiempo sin cambios que tiene que llevar un libro para incorporarlo: puede estar copiándose. */
+    private static final long SETTLE_MILLIS = 2000;
+    
+    /** Registros por bloque en las respuestas de {@code /fingerprints}. */
+    private static final int FINGERPRINT_BLOCK = 4096;
+    
+    /** Consultas pesadas a la vez, si no se configura MAX_CONCURRENT_QUERIES: deja libre uno de los hilos HTTP. */
+    private static final int DEFAULT_MAX_CONCURRENT_QUERIES = 4;
+    
+    /** Parte del heap para la memoria de trabajo de las consultas, si no se configura QUERY_MEMORY_MB. */
+    private static final double DEFAULT_QUERY_MEMORY_FRACTION = 0.5;
+    
+    /** Espera máxima por una plaza antes de rechazar la consulta, para que el coordinador pruebe otra réplica. */
+    private static final long ADMISSION_WAIT_MILLIS = 1000;
+    
+    /** Tamaños de n-grama que puede pedir a la vez una consulta a {@code /process}. */
+    private static final int MAX_RANGE_SIZES = 16;
+    
+    /** Hashes que se pueden pedir en una consulta a {@code /resolve}. */
+    private static final int MAX_RESOLVE_HASHES = 1 << 20;
+    
+    /** Tramos que se pueden pedir en una consulta a {@code /text}, y palabras por tramo. */
+    private static final int MAX_TEXT_SPANS = 1 << 16;
+    private static final int MAX_SPAN_WORDS = 1 << 16;
+    
+    /** Libros que se pueden pedir en una consulta a {@code /hashes}. */
+    private static final int MAX_HASHES_BOOKS = 1 << 16;
+    
+    /** Palabras de la frase de {@code /lookup}, y líneas que se devuelven por libro; del resto solo se cuentan. */
+    private static final int MAX_LOOKUP_WORDS = 64;
+    private static final int LOOKUP_LINES_PER_BOOK = 100;
+    
     private ExecutorService executorService;
+    private ForkJoinPool computePool;
+    private ScheduledExecutorService heartbeat;
+    private HttpClient httpClient;
+    private final Metrics metrics = new Metrics();
+    private final AdmissionControl admission;
+    
+    /** Configuración aplicada y la anterior; las consultas toman la que corresponda al empezar. */
+    private volatile Applied applied;
+    private String assignment = "";
+    private Map<String, String> groups = Collections.emptyMap();
+    private boolean coordinatorReachable = true;
     
-    public ProcessingServer(int port, int serverId) {
+    public ProcessingServer(int port, String serverId, String coordinatorUrl, String advertisedUrl) {
         this.port = port;
         this.serverId = serverId;
-        this.assignedBooks = new ArrayList<>();
-        this.bookContent = new HashMap<>();
+        this.coordinatorUrl = coordinatorUrl;
+        this.advertisedUrl = advertisedUrl;
         this.executorService = Executors.newFixedThreadPool(5);
-        loadAssignedBooks();
+        this.computePool = new ForkJoinPool(computeThreads());
+        this.admission = new AdmissionControl(
+                Params.envInt("MAX_CONCURRENT_QUERIES", DEFAULT_MAX_CONCURRENT_QUERIES),
+                queryMemoryBytes(), metrics);
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor();
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(2))
+                .build();
+        loadDictionary();
+        this.corpus = scanCorpus();
+        Log.info("Servidor " + serverId + " inicializándose con un corpus de " + corpus.books.size() + " libros...");
+        Shard empty = new Shard(serverId, Collections.emptyList(), new int[0], 0, snapshot, dictionary, computePool, metrics);
+        this.applied = new Applied(-1, empty, -1, empty);
+    }
+    
+    /**
+     * Libros de la configuración del clúster aplicada (epoch -1 hasta recibir la primera) y de la
+     * anterior. La anterior se sigue atendiendo para que el coordinador pueda terminar, y seguir
+     * planificando, consultas con ella mientras el resto de servidores aplica la nueva.
+     */
+    private static class Applied {
+        final long epoch;
+        final Shard shard;
+        final long previousEpoch;
+        final Shard previousShard;
+        
+        Applied(long epoch, Shard shard, long previousEpoch, Shard previousShard) {
+            this.epoch = epoch;
+            this.shard = shard;
+            this.previousEpoch = previousEpoch;
+            this.previousShard = previousShard;
+        }
+    }
+    
+    /**
+     * Libros del directorio en un momento dado, en orden de nombre: la posición es el identificador
+     * global del libro. Se sustituye entero cuando cambia el directorio.
+     */
+    private static class Corpus {
+        final List<Path> books;
+        final List<String> names;
+        /** Trabajo estimado de cada libro: su tamaño en bytes, proporcional a sus tokens. */
+        final long[] weights;
+        final long[] stamps;
+        /**
+         * Versión con la que los servidores comprueban que tienen el mismo corpus: nombres y
+         * tamaños, que determinan los ids y el reparto. No incluye las fechas, que pueden ser
+         * distintas en cada copia del directorio.
+         */
+        final long version;
+        /** Cambia además si se modifica algún libro, aunque conserve el tamaño. */
+        final long contentVersion;
+        
+        Corpus(List<Path> books) {
+            this.books = books;
+            this.names = new ArrayList<>();
+            this.weights = new long[books.size()];
+            this.stamps = new long[books.size()];
+            long version = books.size();
+            long contentVersion = books.size();
+            for (int i = 0; i < books.size(); i++) {
+                names.add(books.get(i).getFileName().toString());
+                try {
+                    weights[i] = Files.size(books.get(i));
+                } catch (IOException e) {
+                    Log.error("Error leyendo " + names.get(i) + ": " + e.getMessage());
+                }
+                stamps[i] = Shard.stamp(books.get(i));
+                version = version * 31 + names.get(i).hashCode();
+                version = version * 31 + weights[i];
+                contentVersion = contentVersion * 31 + stamps[i];
+            }
+            this.version = WordDictionary.mix(version);
+            this.contentVersion = WordDictionary.mix(contentVersion ^ version);
+        }
+    }
+    
+    /** Hilos de cálculo: PROCESSING_THREADS o, por defecto, uno por núcleo disponible. */
+    private static int computeThreads() {
+        return Params.envInt("PROCESSING_THREADS", Runtime.getRuntime().availableProcessors());
+    }
+    
+    /** Memoria de trabajo para las consultas: QUERY_MEMORY_MB o, por defecto, la mitad del heap. */
+    private static long queryMemoryBytes() {
+        String configured = Params.env("QUERY_MEMORY_MB", null);
+        return configured != null ? Long.parseLong(configured) << 20
+                : (long) (Runtime.getRuntime().maxMemory() * DEFAULT_QUERY_MEMORY_FRACTION);
     }
     
-    private void loadAssignedBooks() {
+    /**
+     * Lista el directorio de libros. El peso y la versión se calculan igual en todos los nodos,
+     * que así obtienen el mismo reparto sin coordinarse.
+     */
+    private Corpus scanCorpus() {
+        List<Path> books = new ArrayList<>();
         try {
-            Path booksPath = Paths.get(BOOKS_DIRECTORY);
-            List<Path> allBooks = new ArrayList<>();
-            
-            Files.walk(booksPath)
+            Files.walk(Paths.get(BOOKS_DIRECTORY))
                     .filter(Files::isRegularFile)
                     .filter(path -> path.toString().endsWith(".txt"))
-                    .forEach(allBooks::add);
-            
-            int totalBooks = allBooks.size();
-            int booksPerServer = totalBooks / 3;
-            int startIndex = (serverId - 1) * booksPerServer;
-            int endIndex = serverId == 3 ? totalBooks : startIndex + booksPerServer;
-            
-            System.out.println("Servidor " + serverId + " inicializándose...");
-            System.out.println("Libros asignados: " + (endIndex - startIndex) + " de " + totalBooks);
-            
-            for (int i = startIndex; i < endIndex; i++) {
-                Path bookPath = allBooks.get(i);
-                String bookName = bookPath.getFileName().toString();
-                assignedBooks.add(bookName);
-                loadBookContent(bookPath, bookName);
+                    .forEach(books::add);
+        } catch (IOException | UncheckedIOException e) {
+            Log.error("Error cargando libros en servidor " + serverId + ": " + e.getMessage());
+        }
+        // Orden estable en todos los nodos: la posición es el identificador global del libro
+        books.sort(Comparator.comparing(path -> path.getFileName().toString()));
+        return new Corpus(books);
+    }
+    
+    /**
+     * Vuelve a listar el directorio de libros y, si ha cambiado, sustituye el corpus y avisa al
+     * coordinador, que abre una configuración nueva con la que se reparten los libros. Si solo ha
+     * cambiado el contenido de algún libro, no el reparto, se aplica sin esperar a otra
+     * configuración. Si algún libro se ha modificado hace menos de {@link #SETTLE_MILLIS}, se
+     * espera a la siguiente revisión. Se ejecuta en el hilo de los avisos, igual que la
+     * aplicación de configuraciones.
+     *
+     * @return resumen de los cambios
+     */
+    private String rescanCorpus() {
+        Corpus previous = corpus;
+        Corpus next = scanCorpus();
+        if (next.contentVersion == previous.contentVersion) {
+            return "Corpus sin cambios: " + next.books.size() + " libros";
+        }
+        
+        long now = System.currentTimeMillis();
+        for (Path book : next.books) {
+            try {
+                if (now - Files.getLastModifiedTime(book).toMillis() < SETTLE_MILLIS) {
+                    return "Corpus con cambios en curso (" + book.getFileName() + "); se incorporan en la próxima revisión";
+                }
+            } catch (IOException e) {
+                return "Corpus con cambios en curso (" + book.getFileName() + ": " + e.getMessage() + ")";
             }
-            
-            System.out.println("Servidor " + serverId + " listo. Libros cargados: " + assignedBooks.size());
-            
+        }
+        
+        Map<String, Long> before = new HashMap<>();
+        for (int i = 0; i < previous.books.size(); i++) {
+            before.put(previous.names.get(i), previous.stamps[i]);
+        }
+        int added = 0;
+        int modified = 0;
+        for (int i = 0; i < next.books.size(); i++) {
+            Long stamp = before.remove(next.names.get(i));
+            if (stamp == null) {
+                added++;
+            } else if (stamp != next.stamps[i]) {
+                modified++;
+            }
+        }
+        corpus = next;
+        String summary = "Corpus actualizado: " + next.books.size() + " libros (" + added + " nuevos, "
+                + modified + " modificados, " + before.size() + " retirados)";
+        Log.info("Servidor " + serverId + ". " + summary);
+        if (next.version == previous.version && applied.epoch >= 0) {
+            applyMembers(applied.epoch, groups);
+        }
+        heartbeat.execute(this::sendHeartbeat);
+        return summary;
+    }
+    
+    /**
+     * Carga el diccionario de la instantánea. Es del servidor, no de una asignación: los tokens
+     * guardados de cualquier libro que haya tenido antes siguen valiendo aunque cambien los miembros.
+     */
+    private void loadDictionary() {
+        Path snapshotDirectory = Paths.get(Params.env("SNAPSHOT_DIR", "snapshot-" + serverId));
+        snapshot = new IndexSnapshot(snapshotDirectory);
+        dictionary = new WordDictionary();
+        try {
+            snapshot.loadDictionary(dictionary);
         } catch (IOException e) {
-            System.err.println("Error cargando libros en servidor " + serverId + ": " + e.getMessage());
+            Log.error("Error leyendo el diccionario de la instantánea: " + e.getMessage());
         }
     }
     
-    private void loadBookContent(Path bookPath, String bookName) {
+    /**
+     * Se anuncia al coordinador con la configuración aplicada, la versión de sus libros y la del
+     * corpus que tiene en el directorio; si esta cambia, el coordinador abre otra configuración. La
+     * respuesta trae la configuración vigente (primera línea) y el grupo de réplicas de cada
+     * miembro; si ha cambiado, se recalcula la asignación y se anuncia de nuevo en cuanto se aplica.
+     */
+    private void sendHeartbeat() {
+        Applied state = applied;
+        Shard current = state.shard;
+        String form = "id=" + URLEncoder.encode(serverId, StandardCharsets.UTF_8)
+                + "&url=" + URLEncoder.encode(advertisedUrl, StandardCharsets.UTF_8)
+                + "&epoch=" + state.epoch + "&previous=" + state.previousEpoch + "&version=" + current.version()
+                + "&corpus=" + corpus.version
+                + "&books=" + current.size() + "&load=" + current.estimatedLoad() + "&tokens=" + current.loadedTokens();
         try {
-            List<String> lines = Files.readAllLines(bookPath);
-            List<String> cleanedLines = new ArrayList<>();
+            HttpRequest request = HttpRequest.newBuilder(URI.create(coordinatorUrl + "/register"))
+                    .timeout(Duration.ofSeconds(5))
+                    .header("Content-Type", "application/x-www-form-urlencoded")
+                    .POST(HttpRequest.BodyPublishers.ofString(form))
+                    .build();
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                throw new IOException("HTTP " + response.statusCode());
+            }
+            if (!coordinatorReachable) {
+                Log.info("Servidor " + serverId + " registrado en el coordinador " + coordinatorUrl);
+                coordinatorReachable = true;
+            }
             
-            for (String line : lines) {
-                String cleaned = cleanText(line);
-                if (!cleaned.isEmpty()) {
-                    cleanedLines.add(cleaned);
+            String[] lines = response.body().split("\n");
+            long latest = Long.parseLong(lines[0].trim());
+            if (latest != state.epoch) {
+                Map<String, String> groups = new HashMap<>();
+                for (int i = 1; i < lines.length; i++) {
+                    String[] member = lines[i].trim().split(" ");
+                    if (member.length == 2) groups.put(member[0], member[1]);
                 }
+                applyMembers(latest, groups);
+                heartbeat.execute(this::sendHeartbeat);
             }
-            
-            bookContent.put(bookName, cleanedLines);
-            
-        } catch (IOException e) {
-            System.err.println("Error leyendo libro " + bookName + ": " + e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            if (coordinatorReachable) {
+                Log.warn("Servidor " + serverId + " sin contacto con el coordinador " + coordinatorUrl + ": " + e.getMessage());
+                coordinatorReachable = false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
     
-    private String cleanText(String text) {
-        return text.replaceAll("[^\\p{L}\\s]", " ")
-                   .replaceAll("\\s+", " ")
-                   .trim()
-                   .toLowerCase();
+    /**
+     * Reparte los libros entre los grupos de réplicas por hash consistente con carga acotada
+     * ({@link ConsistentHash#assign}) y toma los del grupo de este servidor. Si no cambian sus
+     * libros se conserva el shard, con sus índices; si cambian, se sustituye por uno que parte del
+     * actual ({@link Shard#update}) y se prepara en segundo plano: solo se leen los libros nuevos o
+     * modificados y los índices se actualizan solo con ellos.
+     *
+     * @param groups grupo de cada miembro, por id
+     */
+    private void applyMembers(long latest, Map<String, String> groups) {
+        Applied previous = applied;
+        Shard shard = previous.shard;
+        Corpus books = corpus;
+        String own = groups.get(serverId);
+        TreeSet<String> labels = new TreeSet<>(groups.values());
+        String key = books.contentVersion + "|" + labels + "|" + own;
+        this.groups = groups;
+        if (!key.equals(assignment)) {
+            List<String> ring = new ArrayList<>();
+            for (String label : labels) {
+                ring.add("grupo-" + label);
+            }
+            String[] owners = new ConsistentHash(ring).assign(books.names, books.weights, BALANCE_SLACK);
+            List<Path> owned = new ArrayList<>();
+            List<Integer> globalIds = new ArrayList<>();
+            for (int i = 0; i < books.books.size(); i++) {
+                if (own != null && ("grupo-" + own).equals(owners[i])) {
+                    owned.add(books.books.get(i));
+                    globalIds.add(i);
+                }
+            }
+            assignment = key;
+            
+            int[] globalBookIds = globalIds.stream().mapToInt(Integer::intValue).toArray();
+            long[] weights = new long[globalBookIds.length];
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = books.weights[globalBookIds[i]];
+            }
+            double meanWeight = (double) Arrays.stream(books.weights).sum() / Math.max(1, books.weights.length);
+            long load = Math.round(ConsistentHash.work(weights, meanWeight));
+            Shard next = shard.update(owned, globalBookIds, load);
+            if (next != shard) {
+                Log.info("Servidor " + serverId + " en el grupo " + own + " de " + labels.size() + " ("
+                        + groups.size() + " miembros en el clúster): " + owned.size() + " de " + books.books.size()
+                        + " libros asignados, carga estimada " + load);
+                shard = next;
+                next.warmUp();
+            }
+        }
+        // Si cambian los libros dentro de la misma configuración, la anterior sigue siendo la misma
+        Applied next = latest == previous.epoch
+                ? new Applied(latest, shard, previous.previousEpoch, previous.previousShard)
+                : new Applied(latest, shard, previous.epoch, previous.shard);
+        for (Shard old : new Shard[] { previous.shard, previous.previousShard }) {
+            if (old != next.shard && old != next.previousShard) old.retire();
+        }
+        applied = next;
     }
     
     public void start() throws IOException {
         HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
-        server.createContext("/process", new ProcessHandler());
+        server.createContext("/process", metrics.timed("/process", new ProcessHandler()));
+        server.createContext("/fingerprints", metrics.timed("/fingerprints", new FingerprintHandler()));
+        server.createContext("/resolve", metrics.timed("/resolve", new ResolveHandler()));
+        server.createContext("/text", metrics.timed("/text", new TextHandler()));
+        server.createContext("/signatures", metrics.timed("/signatures", new SignatureHandler()));
+        server.createContext("/hashes", metrics.timed("/hashes", new HashesHandler()));
+        server.createContext("/ingest", metrics.timed("/ingest", new IngestHandler()));
+        server.createContext("/lookup", metrics.timed("/lookup", new LookupHandler()));
+        server.createContext("/metrics", metrics.handler());
+        registerGauges();
         server.setExecutor(executorService);
         server.start();
-        System.out.println("Servidor de procesamiento " + serverId + " iniciado en puerto " + port);
+        Log.info("Servidor de procesamiento " + serverId + " iniciado en puerto " + port + " (" + advertisedUrl + ")");
+        heartbeat.scheduleWithFixedDelay(this::sendHeartbeat, 0, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+        long scanSeconds = Params.envLong("CORPUS_SCAN_SECONDS", DEFAULT_SCAN_SECONDS);
+        if (scanSeconds > 0) {
+            heartbeat.scheduleWithFixedDelay(this::rescanCorpus, scanSeconds, scanSeconds, TimeUnit.SECONDS);
+        }
+    }
+    
+    /** Ocupación de los pools y tamaño de lo que tiene cargado la configuración aplicada. */
+    private void registerGauges() {
+        ThreadPoolExecutor requests = (ThreadPoolExecutor) executorService;
+        metrics.gauge("request_pool_active", requests::getActiveCount);
+        metrics.gauge("request_pool_queued", () -> requests.getQueue().size());
+        metrics.gauge("compute_pool_active", computePool::getActiveThreadCount);
+        metrics.gauge("compute_pool_queued", () -> computePool.getQueuedSubmissionCount() + computePool.getQueuedTaskCount());
+        metrics.gauge("shard_books", () -> applied.shard.size());
+        metrics.gauge("shard_loaded_tokens", () -> applied.shard.loadedTokens());
+        metrics.gauge("dictionary_words", dictionary::size);
+        metrics.gauge("cluster_epoch", () -> applied.epoch);
+    }
+    
+    /**
+     * Toma el shard para una consulta según la configuración del clúster con la que la planificó
+     * el coordinador (cabecera {@code X-Epoch}): la actual o la anterior. Si no es ninguna de las
+     * dos, responde 409 y devuelve null, y el coordinador prueba otra réplica. Si la cabecera no
+     * es un número, responde 400 y devuelve null.
+     */
+    private Shard shardFor(HttpExchange exchange) throws IOException {
+        String header = exchange.getRequestHeaders().getFirst("X-Epoch");
+        Applied state = applied;
+        long expected;
+        try {
+            expected = header == null ? state.epoch : Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            badRequest(exchange, "Cabecera X-Epoch no válida: " + header);
+            return null;
+        }
+        if (expected == state.epoch) {
+            return state.shard;
+        }
+        if (expected == state.previousEpoch) {
+            return state.previousShard;
+        }
+        byte[] response = ("Configuración del clúster " + state.epoch + ", se esperaba " + expected).getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(409, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+        return null;
+    }
+    
+    /**
+     * Admite una consulta pesada que necesita {@code bytes} de memoria de trabajo. Si no hay sitio
+     * antes de {@link #ADMISSION_WAIT_MILLIS} o de que pase su plazo, responde 503 con Retry-After
+     * y devuelve null; el coordinador pasa entonces a otra réplica del grupo.
+     */
+    private AdmissionControl.Permit admit(HttpExchange exchange, long bytes, Deadline deadline) throws IOException {
+        AdmissionControl.Permit permit;
+        try {
+            permit = admission.tryAcquire(bytes, Math.min(ADMISSION_WAIT_MILLIS, deadline.remainingMillis()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            permit = null;
+        }
+        if (permit != null) return permit;
+        
+        Log.debug(() -> "Servidor " + serverId + " ocupado: consulta a " + exchange.getRequestURI().getPath() + " rechazada");
+        byte[] response = ("Servidor " + serverId + " ocupado").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Retry-After", Long.toString(admission.retryAfterSeconds()));
+        exchange.sendResponseHeaders(503, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+        return null;
+    }
+    
+    /** Rechaza una petición con parámetros no válidos. */
+    private static void badRequest(HttpExchange exchange, String message) throws IOException {
+        byte[] response = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(400, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+    
+    /** Consulta abandonada porque pasó su plazo: el coordinador ya no espera la respuesta. */
+    private void cancelled(HttpExchange exchange, String path) {
+        metrics.increment(Metrics.series("queries_cancelled_total", "path", path));
+        Log.debug(() -> "Servidor " + serverId + " abandona una consulta a " + path + ": plazo agotado");
+        exchange.close();
+    }
+    
+    private static long[] sortedUnique(long[] values, int length) {
+        Arrays.sort(values, 0, length);
+        int unique = 0;
+        for (int i = 0; i < length; i++) {
+            if (unique == 0 || values[i] != values[unique - 1]) {
+                values[unique++] = values[i];
+            }
+        }
+        return Arrays.copyOf(values, unique);
     }
     
+    /**
+     * Búsqueda de n-gramas compartidos entre los libros del shard. Con {@code maxWords} responde a
+     * todos los tamaños de {@code nWords} a {@code maxWords} a la vez: los conjuntos que faltan se
+     * extraen con una sola pasada por cada libro y la respuesta lleva un bloque por tamaño, en
+     * binario precedido de su número de palabras y terminado con un 0, y en texto con una cabecera.
+     */
     private class ProcessHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if ("POST".equals(exchange.getRequestMethod())) {
-                String requestBody = new String(exchange.getRequestBody().readAllBytes());
-                String[] params = requestBody.split("=");
-                int nWords = Integer.parseInt(params[1]);
-                
-                System.out.println("Servidor " + serverId + " procesando búsqueda de " + nWords + " palabras...");
+                Map<String, String> params = Params.parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                boolean range = params.containsKey("maxWords");
+                int nWords;
+                int maxWords;
+                int top;
+                NGramFilter filter;
+                try {
+                    nWords = Integer.parseInt(params.get("nWords"));
+                    maxWords = range ? Integer.parseInt(params.get("maxWords")) : nWords;
+                    top = Integer.parseInt(params.getOrDefault("top", "0"));
+                    filter = NGramFilter.of(params);
+                } catch (NumberFormatException e) {
+                    badRequest(exchange, "nWords, maxWords, top y maxBooks deben ser números enteros");
+                    return;
+                }
+                if (nWords < 1 || maxWords < nWords || maxWords - nWords >= MAX_RANGE_SIZES || top < 0) {
+                    badRequest(exchange, "nWords debe ser positivo, maxWords estar entre nWords y nWords + "
+                            + (MAX_RANGE_SIZES - 1) + " y top no ser negativo");
+                    return;
+                }
+                Shard shard = shardFor(exchange);
+                if (shard == null) return;
                 
-                String results = processNGramSearch(nWords);
+                Log.debug(() -> "Servidor " + serverId + " procesando búsqueda de " + nWords
+                        + (maxWords > nWords ? " a " + maxWords : "") + " palabras" + filter.describe() + "...");
                 
-                exchange.sendResponseHeaders(200, results.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(results.getBytes());
+                Deadline deadline = Deadline.of(exchange);
+                try (AdmissionControl.Permit permit = admit(exchange, shard.workingBytes(nWords, maxWords, true), deadline)) {
+                    if (permit == null) return;
+                    NGramIndex[] indexes = range
+                            ? shard.getIndexes(nWords, maxWords, deadline)
+                            : new NGramIndex[] { shard.getIndex(nWords, deadline) };
+                    
+                    // Respuesta por bloques: las coincidencias se envían a medida que se generan
+                    if ("binary".equals(params.get("format"))) {
+                        boolean pairs = Boolean.parseBoolean(params.get("pairs"));
+                        long start = System.nanoTime();
+                        try (DataOutputStream out = binaryResponse(exchange, true)) {
+                            for (NGramIndex index : indexes) {
+                                if (range) WireFormat.writeVarint(out, index.getNWords());
+                                writeSharedPhrases(shard, index, filter, top, pairs, out);
+                            }
+                            if (range) WireFormat.writeVarint(out, 0);
+                        }
+                        metrics.phase("serialise", start);
+                        return;
+                    }
+                    
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                    exchange.sendResponseHeaders(200, 0);
+                    long start = System.nanoTime();
+                    try (Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 1 << 16)) {
+                        Log.debug(() -> "Servidor " + serverId + " buscando coincidencias...");
+                        for (NGramIndex index : indexes) {
+                            if (range) out.append("N-GRAMAS DE ").append(String.valueOf(index.getNWords())).append(" PALABRAS:\n");
+                            findMatches(shard, index, filter, out);
+                        }
+                    }
+                    metrics.phase("serialise", start);
+                } catch (CancellationException e) {
+                    cancelled(exchange, "/process");
                 }
             }
         }
         
-        private String processNGramSearch(int nWords) {
-            System.out.println("Servidor " + serverId + " extrayendo n-gramas de " + assignedBooks.size() + " libros...");
+        /**
+         * Formato compacto: cada n-grama compartido una sola vez con la lista de sus libros, en
+         * lugar de una línea por par. Estructura: número de libros y (id global, nombre corto) por
+         * libro; registros (número de libros, ids globales, frase) terminados con un 0; número de
+         * pares y (libro, libro, frases compartidas) por par; total de n-gramas y total de pares
+         * de coincidencias. Con {@code top > 0} solo se envían los {@code top} n-gramas presentes
+         * en más libros; los recuentos por par y los totales siempre cubren todo el índice, salvo
+         * los n-gramas que descarta el filtro. Los números van en varint y las frases codificadas
+         * contra el diccionario de la respuesta ({@link WireFormat}).
+         */
+        private void writeSharedPhrases(Shard shard, NGramIndex index, NGramFilter filter, int top, boolean pairs,
+                                        DataOutputStream out) throws IOException {
+            int books = shard.size();
+            WireFormat.writeVarint(out, books);
+            for (int i = 0; i < books; i++) {
+                WireFormat.writeVarint(out, shard.globalBookId(i));
+                out.writeUTF(shortenBookName(shard.bookName(i)));
+            }
             
-            Map<String, Set<String>> ngramsPerBook = new HashMap<>();
+            int[] entries = keptEntries(index, filter);
+            long matches = 0;
+            // La matriz crece con el cuadrado de los libros del shard: solo si se piden los pares
+            int[][] pairCounts = pairs ? new int[books][books] : null;
+            for (int entry : entries) {
+                int bookCount = index.getBookCount(entry);
+                matches += (long) bookCount * (bookCount - 1) / 2;
+                if (pairCounts == null) continue;
+                for (int i = 0; i < bookCount; i++) {
+                    for (int j = i + 1; j < bookCount; j++) {
+                        pairCounts[index.getBook(entry, i)][index.getBook(entry, j)]++;
+                    }
+                }
+            }
             
-            for (String bookName : assignedBooks) {
-                System.out.println("Servidor " + serverId + " procesando: " + bookName.substring(0, Math.min(30, bookName.length())) + "...");
-                Set<String> ngrams = extractNGrams(bookName, nWords);
-                ngramsPerBook.put(bookName, ngrams);
+            WireFormat.PhraseWriter phrases = new WireFormat.PhraseWriter();
+            for (int entry : top > 0 ? topEntries(index, entries, top) : entries) {
+                writeEntry(shard, index, entry, phrases, out);
             }
+            WireFormat.writeVarint(out, 0);
             
-            System.out.println("Servidor " + serverId + " buscando coincidencias...");
-            return findMatches(ngramsPerBook);
+            writePairCounts(shard, pairCounts, out);
+            WireFormat.writeVarint(out, entries.length);
+            WireFormat.writeVarlong(out, matches);
+            Log.debug(() -> "Servidor " + serverId + " envió " + (top > 0 ? Math.min(top, entries.length) : entries.length)
+                    + " de " + entries.length + " n-gramas compartidos en formato compacto"
+                    + (filter.isActive() ? "; " + (index.size() - entries.length) + " descartados por el filtro" : ""));
+        }
+        
+        /** Número de pares con frases en común y (libro, libro, frases) por par; 0 si no se pidieron. */
+        private void writePairCounts(Shard shard, int[][] pairCounts, DataOutputStream out) throws IOException {
+            if (pairCounts == null) {
+                WireFormat.writeVarint(out, 0);
+                return;
+            }
+            int pairTotal = 0;
+            for (int[] row : pairCounts) {
+                for (int count : row) {
+                    if (count > 0) pairTotal++;
+                }
+            }
+            WireFormat.writeVarint(out, pairTotal);
+            for (int i = 0; i < pairCounts.length; i++) {
+                for (int j = 0; j < pairCounts.length; j++) {
+                    if (pairCounts[i][j] > 0) {
+                        WireFormat.writeVarint(out, shard.globalBookId(i));
+                        WireFormat.writeVarint(out, shard.globalBookId(j));
+                        WireFormat.writeVarint(out, pairCounts[i][j]);
+                    }
+                }
+            }
+        }
+        
+        /** Entradas del índice que no descarta el filtro, en orden. */
+        private int[] keptEntries(NGramIndex index, NGramFilter filter) {
+            int[] entries = new int[index.size()];
+            int kept = 0;
+            for (int entry = 0; entry < index.size(); entry++) {
+                if (!filter.rejects(index.getPhrase(entry), index.getBookCount(entry))) {
+                    entries[kept++] = entry;
+                }
+            }
+            return Arrays.copyOf(entries, kept);
+        }
+        
+        private void writeEntry(Shard shard, NGramIndex index, int entry, WireFormat.PhraseWriter phrases,
+                                DataOutputStream out) throws IOException {
+            int bookCount = index.getBookCount(entry);
+            WireFormat.writeVarint(out, bookCount);
+            for (int i = 0; i < bookCount; i++) {
+                WireFormat.writeVarint(out, shard.globalBookId(index.getBook(entry, i)));
+            }
+            phrases.write(out, index.getPhrase(entry));
+        }
+        
+        /** Los {@code top} n-gramas con más libros; a igualdad, en el orden del índice. */
+        private int[] topEntries(NGramIndex index, int[] candidates, int top) {
+            Comparator<Integer> byBooks = Comparator.comparingInt(index::getBookCount)
+                    .thenComparing(Comparator.<Integer>reverseOrder());
+            PriorityQueue<Integer> best = new PriorityQueue<>(byBooks);
+            for (int entry : candidates) {
+                best.add(entry);
+                if (best.size() > top) {
+                    best.poll();
+                }
+            }
+            int[] entries = new int[best.size()];
+            for (int i = entries.length - 1; i >= 0; i--) {
+                entries[i] = best.poll();
+            }
+            return entries;
         }
         
-        private Set<String> extractNGrams(String bookName, int nWords) {
-            Set<String> ngrams = new HashSet<>();
-            List<String> lines = bookContent.get(bookName);
+        private void findMatches(Shard shard, NGramIndex index, NGramFilter filter, Writer out) throws IOException {
+            String[] shortNames = new String[shard.size()];
+            for (int i = 0; i < shortNames.length; i++) {
+                shortNames[i] = shortenBookName(shard.bookName(i));
+            }
             
-            if (lines == null) return ngrams;
+            // Cada n-grama compartido aparece una vez por cada par de libros de su lista
+            int matches = 0;
+            for (int entry = 0; entry < index.size(); entry++) {
+                String commonNgram = index.getPhrase(entry);
+                int bookCount = index.getBookCount(entry);
+                if (filter.rejects(commonNgram, bookCount)) continue;
+                for (int i = 0; i < bookCount; i++) {
+                    for (int j = i + 1; j < bookCount; j++) {
+                        out.append("COINCIDENCIA: En ").append(shortNames[index.getBook(entry, i)])
+                           .append(" y ").append(shortNames[index.getBook(entry, j)])
+                           .append(" aparece: \"").append(commonNgram).append("\"\n");
+                        matches++;
+                    }
+                }
+            }
             
-            for (String line : lines) {
-                String[] words = line.split("\\s+");
+            int found = matches;
+            Log.debug(() -> "Servidor " + serverId + " encontró " + found + " coincidencias en " + index.size() + " n-gramas compartidos");
+        }
+    }
+    
+    /**
+     * Emite las huellas (hash de 64 bits, libro global) de una partición del espacio de hashes,
+     * ordenadas por hash, para que el coordinador pueda unir las de todos los servidores.
+     * Formato: número de libros, (id global, nombre corto) por libro y después los registros
+     * (hash, id global) en bloques, cada uno precedido de su número de registros y de su
+     * longitud en bytes, terminados con un bloque vacío. Los números van en varint y cada hash
+     * como su diferencia con el anterior del bloque. Con {@code positions=true} cada registro lleva además la primera posición
+     * del n-grama en el libro, para buscar pasajes compartidos. Los n-gramas de solo palabras
+     * vacías no se envían; los presentes en demasiados libros sí, porque la cuenta que vale es la
+     * de todos los servidores y el coordinador solo puede hacerla si le llegan sus registros.
+     */
+    private class FingerprintHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                Map<String, String> params = Params.parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                int nWords;
+                int partition;
+                int partitions;
+                NGramFilter filter;
+                try {
+                    nWords = Integer.parseInt(params.get("nWords"));
+                    partition = Integer.parseInt(params.get("partition"));
+                    partitions = Integer.parseInt(params.get("partitions"));
+                    filter = NGramFilter.of(params);
+                } catch (NumberFormatException e) {
+                    badRequest(exchange, "nWords, partition, partitions y maxBooks deben ser números enteros");
+                    return;
+                }
+                if (nWords < 1 || partition < 0 || partition >= partitions) {
+                    badRequest(exchange, "nWords debe ser positivo y partition estar entre 0 y partitions - 1");
+                    return;
+                }
+                boolean withPositions = Boolean.parseBoolean(params.get("positions"));
+                Shard shard = shardFor(exchange);
+                if (shard == null) return;
                 
-                for (int i = 0; i <= words.length - nWords; i++) {
-                    StringBuilder ngram = new StringBuilder();
-                    for (int j = 0; j < nWords; j++) {
-                        if (j > 0) ngram.append(" ");
-                        ngram.append(words[i + j]);
+                Deadline deadline = Deadline.of(exchange);
+                try (AdmissionControl.Permit permit = admit(exchange, shard.workingBytes(nWords, false), deadline)) {
+                    if (permit == null) return;
+                    NGramSet[] sets = shard.getNGramSets(nWords, deadline);
+                    int[] from = new int[sets.length];
+                    int[] to = new int[sets.length];
+                    for (int i = 0; i < sets.length; i++) {
+                        from[i] = sets[i].partitionStart(partition, partitions);
+                        to[i] = sets[i].partitionStart(partition + 1, partitions);
                     }
                     
-                    String ngramStr = ngram.toString().trim();
-                    if (ngramStr.length() > 0 && !ngramStr.matches(".*\\d.*")) {
-                        ngrams.add(ngramStr);
+                    long start = System.nanoTime();
+                    try (DataOutputStream out = binaryResponse(exchange, false)) {
+                        WireFormat.writeVarint(out, sets.length);
+                        for (int i = 0; i < sets.length; i++) {
+                            WireFormat.writeVarint(out, shard.globalBookId(i));
+                            out.writeUTF(shortenBookName(shard.bookName(i)));
+                        }
+                        
+                        // Mezcla de los tramos ordenados de cada libro; los bloques se preparan aparte
+                        // porque con el filtro no se sabe de antemano cuántos registros salen
+                        WireFormat.Block block = new WireFormat.Block();
+                        int[] blockRecords = { 0 };
+                        NGramSet.merge(sets, from, to, (hash, members, positions, count) -> {
+                            if (filter.onlyStopwords(shard, members[0], positions[0], nWords)) return;
+                            try {
+                                for (int i = 0; i < count; i++) {
+                                    // Los hashes van en orden: basta la diferencia con el anterior
+                                    block.putDelta(hash);
+                                    block.putVarint(shard.globalBookId(members[i]));
+                                    if (withPositions) block.putVarint(positions[i]);
+                                }
+                                blockRecords[0] += count;
+                                if (blockRecords[0] >= FINGERPRINT_BLOCK) {
+                                    WireFormat.writeVarint(out, blockRecords[0]);
+                                    block.writeTo(out);
+                                    block.reset();
+                                    blockRecords[0] = 0;
+                                }
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        });
+                        if (blockRecords[0] > 0) {
+                            WireFormat.writeVarint(out, blockRecords[0]);
+                            block.writeTo(out);
+                        }
+                        WireFormat.writeVarint(out, 0);
+                    } catch (UncheckedIOException e) {
+                        throw e.getCause();
+                    } finally {
+                        metrics.phase("serialise", start);
                     }
+                } catch (CancellationException e) {
+                    cancelled(exchange, "/fingerprints");
                 }
             }
-            
-            return ngrams;
         }
-        
-        private String findMatches(Map<String, Set<String>> ngramsPerBook) {
-            StringBuilder results = new StringBuilder();
-            List<String> books = new ArrayList<>(ngramsPerBook.keySet());
-            
-            int comparisons = 0;
-            for (int i = 0; i < books.size(); i++) {
-                for (int j = i + 1; j < books.size(); j++) {
-                    String book1 = books.get(i);
-                    String book2 = books.get(j);
-                    
-                    Set<String> ngrams1 = ngramsPerBook.get(book1);
-                    Set<String> ngrams2 = ngramsPerBook.get(book2);
-                    
-                    Set<String> intersection = new HashSet<>(ngrams1);
-                    intersection.retainAll(ngrams2);
+    }
+    
+    /**
+     * Devuelve el texto de los n-gramas cuyos hashes se piden. Cuerpo: n, número de hashes y
+     * los hashes; respuesta: número de frases encontradas y pares (hash, frase), con las frases
+     * codificadas contra el diccionario de la respuesta.
+     */
+    private class ResolveHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                Shard shard = shardFor(exchange);
+                if (shard == null) return;
+                long[] requested;
+                int nWords;
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(exchange.getRequestBody()))) {
+                    nWords = in.readInt();
+                    int count = in.readInt();
+                    if (nWords < 1 || count < 0 || count > MAX_RESOLVE_HASHES) {
+                        badRequest(exchange, "nWords debe ser positivo y el número de hashes estar entre 0 y " + MAX_RESOLVE_HASHES);
+                        return;
+                    }
+                    requested = new long[count];
+                    for (int i = 0; i < requested.length; i++) {
+                        requested[i] = in.readLong();
+                    }
+                }
+                
+                Deadline deadline = Deadline.of(exchange);
+                try (AdmissionControl.Permit permit = admit(exchange, shard.phraseBytes(nWords, requested.length), deadline)) {
+                    if (permit == null) return;
+                    Map<Long, String> phrases = shard.phrases(nWords, sortedUnique(requested, requested.length), deadline);
+                    try (DataOutputStream out = binaryResponse(exchange, true)) {
+                        WireFormat.PhraseWriter writer = new WireFormat.PhraseWriter();
+                        WireFormat.writeVarint(out, phrases.size());
+                        for (Map.Entry<Long, String> entry : phrases.entrySet()) {
+                            out.writeLong(entry.getKey());
+                            writer.write(out, entry.getValue());
+                        }
+                    }
+                } catch (CancellationException e) {
+                    cancelled(exchange, "/resolve");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Devuelve las palabras de tramos de libros, para comprobar y alargar los pasajes que
+     * comparten dos libros. Cuerpo: número de tramos y (id global, posición inicial, palabras)
+     * por tramo; respuesta: por tramo, número de palabras y (palabra, línea en el texto original)
+     * por palabra. Los tramos se recortan al final del libro, y los de libros que el shard no
+     * tiene quedan vacíos.
+     */
+    private class TextHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                Shard shard = shardFor(exchange);
+                if (shard == null) return;
+                int[][] spans;
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(exchange.getRequestBody()))) {
+                    int count = in.readInt();
+                    if (count < 0 || count > MAX_TEXT_SPANS) {
+                        badRequest(exchange, "El número de tramos debe estar entre 0 y " + MAX_TEXT_SPANS);
+                        return;
+                    }
+                    spans = new int[count][];
+                    for (int i = 0; i < spans.length; i++) {
+                        spans[i] = new int[] { in.readInt(), in.readInt(), in.readInt() };
+                        if (spans[i][2] < 0 || spans[i][2] > MAX_SPAN_WORDS) {
+                            badRequest(exchange, "Cada tramo debe tener entre 0 y " + MAX_SPAN_WORDS + " palabras");
+                            return;
+                        }
+                    }
+                }
+                Map<Integer, Integer> localIds = new HashMap<>();
+                for (int bookId = 0; bookId < shard.size(); bookId++) {
+                    localIds.put(shard.globalBookId(bookId), bookId);
+                }
+                
+                // Las palabras se leen de los tokens ya cargados: solo se reserva una plaza
+                Deadline deadline = Deadline.of(exchange);
+                try (AdmissionControl.Permit permit = admit(exchange, 0, deadline)) {
+                    if (permit == null) return;
+                    try (DataOutputStream out = binaryResponse(exchange, true)) {
+                        for (int[] span : spans) {
+                            deadline.check();
+                            Integer bookId = localIds.get(span[0]);
+                            int start = Math.max(0, span[1]);
+                            int end = bookId == null ? start : Math.min(shard.tokenCount(bookId), span[1] + span[2]);
+                            out.writeInt(Math.max(0, end - start));
+                            for (int position = start; position < end; position++) {
+                                out.writeUTF(shard.wordAt(bookId, position));
+                                out.writeInt(shard.sourceLineAt(bookId, position));
+                            }
+                        }
+                    }
+                } catch (CancellationException e) {
+                    cancelled(exchange, "/text");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Devuelve la firma MinHash del conjunto de n-gramas de cada libro del shard, para que el
+     * coordinador busque pares de libros parecidos. Respuesta: número de libros y, por libro,
+     * id global, nombre corto, número de n-gramas distintos y la firma.
+     */
+    private class SignatureHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                Map<String, String> params = Params.parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                int nWords;
+                try {
+                    nWords = Integer.parseInt(params.get("nWords"));
+                } catch (NumberFormatException e) {
+                    nWords = 0;
+                }
+                if (nWords < 1) {
+                    badRequest(exchange, "nWords debe ser un entero positivo");
+                    return;
+                }
+                Shard shard = shardFor(exchange);
+                if (shard == null) return;
+                
+                Deadline deadline = Deadline.of(exchange);
+                try (AdmissionControl.Permit permit = admit(exchange, shard.workingBytes(nWords, false), deadline)) {
+                    if (permit == null) return;
+                    NGramSet[] sets = shard.getNGramSets(nWords, deadline);
+                    long[][] signatures = shard.getSignatures(nWords, sets, deadline);
+                    try (DataOutputStream out = binaryResponse(exchange, false)) {
+                        out.writeInt(sets.length);
+                        for (int i = 0; i < sets.length; i++) {
+                            out.writeInt(shard.globalBookId(i));
+                            out.writeUTF(shortenBookName(shard.bookName(i)));
+                            out.writeInt(sets[i].size());
+                            for (long value : signatures[i]) {
+                                out.writeLong(value);
+                            }
+                        }
+                    }
+                } catch (CancellationException e) {
+                    cancelled(exchange, "/signatures");
+                }
+            }
+        }
+    }
+    
+    /**
+     * Devuelve los hashes ordenados de los n-gramas de los libros pedidos, para calcular la
+     * similitud exacta de los pares candidatos. Cuerpo: n, número de libros y sus ids globales;
+     * respuesta: por libro, número de hashes y los hashes (ninguno si el shard no lo tiene).
+     */
+    private class HashesHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                int nWords;
+                int[] globalIds;
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(exchange.getRequestBody()))) {
+                    nWords = in.readInt();
+                    int count = in.readInt();
+                    if (nWords < 1 || count < 0 || count > MAX_HASHES_BOOKS) {
+                        badRequest(exchange, "nWords debe ser positivo y el número de libros estar entre 0 y " + MAX_HASHES_BOOKS);
+                        return;
+                    }
+                    globalIds = new int[count];
+                    for (int i = 0; i < globalIds.length; i++) {
+                        globalIds[i] = in.readInt();
+                    }
+                }
+                Shard shard = shardFor(exchange);
+                if (shard == null) return;
+                
+                Deadline deadline = Deadline.of(exchange);
+                try (AdmissionControl.Permit permit = admit(exchange, shard.workingBytes(nWords, false), deadline)) {
+                    if (permit == null) return;
+                    NGramSet[] sets = shard.getNGramSets(nWords, deadline);
+                    Map<Integer, Integer> localIds = new HashMap<>();
+                    for (int bookId = 0; bookId < shard.size(); bookId++) {
+                        localIds.put(shard.globalBookId(bookId), bookId);
+                    }
                     
-                    for (String commonNgram : intersection) {
-                        if (commonNgram.trim().length() > 0) {
-                            String shortBook1 = shortenBookName(book1);
-                            String shortBook2 = shortenBookName(book2);
-                            results.append("COINCIDENCIA: En ").append(shortBook1)
-                                   .append(" y ").append(shortBook2)
-                                   .append(" aparece: \"").append(commonNgram).append("\"\n");
+                    try (DataOutputStream out = binaryResponse(exchange, false)) {
+                        for (int globalId : globalIds) {
+                            Integer bookId = localIds.get(globalId);
+                            NGramSet set = bookId == null ? null : sets[bookId];
+                            out.writeInt(set == null ? 0 : set.size());
+                            for (int i = 0; set != null && i < set.size(); i++) {
+                                out.writeLong(set.hash(i));
+                            }
                         }
                     }
-                    comparisons++;
+                } catch (CancellationException e) {
+                    cancelled(exchange, "/hashes");
                 }
             }
-            
-            System.out.println("Servidor " + serverId + " completó " + comparisons + " comparaciones");
-            return results.toString();
         }
-        
-        private String shortenBookName(String fullName) {
-            String name = fullName.replace("_.txt", "").replace("_", " ");
-            String[] parts = name.split("__");
-            if (parts.length >= 2) {
-                String author = parts[0].replace("_", ", ");
-                String title = parts[1].replace("_", " ");
-                if (title.length() > 30) {
-                    title = title.substring(0, 30) + "...";
+    }
+    
+    /**
+     * Busca una frase concreta en los libros del shard con el índice posicional. Respuesta:
+     * número de libros con la frase y, por libro, id global, nombre corto, número de apariciones,
+     * número de líneas que se envían (hasta {@link #LOOKUP_LINES_PER_BOOK}) y cada una.
+     */
+    private class LookupHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                Map<String, String> params = Params.parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                List<String> phrase = TokenizedBook.words(URLDecoder.decode(params.getOrDefault("phrase", ""), StandardCharsets.UTF_8));
+                if (phrase.size() > MAX_LOOKUP_WORDS) {
+                    badRequest(exchange, "La frase no puede tener más de " + MAX_LOOKUP_WORDS + " palabras");
+                    return;
+                }
+                Shard shard = shardFor(exchange);
+                if (shard == null) return;
+                
+                // El índice posicional se construye una vez y se queda: solo se reserva una plaza
+                Deadline deadline = Deadline.of(exchange);
+                try (AdmissionControl.Permit permit = admit(exchange, 0, deadline)) {
+                    if (permit == null) return;
+                    long start = System.nanoTime();
+                    List<Shard.Occurrences> found = shard.lookup(phrase, LOOKUP_LINES_PER_BOOK, deadline);
+                    try (DataOutputStream out = binaryResponse(exchange, true)) {
+                        out.writeInt(found.size());
+                        for (Shard.Occurrences occurrences : found) {
+                            out.writeInt(shard.globalBookId(occurrences.bookId));
+                            out.writeUTF(shortenBookName(shard.bookName(occurrences.bookId)));
+                            out.writeInt(occurrences.count);
+                            out.writeInt(occurrences.lines.length);
+                            for (int line : occurrences.lines) {
+                                out.writeInt(line);
+                            }
+                        }
+                    }
+                    Log.debug(() -> "Servidor " + serverId + " buscó \"" + String.join(" ", phrase) + "\": " + found.size()
+                            + " libros (" + TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start) + " µs)");
+                } catch (CancellationException e) {
+                    cancelled(exchange, "/lookup");
                 }
-                return "\"" + title + "\" (" + author + ")";
             }
-            return name.length() > 40 ? name.substring(0, 40) + "..." : name;
         }
     }
     
+    /**
+     * Revisa el directorio de libros sin esperar a la revisión periódica y responde con el resumen
+     * de los cambios. Los libros nuevos se incorporan en segundo plano con la siguiente configuración.
+     */
+    private class IngestHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                exchange.getRequestBody().readAllBytes();
+                String summary;
+                int status = 200;
+                try {
+                    summary = heartbeat.submit(ProcessingServer.this::rescanCorpus).get();
+                } catch (ExecutionException e) {
+                    summary = "Error revisando el corpus: " + e.getCause().getMessage();
+                    status = 500;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    summary = "Revisión del corpus interrumpida";
+                    status = 503;
+                }
+                byte[] response = (summary + "\n").getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                exchange.sendResponseHeaders(status, response.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response);
+                }
+            }
+        }
+    }
+    
+    static String shortenBookName(String fullName) {
+        String name = fullName.replace("_.txt", "").replace("_", " ");
+        String[] parts = name.split("__");
+        if (parts.length >= 2) {
+            String author = parts[0].replace("_", ", ");
+            String title = parts[1].replace("_", " ");
+            if (title.length() > 30) {
+                title = title.substring(0, 30) + "...";
+            }
+            return "\"" + title + "\" (" + author + ")";
+        }
+        return name.length() > 40 ? name.substring(0, 40) + "..." : name;
+    }
+    
+    /**
+     * Empieza una respuesta binaria por bloques. Con {@code compressible} se comprime con deflate
+     * si el coordinador lo acepta; las respuestas que son sobre todo hashes no se comprimen,
+     * porque deflate apenas las reduce y multiplica el tiempo de envío.
+     */
+    private static DataOutputStream binaryResponse(HttpExchange exchange, boolean compressible) throws IOException {
+        String accepted = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean compressed = compressible && accepted != null && accepted.contains(WireFormat.ENCODING);
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        if (compressed) exchange.getResponseHeaders().set("Content-Encoding", WireFormat.ENCODING);
+        exchange.sendResponseHeaders(200, 0);
+        OutputStream body = compressed ? WireFormat.deflate(exchange.getResponseBody()) : exchange.getResponseBody();
+        return new DataOutputStream(new BufferedOutputStream(body, 1 << 16));
+    }
+    
     public static void main(String[] args) {
-        if (args.length != 1) {
-            System.out.println("Uso: java ProcessingServer <server_id>");
-            System.out.println("server_id debe ser 1, 2 o 3");
+        if (args.length > 2) {
+            System.out.println("Uso: java ProcessingServer [server_id [puerto]]");
+            System.out.println("Por defecto, server_id es el nombre del host y el puerto, PORT u 8081");
             return;
         }
         
-        int serverId = Integer.parseInt(args[0]);
-        int port = 8080 + serverId;
+        String serverId = args.length > 0 ? args[0] : hostName();
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : Params.envInt("PORT", 8081);
+        String coordinatorUrl = Params.env("COORDINATOR_URL", "http://web-server:8080");
+        // Por defecto se anuncia la IP del host, que el coordinador alcanza aunque haya varias
+        // réplicas del mismo servicio
+        String advertisedUrl = Params.env("ADVERTISED_URL", "http://" + hostAddress() + ":" + port);
         
         try {
-            ProcessingServer server = new ProcessingServer(port, serverId);
+            ProcessingServer server = new ProcessingServer(port, serverId, coordinatorUrl, advertisedUrl);
             server.start();
             
-            System.out.println("Servidor " + serverId + " listo para procesar solicitudes");
+            Log.info("Servidor " + serverId + " listo para procesar solicitudes");
             Thread.currentThread().join();
         } catch (Exception e) {
-            System.err.println("Error en servidor " + serverId + ": " + e.getMessage());
+            Log.error("Error en servidor " + serverId + ": " + e.getMessage());
+        }
+    }
+    
+    private static String hostAddress() {
+        try {
+            return InetAddress.getLocalHost().getHostAddress();
+        } catch (IOException e) {
+            return "localhost";
+        }
+    }
+    
+    private static String hostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (IOException e) {
+            return "localhost";
         }
     }
-}
\ No newline at end of file
+}
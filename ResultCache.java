@@ -0,0 +1,85 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caché de respuestas completas del coordinador, acotada en bytes y con expulsión LRU. Las
+ * claves incluyen la versión del corpus; cuando cambia la versión se vacía la caché.
+ * Además agrupa las consultas idénticas simultáneas: solo la primera calcula el resultado y
+ * las demás esperan a que termine.
+ */
+public class ResultCache {
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, CompletableFuture<byte[]>> inFlight = new ConcurrentHashMap<>();
+    private long bytes;
+    private long version;
+
+    /** Ninguna entrada puede ocupar más de una cuarta parte del total. */
+    public ResultCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 4;
+    }
+
+    public long maxEntryBytes() {
+        return maxEntryBytes;
+    }
+
+    /** Bytes que ocupan ahora los resultados guardados. */
+    public synchronized long usedBytes() {
+        return bytes;
+    }
+
+    public synchronized long version() {
+        return version;
+    }
+
+    /** Registra la versión del corpus; si cambia, los resultados guardados dejan de valer. */
+    public synchronized void setVersion(long version) {
+        if (this.version != version) {
+            this.version = version;
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    public synchronized byte[] get(String key) {
+        return entries.get(key);
+    }
+
+    public synchronized void put(String key, byte[] value) {
+        if (value.length > maxEntryBytes) return;
+        byte[] previous = entries.put(key, value);
+        bytes += value.length - (previous == null ? 0 : previous.length);
+        Iterator<byte[]> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Devuelve el cálculo en curso de {@code key}, o null si no hay ninguno: en ese caso el
+     * llamador pasa a calcularlo y debe llamar después a {@link #complete}.
+     */
+    public CompletableFuture<byte[]> joinInFlight(String key) {
+        return inFlight.putIfAbsent(key, new CompletableFuture<>());
+    }
+
+    /**
+     * Termina el cálculo de {@code key}: guarda el resultado (si no es null) y despierta a las
+     * consultas que esperaban. Con null vuelven a agruparse y una de ellas lo calcula de nuevo.
+     */
+    public void complete(String key, byte[] value) {
+        if (value != null) {
+            put(key, value);
+        }
+        CompletableFuture<byte[]> pending = inFlight.remove(key);
+        if (pending != null) {
+            pending.complete(value);
+        }
+    }
+}
@@ -0,0 +1,786 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Libros que un servidor tiene asignados en una configuración del clúster, con sus índices y
+ * conjuntos de n-gramas. La asignación no cambia: cuando cambian los miembros o el corpus, el
+ * servidor crea otro a partir de este ({@link #update}) y lo sustituye, y las consultas en curso
+ * terminan con el anterior.
+ */
+public class Shard {
+    private static final int MIN_INDEXED_NWORDS = 2;
+    private static final int MAX_INDEXED_NWORDS = 10;
+
+    /** Bytes de texto por token, aproximadamente, para estimar los tokens de los libros sin cargar. */
+    private static final int BYTES_PER_TOKEN = 6;
+    /** Memoria con que se calcula el conjunto de un libro, por token: hashes, posiciones, los de la ordenación y la copia final. */
+    private static final int SET_BYTES_PER_TOKEN = 36;
+    /** Memoria de un índice por token de los libros; con n-gramas de dos palabras casi todos son compartidos. */
+    private static final int INDEX_BYTES_PER_TOKEN = 8;
+    /** Memoria de cada palabra del texto de una frase que se devuelve. */
+    private static final int PHRASE_BYTES_PER_WORD = 16;
+    /** Cada cuántos grupos de la mezcla se comprueba el plazo de la consulta. */
+    private static final int DEADLINE_CHECK_INTERVAL = 4096;
+
+    private final String serverId;
+    private final List<String> bookNames;
+    private final long[] stamps;
+    private final int[] globalBookIds;
+    private final IndexSnapshot snapshot;
+    private final BookStore bookStore;
+    private final WordDictionary dictionary;
+    private final ForkJoinPool computePool;
+    private final Metrics metrics;
+    private final long version;
+    private final long estimatedLoad;
+    private final Map<Integer, NGramIndex> indexes = new ConcurrentHashMap<>();
+    private final Map<Integer, NGramSet[]> ngramSets = new ConcurrentHashMap<>();
+    private final Map<Integer, long[][]> signatures = new ConcurrentHashMap<>();
+    private volatile PositionalIndex positionalIndex;
+    private volatile boolean retired;
+
+    /**
+     * Shard del que parte este, mientras se preparan sus índices, y posición en él de cada libro
+     * que no ha cambiado (-1 si es nuevo o se ha modificado).
+     */
+    private volatile Shard base;
+    private final int[] baseIds;
+
+    /**
+     * @param paths         libros asignados
+     * @param globalBookIds identificador global de cada libro (su posición en el corpus ordenado)
+     * @param estimatedLoad trabajo estimado de los libros ({@link ConsistentHash#work})
+     */
+    public Shard(String serverId, List<Path> paths, int[] globalBookIds, long estimatedLoad, IndexSnapshot snapshot,
+                 WordDictionary dictionary, ForkJoinPool computePool, Metrics metrics) {
+        this(serverId, paths, stamps(paths), globalBookIds, estimatedLoad, snapshot, dictionary, computePool, metrics, null, null);
+    }
+
+    private Shard(String serverId, List<Path> paths, long[] stamps, int[] globalBookIds, long estimatedLoad,
+                  IndexSnapshot snapshot, WordDictionary dictionary, ForkJoinPool computePool, Metrics metrics,
+                  Shard base, int[] baseIds) {
+        this.serverId = serverId;
+        this.bookNames = new ArrayList<>();
+        for (Path path : paths) {
+            bookNames.add(path.getFileName().toString());
+        }
+        this.stamps = stamps;
+        this.globalBookIds = globalBookIds;
+        this.snapshot = snapshot;
+        this.bookStore = new BookStore(paths, snapshot, dictionary, metrics);
+        this.dictionary = dictionary;
+        this.computePool = computePool;
+        this.metrics = metrics;
+        this.version = corpusVersion(bookNames, stamps);
+        this.estimatedLoad = estimatedLoad;
+        this.base = base;
+        this.baseIds = baseIds;
+        if (base != null) {
+            for (int bookId = 0; bookId < baseIds.length; bookId++) {
+                if (baseIds[bookId] >= 0) bookStore.reuse(bookId, base.bookStore, baseIds[bookId]);
+            }
+        }
+    }
+
+    /**
+     * Shard con otra lista de libros (en el mismo orden global) que parte de este: los libros que
+     * siguen y no han cambiado conservan sus tokens y conjuntos de n-gramas, y los índices que ya
+     * tiene construidos se actualizan solo con los libros nuevos o modificados. Si no cambia
+     * nada, devuelve este mismo shard.
+     */
+    public Shard update(List<Path> paths, int[] globalBookIds, long estimatedLoad) {
+        Map<String, Integer> current = new HashMap<>();
+        for (int bookId = 0; bookId < bookNames.size(); bookId++) {
+            current.put(bookNames.get(bookId), bookId);
+        }
+        long[] stamps = stamps(paths);
+        int[] baseIds = new int[paths.size()];
+        boolean same = paths.size() == bookNames.size() && estimatedLoad == this.estimatedLoad
+                && Arrays.equals(globalBookIds, this.globalBookIds);
+        int last = -1;
+        for (int bookId = 0; bookId < baseIds.length; bookId++) {
+            Integer previous = current.get(paths.get(bookId).getFileName().toString());
+            baseIds[bookId] = previous != null && this.stamps[previous] == stamps[bookId] ? previous : -1;
+            same &= baseIds[bookId] == bookId;
+            if (baseIds[bookId] >= 0) {
+                // Los índices se actualizan renumerando los libros: tienen que conservar su orden
+                if (baseIds[bookId] < last) {
+                    return new Shard(serverId, paths, globalBookIds, estimatedLoad, snapshot, dictionary, computePool, metrics);
+                }
+                last = baseIds[bookId];
+            }
+        }
+        if (same) return this;
+        return new Shard(serverId, paths, stamps, globalBookIds, estimatedLoad, snapshot, dictionary, computePool, metrics,
+                this, baseIds);
+    }
+
+    public long estimatedLoad() {
+        return estimatedLoad;
+    }
+
+    /** Tokens de los libros ya cargados: la carga real, que se compara con la estimada. */
+    public long loadedTokens() {
+        return bookStore.loadedTokens();
+    }
+
+    public int size() {
+        return bookNames.size();
+    }
+
+    public String bookName(int bookId) {
+        return bookNames.get(bookId);
+    }
+
+    public List<String> bookNames() {
+        return bookNames;
+    }
+
+    public int globalBookId(int bookId) {
+        return globalBookIds[bookId];
+    }
+
+    /** Versión de los libros asignados: cambia si se añade, quita o modifica alguno. */
+    public long version() {
+        return version;
+    }
+
+    private static long corpusVersion(List<String> bookNames, long[] stamps) {
+        long version = bookNames.size();
+        for (int bookId = 0; bookId < stamps.length; bookId++) {
+            version = version * 31 + bookNames.get(bookId).hashCode();
+            version = version * 31 + stamps[bookId];
+        }
+        return WordDictionary.mix(version);
+    }
+
+    /** Tamaño y fecha de cada libro: si cambian, el libro se ha modificado. */
+    private static long[] stamps(List<Path> paths) {
+        long[] stamps = new long[paths.size()];
+        for (int bookId = 0; bookId < stamps.length; bookId++) {
+            stamps[bookId] = stamp(paths.get(bookId));
+        }
+        return stamps;
+    }
+
+    static long stamp(Path path) {
+        try {
+            return Files.size(path) * 31 + Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            Log.error("Error leyendo " + path.getFileName() + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /** Marca el shard como sustituido: su preparación en segundo plano deja de avanzar. */
+    public void retire() {
+        retired = true;
+    }
+
+    /**
+     * Tokeniza en segundo plano los libros que aún no se han usado, sin retrasar el arranque, y
+     * reconstruye los índices de los tamaños que ya tienen conjuntos en la instantánea o que
+     * tenía construidos el shard del que parte. Va en un hilo propio y no en el pool de
+     * cálculo: si una consulta está construyendo los mismos conjuntos, este hilo espera a que
+     * termine, y ocupando un hilo del pool podría dejarla sin hilos con los que avanzar.
+     */
+    public void warmUp() {
+        Thread thread = new Thread(() -> {
+            long start = System.currentTimeMillis();
+            for (int bookId = 0; bookId < bookStore.size(); bookId++) {
+                if (retired) return;
+                bookStore.get(bookId);
+            }
+            Log.info("Servidor " + serverId + " listo. Libros cargados: " + bookStore.size()
+                    + " (" + dictionary.size() + " palabras distintas, " + (System.currentTimeMillis() - start) + " ms)");
+            getPositionalIndex();
+
+            Shard seed = base;
+            for (int nWords = MIN_INDEXED_NWORDS; nWords <= MAX_INDEXED_NWORDS; nWords++) {
+                if (retired) return;
+                if (bookStore.hasNGrams(nWords) || seed != null && seed.indexes.containsKey(nWords)) {
+                    getIndex(nWords);
+                }
+            }
+            // Los índices ya no dependen del shard anterior, que puede liberarse
+            base = null;
+        }, "precarga-" + serverId);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Índice posicional de los libros; se construye la primera vez que se necesita. */
+    public PositionalIndex getPositionalIndex() {
+        PositionalIndex index = positionalIndex;
+        if (index != null) return index;
+        synchronized (this) {
+            if (positionalIndex == null) {
+                long start = System.currentTimeMillis();
+                TokenizedBook[] books = new TokenizedBook[bookStore.size()];
+                for (int bookId = 0; bookId < books.length; bookId++) {
+                    books[bookId] = bookStore.get(bookId);
+                }
+                positionalIndex = PositionalIndex.build(books, dictionary.size());
+                Log.info("Servidor " + serverId + " índice posicional listo: " + loadedTokens()
+                        + " tokens (" + (System.currentTimeMillis() - start) + " ms)");
+            }
+            return positionalIndex;
+        }
+    }
+
+    /** Apariciones de una frase en un libro del shard. */
+    public static class Occurrences {
+        final int bookId;
+        /** Apariciones en el libro, aunque no se devuelvan todas sus líneas. */
+        final int count;
+        /** Número de línea en el texto original de las primeras apariciones. */
+        final int[] lines;
+
+        Occurrences(int bookId, int count, int[] lines) {
+            this.bookId = bookId;
+            this.count = count;
+            this.lines = lines;
+        }
+    }
+
+    /**
+     * Busca una frase, ya separada en palabras normalizadas, en los libros del shard. Se recorren
+     * las apariciones de su palabra menos frecuente en el índice posicional y en cada una se
+     * comparan los tokens de alrededor; igual que los n-gramas, la frase no puede cruzar líneas.
+     * Si alguna palabra no está en el diccionario, ningún libro la contiene. De cada libro se
+     * guardan las líneas de las {@code maxLines} primeras apariciones y se cuentan todas; el plazo
+     * de la consulta se comprueba cada {@link #DEADLINE_CHECK_INTERVAL} apariciones.
+     *
+     * @return apariciones por libro, en orden de libro
+     */
+    public List<Occurrences> lookup(List<String> phrase, int maxLines, Deadline deadline) {
+        int[] words = new int[phrase.size()];
+        for (int k = 0; k < words.length; k++) {
+            words[k] = dictionary.find(phrase.get(k));
+            if (words[k] < 0) return Collections.emptyList();
+        }
+        if (words.length == 0) return Collections.emptyList();
+
+        PositionalIndex index = getPositionalIndex();
+        int rarest = 0;
+        for (int k = 1; k < words.length; k++) {
+            if (index.count(words[k]) < index.count(words[rarest])) rarest = k;
+        }
+
+        List<Occurrences> found = new ArrayList<>();
+        int currentBook = -1;
+        int[] lines = new int[Math.min(16, maxLines)];
+        int size = 0;
+        int count = 0;
+        for (int i = 0; i < index.count(words[rarest]); i++) {
+            if (i % DEADLINE_CHECK_INTERVAL == 0) deadline.check();
+            int bookId = index.book(words[rarest], i);
+            if (bookId != currentBook) {
+                if (count > 0) found.add(new Occurrences(currentBook, count, Arrays.copyOf(lines, size)));
+                currentBook = bookId;
+                size = 0;
+                count = 0;
+            }
+            TokenizedBook book = bookStore.get(bookId);
+            int start = index.position(words[rarest], i) - rarest;
+            if (!matchesAt(book, start, words)) continue;
+            count++;
+            if (size == maxLines) continue;
+            if (size == lines.length) lines = Arrays.copyOf(lines, Math.min(size * 2, maxLines));
+            lines[size++] = book.sourceLine(book.lineOf(start));
+        }
+        if (count > 0) found.add(new Occurrences(currentBook, count, Arrays.copyOf(lines, size)));
+        return found;
+    }
+
+    private static boolean matchesAt(TokenizedBook book, int start, int[] words) {
+        if (start < 0 || start + words.length > book.tokenCount()) return false;
+        for (int k = 0; k < words.length; k++) {
+            if (book.token(start + k) != words[k]) return false;
+        }
+        return start + words.length <= book.lineStart(book.lineOf(start) + 1);
+    }
+
+    public NGramIndex getIndex(int nWords) {
+        return getIndex(nWords, Deadline.NONE);
+    }
+
+    /**
+     * Índice de n-gramas compartidos. Los tamaños que no se cachean se calculan para la consulta y
+     * se abandonan si pasa su plazo; los que se cachean se terminan siempre, porque los
+     * aprovechan las consultas siguientes y las que esperan a la misma construcción.
+     */
+    public NGramIndex getIndex(int nWords, Deadline deadline) {
+        // Solo se cachean los tamaños que ofrece la interfaz; el resto se calcula bajo demanda
+        if (!cached(nWords)) {
+            return buildIndex(nWords, deadline);
+        }
+        return indexes.computeIfAbsent(nWords, n -> buildIndex(n, Deadline.NONE));
+    }
+
+    /**
+     * Índices de todos los tamaños de {@code minWords} a {@code maxWords}, por tamaño. Los
+     * conjuntos que les faltan se extraen juntos ({@link #getNGramSets(int, int, Deadline)}), que es
+     * lo que se ahorra al pedir un rango en lugar de cada tamaño por separado.
+     */
+    public NGramIndex[] getIndexes(int minWords, int maxWords, Deadline deadline) {
+        boolean missing = false;
+        for (int n = minWords; n <= maxWords; n++) {
+            missing |= !indexes.containsKey(n);
+        }
+        NGramSet[][] sets = missing ? getNGramSets(minWords, maxWords, deadline) : null;
+        NGramIndex[] range = new NGramIndex[maxWords - minWords + 1];
+        for (int n = minWords; n <= maxWords; n++) {
+            NGramSet[] ready = sets != null ? sets[n - minWords] : null;
+            range[n - minWords] = cached(n)
+                    ? indexes.computeIfAbsent(n, k -> buildIndex(k, ready != null ? ready : getNGramSets(k), Deadline.NONE))
+                    : buildIndex(n, ready, deadline);
+        }
+        return range;
+    }
+
+    /** Tamaños de n-grama cuyos conjuntos e índices se conservan, en memoria y en la instantánea. */
+    static boolean cached(int nWords) {
+        return nWords >= MIN_INDEXED_NWORDS && nWords <= MAX_INDEXED_NWORDS;
+    }
+
+    /**
+     * Memoria de trabajo que necesita una consulta de {@code nWords} palabras para construir lo
+     * que aún no tiene: los conjuntos de n-gramas que no están en la instantánea, calculados a la
+     * vez por los hilos del pool, y, si hace falta, el índice. Lo que ya está construido no cuenta.
+     */
+    public long workingBytes(int nWords, boolean withIndex) {
+        return workingBytes(nWords, nWords, withIndex);
+    }
+
+    /** Como {@link #workingBytes(int, boolean)} con todos los tamaños de un rango, que se extraen juntos. */
+    public long workingBytes(int minWords, int maxWords, boolean withIndex) {
+        long bytes = 0;
+        int missingSets = 0;
+        for (int n = minWords; n <= maxWords; n++) {
+            if (withIndex && !indexes.containsKey(n)) {
+                bytes += tokens() * INDEX_BYTES_PER_TOKEN;
+            }
+            if (!ngramSets.containsKey(n) && !bookStore.hasNGrams(n)) missingSets++;
+        }
+        if (missingSets > 0) {
+            long largest = 0;
+            for (int bookId = 0; bookId < bookStore.size(); bookId++) {
+                largest = Math.max(largest, bookStore.textSize(bookId));
+            }
+            bytes += Math.min(bookStore.size(), computePool.getParallelism()) * (largest / BYTES_PER_TOKEN)
+                    * SET_BYTES_PER_TOKEN * missingSets;
+        }
+        return bytes;
+    }
+
+    /** Tokens de los libros; los que aún no se han cargado se estiman por el tamaño del texto. */
+    private long tokens() {
+        long loaded = bookStore.loadedTokens();
+        if (loaded > 0) return loaded;
+        long text = 0;
+        for (int bookId = 0; bookId < bookStore.size(); bookId++) {
+            text += bookStore.textSize(bookId);
+        }
+        return text / BYTES_PER_TOKEN;
+    }
+
+    private NGramIndex buildIndex(int nWords, Deadline deadline) {
+        return buildIndex(nWords, getNGramSets(nWords, deadline), deadline);
+    }
+
+    private NGramIndex buildIndex(int nWords, NGramSet[] sets, Deadline deadline) {
+        Shard seed = base;
+        NGramIndex previous = seed != null ? seed.indexes.get(nWords) : null;
+        int[] added = addedBooks();
+        // Actualizar cuesta según los libros nuevos y reconstruir según todos: con muchos nuevos se reconstruye
+        if (added.length * 2 > bookNames.size()) previous = null;
+        int[] toCurrent = null;
+        if (previous != null) {
+            toCurrent = new int[seed.size()];
+            Arrays.fill(toCurrent, -1);
+            for (int bookId = 0; bookId < baseIds.length; bookId++) {
+                if (baseIds[bookId] >= 0) toCurrent[baseIds[bookId]] = bookId;
+            }
+            Log.info("Servidor " + serverId + " actualizando índice de " + nWords + " palabras con "
+                    + added.length + " libros nuevos o modificados de " + bookNames.size() + "...");
+        } else {
+            Log.info("Servidor " + serverId + " construyendo índice de " + nWords + " palabras para " + bookNames.size() + " libros...");
+        }
+        long start = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+
+        TokenizedBook[] books = new TokenizedBook[sets.length];
+        for (int bookId = 0; bookId < books.length; bookId++) {
+            books[bookId] = bookStore.get(bookId);
+        }
+
+        // Los hashes son uniformes, así que rangos de igual anchura tienen un trabajo parecido;
+        // hay más rangos que hilos para que el robo de tareas absorba las diferencias
+        int ranges = computePool.getParallelism() * 4;
+        AtomicInteger collisions = new AtomicInteger();
+        List<ForkJoinTask<NGramIndex>> tasks = new ArrayList<>();
+        for (int range = 0; range < ranges; range++) {
+            final int current = range;
+            final NGramIndex update = previous;
+            final int[] renumber = toCurrent;
+            tasks.add(computePool.submit(() -> update != null
+                    ? updateIndexRange(update, renumber, added, sets, books, nWords, current, ranges, collisions)
+                    : buildIndexRange(sets, books, nWords, current, ranges, collisions, deadline)));
+        }
+        List<NGramIndex> parts = new ArrayList<>();
+        for (ForkJoinTask<NGramIndex> task : tasks) {
+            parts.add(task.join());
+        }
+        NGramIndex index = NGramIndex.concat(nWords, parts);
+        metrics.phase("intersect", startNanos);
+        metrics.set(Metrics.series("ngram_index_entries", "nWords", nWords), index.size());
+
+        Log.info("Servidor " + serverId + " índice de " + nWords + " palabras listo: " + index.size()
+                + " n-gramas compartidos, " + collisions.get() + " colisiones de hash (" + (System.currentTimeMillis() - start) + " ms)");
+        return index;
+    }
+
+    /** Mezcla lineal de un rango de hashes de los conjuntos ordenados: cada grupo con dos o más libros es una coincidencia. */
+    private NGramIndex buildIndexRange(NGramSet[] sets, TokenizedBook[] books, int nWords, int range, int ranges,
+                                       AtomicInteger collisions, Deadline deadline) {
+        int[] from = new int[sets.length];
+        int[] to = new int[sets.length];
+        for (int i = 0; i < sets.length; i++) {
+            from[i] = sets[i].partitionStart(range, ranges);
+            to[i] = sets[i].partitionStart(range + 1, ranges);
+        }
+
+        NGramIndex.Builder builder = new NGramIndex.Builder(nWords);
+        int[] verified = new int[sets.length];
+        int[] groups = { 0 };
+        NGramSet.merge(sets, from, to, (hash, members, positions, count) -> {
+            if (++groups[0] % DEADLINE_CHECK_INTERVAL == 0) deadline.check();
+            if (count < 2) return;
+
+            int first = members[0];
+            int verifiedCount = 0;
+            for (int i = 0; i < count; i++) {
+                if (i == 0 || books[first].sameNGram(positions[0], books[members[i]], positions[i], nWords)) {
+                    verified[verifiedCount++] = members[i];
+                } else {
+                    collisions.incrementAndGet();
+                }
+            }
+            if (verifiedCount >= 2) {
+                builder.add(hash, books[first].phraseAt(positions[0], nWords, dictionary), verified, verifiedCount);
+            }
+        });
+        return builder.build();
+    }
+
+    /** Libros nuevos o modificados respecto al shard del que parte, en orden ascendente. */
+    private int[] addedBooks() {
+        if (baseIds == null) return new int[0];
+        return IntStream.range(0, baseIds.length).filter(bookId -> baseIds[bookId] < 0).toArray();
+    }
+
+    /**
+     * Actualiza un rango de hashes del índice anterior sin recorrer los conjuntos de los libros que
+     * no han cambiado: sus entradas se conservan con los libros renumerados y sin los que ya no
+     * están, y solo se mezclan los n-gramas de los libros nuevos, que se añaden a la entrada del
+     * mismo hash o, si no la hay, se buscan en los conjuntos de los demás libros.
+     *
+     * @param toCurrent posición en este shard de cada libro del anterior, o -1 si ya no está
+     * @param added     libros nuevos o modificados
+     */
+    private NGramIndex updateIndexRange(NGramIndex previous, int[] toCurrent, int[] added, NGramSet[] sets,
+                                        TokenizedBook[] books, int nWords, int range, int ranges, AtomicInteger collisions) {
+        int[] kept = IntStream.range(0, baseIds.length).filter(bookId -> baseIds[bookId] >= 0).toArray();
+        NGramSet[] addedSets = new NGramSet[added.length];
+        int[] from = new int[added.length];
+        int[] to = new int[added.length];
+        for (int i = 0; i < added.length; i++) {
+            addedSets[i] = sets[added[i]];
+            from[i] = addedSets[i].partitionStart(range, ranges);
+            to[i] = addedSets[i].partitionStart(range + 1, ranges);
+        }
+        int[] entry = { previous.partitionStart(range, ranges) };
+        int end = previous.partitionStart(range + 1, ranges);
+
+        NGramIndex.Builder builder = new NGramIndex.Builder(nWords);
+        int[] members = new int[sets.length];
+        NGramSet.merge(addedSets, from, to, (hash, addedMembers, positions, count) -> {
+            while (entry[0] < end && previous.getHash(entry[0]) < hash) {
+                copyEntry(previous, entry[0]++, toCurrent, members, builder);
+            }
+
+            int size = 0;
+            String phrase = null;
+            if (entry[0] < end && previous.getHash(entry[0]) == hash) {
+                size = renumber(previous, entry[0], toCurrent, members);
+                if (size > 0) phrase = previous.getPhrase(entry[0]);
+                entry[0]++;
+            }
+
+            // Se verifica contra un libro que ya tenía el n-grama o, si no queda ninguno, contra el primero nuevo
+            int reference;
+            int referencePosition;
+            int first;
+            if (size > 0) {
+                reference = members[0];
+                referencePosition = sets[reference].position(sets[reference].indexOf(hash));
+                first = 0;
+            } else {
+                reference = added[addedMembers[0]];
+                referencePosition = positions[0];
+                members[size++] = reference;
+                first = 1;
+                for (int bookId : kept) {
+                    int i = sets[bookId].indexOf(hash);
+                    if (i < 0) continue;
+                    if (books[reference].sameNGram(referencePosition, books[bookId], sets[bookId].position(i), nWords)) {
+                        members[size++] = bookId;
+                    } else {
+                        collisions.incrementAndGet();
+                    }
+                }
+            }
+            for (int i = first; i < count; i++) {
+                int bookId = added[addedMembers[i]];
+                if (books[reference].sameNGram(referencePosition, books[bookId], positions[i], nWords)) {
+                    members[size++] = bookId;
+                } else {
+                    collisions.incrementAndGet();
+                }
+            }
+
+            if (size >= 2) {
+                Arrays.sort(members, 0, size);
+                builder.add(hash, phrase != null ? phrase : books[reference].phraseAt(referencePosition, nWords, dictionary), members, size);
+            }
+        });
+        while (entry[0] < end) {
+            copyEntry(previous, entry[0]++, toCurrent, members, builder);
+        }
+        return builder.build();
+    }
+
+    /** Copia una entrada del índice anterior si conserva al menos dos libros. */
+    private static void copyEntry(NGramIndex previous, int entry, int[] toCurrent, int[] members, NGramIndex.Builder builder) {
+        int size = renumber(previous, entry, toCurrent, members);
+        if (size >= 2) {
+            builder.add(previous.getHash(entry), previous.getPhrase(entry), members, size);
+        }
+    }
+
+    /** Libros de una entrada del índice anterior que siguen en este shard, con su nueva posición. */
+    private static int renumber(NGramIndex previous, int entry, int[] toCurrent, int[] members) {
+        int size = 0;
+        for (int i = 0; i < previous.getBookCount(entry); i++) {
+            int bookId = toCurrent[previous.getBook(entry, i)];
+            if (bookId >= 0) members[size++] = bookId;
+        }
+        return size;
+    }
+
+    public NGramSet[] getNGramSets(int nWords) {
+        return getNGramSets(nWords, Deadline.NONE);
+    }
+
+    /** Conjuntos de n-gramas de los libros; igual que con los índices, solo se abandonan los que no se cachean. */
+    public NGramSet[] getNGramSets(int nWords, Deadline deadline) {
+        if (!cached(nWords)) {
+            return buildNGramSets(nWords, nWords, deadline)[0];
+        }
+        return ngramSets.computeIfAbsent(nWords, n -> buildNGramSets(n, n, Deadline.NONE)[0]);
+    }
+
+    /**
+     * Conjuntos de n-gramas de todos los tamaños de {@code minWords} a {@code maxWords}, por
+     * tamaño. Los que faltan se calculan juntos, con una sola pasada por cada libro, y los de los
+     * tamaños que se cachean se guardan como si se hubieran pedido uno a uno. Si alguno se cachea,
+     * la construcción no se abandona aunque pase el plazo.
+     */
+    public NGramSet[][] getNGramSets(int minWords, int maxWords, Deadline deadline) {
+        int first = -1;
+        int last = -1;
+        boolean shared = false;
+        for (int n = minWords; n <= maxWords; n++) {
+            if (cached(n) && ngramSets.containsKey(n)) continue;
+            if (first < 0) first = n;
+            last = n;
+            shared |= cached(n);
+        }
+        NGramSet[][] built = first < 0 ? new NGramSet[0][] : buildNGramSets(first, last, shared ? Deadline.NONE : deadline);
+
+        NGramSet[][] sets = new NGramSet[maxWords - minWords + 1][];
+        for (int n = minWords; n <= maxWords; n++) {
+            NGramSet[] fresh = n >= first && n <= last ? built[n - first] : null;
+            sets[n - minWords] = cached(n) ? ngramSets.computeIfAbsent(n, k -> fresh) : fresh;
+        }
+        return sets;
+    }
+
+    /**
+     * N-gramas distintos de cada libro asignado, como hashes ordenados con su primera posición,
+     * de todos los tamaños de {@code minWords} a {@code maxWords}: cada libro se recorre una sola
+     * vez para todos ellos. El resultado va por tamaño y, dentro, por libro.
+     */
+    private NGramSet[][] buildNGramSets(int minWords, int maxWords, Deadline deadline) {
+        long start = System.currentTimeMillis();
+        int sizes = maxWords - minWords + 1;
+        NGramSet[][] sets = new NGramSet[sizes][bookNames.size()];
+
+        // Los libros que no han cambiado conservan los conjuntos del shard del que parte
+        Shard seed = base;
+        for (int i = 0; i < sizes && seed != null; i++) {
+            NGramSet[] previous = seed.ngramSets.get(minWords + i);
+            if (previous == null) continue;
+            for (int bookId = 0; bookId < bookNames.size(); bookId++) {
+                if (baseIds[bookId] >= 0) sets[i][bookId] = previous[baseIds[bookId]];
+            }
+        }
+
+        // Primero los libros más largos, para que ninguno quede rezagado al final
+        List<Integer> order = new ArrayList<>();
+        for (int bookId = 0; bookId < bookNames.size(); bookId++) {
+            order.add(bookId);
+        }
+        order.sort(Comparator.comparingLong((Integer bookId) -> bookStore.textSize(bookId)).reversed());
+
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int bookId : order) {
+            int first = -1;
+            int last = -1;
+            for (int i = 0; i < sizes; i++) {
+                if (sets[i][bookId] != null) continue;
+                if (first < 0) first = i;
+                last = i;
+            }
+            if (first < 0) continue;
+            final int from = first;
+            final int to = last;
+            tasks.add(computePool.submit(() -> {
+                deadline.check();
+                NGramSet[] book = bookStore.ngrams(bookId, minWords + from, minWords + to);
+                for (int i = from; i <= to; i++) {
+                    if (sets[i][bookId] == null) sets[i][bookId] = book[i - from];
+                }
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        long total = 0;
+        for (int i = 0; i < sizes; i++) {
+            long hashes = 0;
+            for (NGramSet set : sets[i]) {
+                hashes += set.size();
+            }
+            metrics.set(Metrics.series("ngram_set_hashes", "nWords", minWords + i), hashes);
+            total += hashes;
+        }
+
+        Log.info("Servidor " + serverId + " huellas de " + (sizes == 1 ? minWords : minWords + " a " + maxWords)
+                + " palabras listas: " + total + " hashes (" + (System.currentTimeMillis() - start) + " ms)");
+        return sets;
+    }
+
+    /**
+     * Firma MinHash del conjunto de n-gramas de cada libro, a partir de los conjuntos que ya tiene
+     * la consulta ({@link #getNGramSets(int, Deadline)}). Como los índices, solo se guardan las
+     * de los tamaños que se cachean; las demás se calculan para la consulta dentro de su plazo.
+     */
+    public long[][] getSignatures(int nWords, NGramSet[] sets, Deadline deadline) {
+        if (!cached(nWords)) {
+            return buildSignatures(nWords, sets, deadline);
+        }
+        return signatures.computeIfAbsent(nWords, n -> buildSignatures(n, sets, Deadline.NONE));
+    }
+
+    private long[][] buildSignatures(int nWords, NGramSet[] sets, Deadline deadline) {
+        long[][] computed = new long[sets.length][];
+        long start = System.currentTimeMillis();
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (int bookId = 0; bookId < sets.length; bookId++) {
+            final int id = bookId;
+            tasks.add(computePool.submit(() -> {
+                deadline.check();
+                computed[id] = MinHash.signature(sets[id]);
+            }));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+        Log.info("Servidor " + serverId + " firmas MinHash de " + nWords + " palabras listas: " + sets.length
+                + " libros (" + (System.currentTimeMillis() - start) + " ms)");
+        return computed;
+    }
+
+    /**
+     * Texto de los n-gramas de {@code sortedHashes} (ordenados y sin repetir) que tienen los libros
+     * del shard. En los tamaños que se cachean se buscan en los conjuntos ya construidos; en los
+     * demás se recorren los libros, que cuesta menos que construir sus conjuntos solo para esto.
+     */
+    public Map<Long, String> phrases(int nWords, long[] sortedHashes, Deadline deadline) {
+        Map<Long, String> phrases = new HashMap<>();
+        if (cached(nWords)) {
+            NGramSet[] sets = getNGramSets(nWords);
+            for (int k = 0; k < sortedHashes.length; k++) {
+                if (k % DEADLINE_CHECK_INTERVAL == 0) deadline.check();
+                long hash = sortedHashes[k];
+                for (int bookId = 0; bookId < sets.length; bookId++) {
+                    int i = sets[bookId].indexOf(hash);
+                    if (i >= 0) {
+                        phrases.put(hash, phraseAt(bookId, sets[bookId].position(i), nWords));
+                        break;
+                    }
+                }
+            }
+            return phrases;
+        }
+
+        // Búsqueda binaria sobre los hashes pedidos: sin objetos por cada n-grama recorrido
+        for (int bookId = 0; bookId < size() && phrases.size() < sortedHashes.length; bookId++) {
+            deadline.check();
+            final int id = bookId;
+            extractNGrams(bookId, nWords, (hash, position) -> {
+                if (Arrays.binarySearch(sortedHashes, hash) >= 0 && !phrases.containsKey(hash)) {
+                    phrases.put(hash, phraseAt(id, position, nWords));
+                }
+            });
+        }
+        return phrases;
+    }
+
+    /** Memoria de trabajo de {@link #phrases}: los conjuntos que falten, si se usan, y el texto de las frases. */
+    public long phraseBytes(int nWords, int hashes) {
+        return (cached(nWords) ? workingBytes(nWords, false) : 0) + (long) hashes * nWords * PHRASE_BYTES_PER_WORD;
+    }
+
+    public void extractNGrams(int bookId, int nWords, TokenizedBook.NGramSink sink) {
+        bookStore.get(bookId).forEachNGram(nWords, dictionary, sink);
+    }
+
+    public String phraseAt(int bookId, int position, int nWords) {
+        return bookStore.get(bookId).phraseAt(position, nWords, dictionary);
+    }
+
+    public int tokenCount(int bookId) {
+        return bookStore.get(bookId).tokenCount();
+    }
+
+    /** Palabra del token en {@code position}, ya normalizada. */
+    public String wordAt(int bookId, int position) {
+        return dictionary.word(bookStore.get(bookId).token(position));
+    }
+
+    /** Número de línea en el texto original del token en {@code position}. */
+    public int sourceLineAt(int bookId, int position) {
+        TokenizedBook book = bookStore.get(bookId);
+        return book.sourceLine(book.lineOf(position));
+    }
+}
@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Comprueba que actualizar un shard con {@link Shard#update} deja los mismos índices que
+ * construirlos desde cero con los mismos libros. Copia unos libros de {@code --books} a un
+ * directorio temporal, construye los índices de cada tamaño y aplica varios cambios: quitar
+ * libros, añadirlos y modificar uno (se le quita la primera mitad y se le añade un trozo de otro
+ * libro, para que pierda n-gramas compartidos y gane otros). Tras cada cambio compara, entrada a
+ * entrada, el índice actualizado con el de un shard nuevo con otra instantánea. Termina con código
+ * 1 si alguno no coincide.
+ *
+ * <pre>
+ * java ShardUpdateCheck --books data --nWords 2,3,5
+ * </pre>
+ */
+public class ShardUpdateCheck {
+    /** Libros del shard de partida; los cambios añaden los dos siguientes. */
+    private static final int BASE_BOOKS = 8;
+    /** Bytes de otro libro que se añaden al libro modificado. */
+    private static final int COPIED_BYTES = 8192;
+
+    private final List<Path> sources;
+    private final Path directory;
+    private final int[] nWordsValues;
+    private final WordDictionary dictionary = new WordDictionary();
+    private final ForkJoinPool pool = new ForkJoinPool();
+    private final Metrics metrics = new Metrics();
+    private IndexSnapshot snapshot;
+    private int failures;
+
+    ShardUpdateCheck(List<Path> sources, Path directory, int[] nWordsValues) {
+        this.sources = sources;
+        this.directory = directory;
+        this.nWordsValues = nWordsValues;
+    }
+
+    /** Un cambio del corpus: recibe los libros del shard actual y devuelve los del siguiente. */
+    private interface Change {
+        List<Path> apply(List<Path> books) throws IOException;
+    }
+
+    void run() throws IOException {
+        Path booksDirectory = Files.createDirectories(directory.resolve("libros"));
+        List<Path> books = new ArrayList<>();
+        for (int i = 0; i < BASE_BOOKS; i++) {
+            books.add(Files.copy(sources.get(i), booksDirectory.resolve(sources.get(i).getFileName())));
+        }
+        snapshot = new IndexSnapshot(directory.resolve("instantanea"));
+        snapshot.loadDictionary(dictionary);
+        Shard shard = shard(books, snapshot);
+        for (int nWords : nWordsValues) {
+            shard.getIndex(nWords);
+        }
+
+        Map<String, Change> changes = new LinkedHashMap<>();
+        changes.put("quitar dos libros", current -> without(current, 2, 5));
+        changes.put("añadir un libro", current -> with(current, booksDirectory, BASE_BOOKS));
+        changes.put("quitar, modificar y añadir", current -> {
+            modify(current.get(3), current.get(0));
+            return with(without(current, 1), booksDirectory, BASE_BOOKS + 1);
+        });
+        changes.put("modificar uno", current -> {
+            modify(current.get(0), current.get(current.size() - 1));
+            return current;
+        });
+
+        int step = 0;
+        for (Map.Entry<String, Change> change : changes.entrySet()) {
+            List<Path> next = change.getValue().apply(new ArrayList<>(books));
+            next.sort(Comparator.comparing(path -> path.getFileName().toString()));
+            Shard updated = shard.update(next, ids(next.size()), 0);
+            if (updated == shard) {
+                failures++;
+                System.out.println(change.getKey() + ": update no ha detectado el cambio");
+                continue;
+            }
+            IndexSnapshot fresh = new IndexSnapshot(directory.resolve("referencia-" + step++));
+            fresh.loadDictionary(dictionary);
+            Shard rebuilt = shard(next, fresh);
+            for (int nWords : nWordsValues) {
+                compare(change.getKey() + ", " + nWords + " palabras", updated.getIndex(nWords), rebuilt.getIndex(nWords));
+            }
+            shard = updated;
+            books = next;
+        }
+    }
+
+    private Shard shard(List<Path> books, IndexSnapshot snapshot) {
+        return new Shard("comprobacion", books, ids(books.size()), 0, snapshot, dictionary, pool, metrics);
+    }
+
+    private static int[] ids(int books) {
+        int[] ids = new int[books];
+        Arrays.setAll(ids, i -> i);
+        return ids;
+    }
+
+    private static List<Path> without(List<Path> books, int... removed) {
+        List<Path> kept = new ArrayList<>();
+        for (int i = 0; i < books.size(); i++) {
+            final int bookId = i;
+            if (Arrays.stream(removed).noneMatch(r -> r == bookId)) kept.add(books.get(i));
+        }
+        return kept;
+    }
+
+    private List<Path> with(List<Path> books, Path booksDirectory, int source) throws IOException {
+        books.add(Files.copy(sources.get(source), booksDirectory.resolve(sources.get(source).getFileName())));
+        return books;
+    }
+
+    /** Deja la segunda mitad del libro y le añade el principio de otro; cambia también la fecha. */
+    private static void modify(Path book, Path other) throws IOException {
+        byte[] text = Files.readAllBytes(book);
+        byte[] copied = Files.readAllBytes(other);
+        byte[] changed = Arrays.copyOfRange(text, text.length / 2, text.length + Math.min(COPIED_BYTES, copied.length));
+        System.arraycopy(copied, 0, changed, text.length - text.length / 2, changed.length - (text.length - text.length / 2));
+        FileTime modified = Files.getLastModifiedTime(book);
+        Files.write(book, changed);
+        Files.setLastModifiedTime(book, FileTime.fromMillis(modified.toMillis() + 1000));
+    }
+
+    /** Compara entrada a entrada: hash, frase y libros. */
+    private void compare(String name, NGramIndex updated, NGramIndex rebuilt) {
+        String mismatch = null;
+        if (updated.size() != rebuilt.size()) {
+            mismatch = updated.size() + " entradas, se esperaban " + rebuilt.size();
+        }
+        for (int entry = 0; mismatch == null && entry < rebuilt.size(); entry++) {
+            if (updated.getHash(entry) != rebuilt.getHash(entry) || !updated.getPhrase(entry).equals(rebuilt.getPhrase(entry))
+                    || !Arrays.equals(books(updated, entry), books(rebuilt, entry))) {
+                mismatch = "entrada " + entry + ": \"" + updated.getPhrase(entry) + "\" " + Arrays.toString(books(updated, entry))
+                        + ", se esperaba \"" + rebuilt.getPhrase(entry) + "\" " + Arrays.toString(books(rebuilt, entry));
+            }
+        }
+        if (mismatch != null) failures++;
+        System.out.println(String.format("%-45s %s", name, mismatch == null ? rebuilt.size() + " entradas, iguales" : "DISTINTO: " + mismatch));
+    }
+
+    private static int[] books(NGramIndex index, int entry) {
+        int[] books = new int[index.getBookCount(entry)];
+        Arrays.setAll(books, i -> index.getBook(entry, i));
+        return books;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        List<Path> sources;
+        try (Stream<Path> files = Files.list(Paths.get(options.getOrDefault("books", "data")))) {
+            sources = files.filter(path -> path.toString().endsWith(".txt")).sorted().collect(Collectors.toList());
+        }
+        if (sources.size() < BASE_BOOKS + 2) {
+            System.err.println("Hacen falta al menos " + (BASE_BOOKS + 2) + " libros en " + options.getOrDefault("books", "data"));
+            System.exit(2);
+        }
+        int[] nWordsValues = Arrays.stream(options.getOrDefault("nWords", "2,3,5").split(","))
+                .map(String::trim).mapToInt(Integer::parseInt).toArray();
+
+        Log.setLevel(Log.Level.WARN);
+        Path directory = Files.createTempDirectory("shard-update");
+        ShardUpdateCheck check = new ShardUpdateCheck(sources, directory, nWordsValues);
+        try {
+            check.run();
+        } finally {
+            check.pool.shutdown();
+            delete(directory);
+        }
+        if (check.failures > 0) {
+            System.out.println(check.failures + " índices actualizados no coinciden con los reconstruidos");
+            System.exit(1);
+        }
+    }
+}
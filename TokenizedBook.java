@@ -0,0 +1,305 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Libro tokenizado: ids de palabra del {@link WordDictionary} en orden de aparición y los
+ * límites de cada línea no vacía, con su número de línea en el texto original. Los n-gramas no
+ * cruzan líneas, igual que con el texto limpio.
+ * Los datos pueden estar en el heap o en un archivo de tokens mapeado en memoria.
+ */
+public class TokenizedBook {
+    /** Base del hash polinómico sobre ventanas de palabras. */
+    private static final long BASE = 0x9e3779b97f4a7c15L;
+
+    private final IntBuffer tokens;
+    /** Inicio de cada línea más el final de la última: la línea i es [lineStarts[i], lineStarts[i + 1]). */
+    private final IntBuffer lineStarts;
+    /** Número de línea (desde 1) en el texto original de cada línea registrada. */
+    private final IntBuffer lineNumbers;
+
+    private TokenizedBook(IntBuffer tokens, IntBuffer lineStarts, IntBuffer lineNumbers) {
+        this.tokens = tokens;
+        this.lineStarts = lineStarts;
+        this.lineNumbers = lineNumbers;
+    }
+
+    public interface NGramSink {
+        void accept(long hash, int position);
+    }
+
+    /** Recibe los n-gramas de varios tamaños a la vez, cada uno con su número de palabras. */
+    public interface NGramRangeSink {
+        void accept(int nWords, long hash, int position);
+    }
+
+    public int tokenCount() {
+        return tokens.limit();
+    }
+
+    /** Id de palabra del token en {@code position}. */
+    public int token(int position) {
+        return tokens.get(position);
+    }
+
+    /** Línea registrada que contiene el token en {@code position}. */
+    public int lineOf(int position) {
+        int low = 0;
+        int high = lineStarts.limit() - 2;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (lineStarts.get(mid) <= position) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /** Primer token de la línea registrada {@code line}; el de la siguiente marca su final. */
+    public int lineStart(int line) {
+        return lineStarts.get(line);
+    }
+
+    /** Número de línea en el texto original de la línea registrada {@code line}. */
+    public int sourceLine(int line) {
+        return lineNumbers.get(line);
+    }
+
+    public static TokenizedBook tokenize(String text, WordDictionary dictionary) {
+        Tokenizer tokenizer = new Tokenizer(dictionary);
+        tokenizer.accept(CharBuffer.wrap(text));
+        return tokenizer.finish();
+    }
+
+    /** Palabras de un texto con las mismas reglas que los libros: minúsculas y solo letras. */
+    public static List<String> words(String text) {
+        WordDictionary scratch = new WordDictionary();
+        TokenizedBook book = tokenize(text, scratch);
+        List<String> words = new ArrayList<>();
+        for (int position = 0; position < book.tokenCount(); position++) {
+            words.add(scratch.word(book.token(position)));
+        }
+        return words;
+    }
+
+    /**
+     * Recorre el texto una sola vez, por fragmentos, con las mismas reglas que la antigua
+     * limpieza por expresiones regulares: todo lo que no es letra separa palabras y se pasa a
+     * minúsculas.
+     */
+    public static class Tokenizer {
+        private final WordDictionary dictionary;
+        private int[] tokens = new int[4096];
+        private int[] lineStarts = new int[256];
+        private int[] lineNumbers = new int[256];
+        private int tokenCount;
+        private int lineCount = 1;
+        private int sourceLine = 1;
+        private boolean afterCarriageReturn;
+        private char[] word = new char[64];
+        private int wordLength;
+
+        public Tokenizer(WordDictionary dictionary) {
+            this.dictionary = dictionary;
+        }
+
+        /** Consume el fragmento; un surrogate alto al final se deja en el buffer para el siguiente. */
+        public void accept(CharBuffer chunk) {
+            int i = chunk.position();
+            int limit = chunk.limit();
+            while (i < limit) {
+                char c = chunk.get(i);
+                if (Character.isHighSurrogate(c) && i + 1 == limit) break;
+
+                int codePoint = Character.isHighSurrogate(c) && Character.isLowSurrogate(chunk.get(i + 1))
+                        ? Character.toCodePoint(c, chunk.get(i + 1)) : c;
+                i += Character.charCount(codePoint);
+                accept(codePoint);
+            }
+            chunk.position(i);
+        }
+
+        private void accept(int codePoint) {
+            if (Character.isLetter(codePoint)) {
+                if (wordLength + 2 > word.length) {
+                    word = Arrays.copyOf(word, word.length * 2);
+                }
+                wordLength += Character.toChars(Character.toLowerCase(codePoint), word, wordLength);
+                return;
+            }
+
+            if (wordLength > 0) {
+                if (tokenCount == tokens.length) {
+                    tokens = Arrays.copyOf(tokens, tokenCount * 2);
+                }
+                // El primer token de una línea fija su número en el texto original
+                if (tokenCount == lineStarts[lineCount - 1]) {
+                    lineNumbers[lineCount - 1] = sourceLine;
+                }
+                tokens[tokenCount++] = dictionary.intern(word, wordLength);
+                wordLength = 0;
+            }
+
+            // Cierra la línea actual; las líneas vacías no se registran
+            if ((codePoint == '\n' || codePoint == '\r') && tokenCount > lineStarts[lineCount - 1]) {
+                if (lineCount == lineStarts.length) {
+                    lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+                    lineNumbers = Arrays.copyOf(lineNumbers, lineCount * 2);
+                }
+                lineStarts[lineCount++] = tokenCount;
+            }
+            // "\r\n" es un solo salto de línea
+            if (codePoint == '\n' && !afterCarriageReturn || codePoint == '\r') {
+                sourceLine++;
+            }
+            afterCarriageReturn = codePoint == '\r';
+        }
+
+        public TokenizedBook finish() {
+            accept('\n');
+            return new TokenizedBook(IntBuffer.wrap(Arrays.copyOf(tokens, tokenCount)),
+                    IntBuffer.wrap(Arrays.copyOf(lineStarts, lineCount)), IntBuffer.wrap(Arrays.copyOf(lineNumbers, lineCount)));
+        }
+    }
+
+    /**
+     * Guarda el libro como: número de tokens, número de límites de línea, tokens, límites y
+     * número en el texto original de cada línea (tantos como límites). Como
+     * {@link NGramSet#writeTo}, se escribe en un temporal y se renombra: los shards que tienen
+     * mapeada la versión anterior del libro la siguen leyendo entera.
+     */
+    public void writeTo(Path file) throws IOException {
+        Path temp = Files.createTempFile(file.getParent(), file.getFileName() + ".", ".tmp");
+        try {
+            write(temp);
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    private void write(Path temp) throws IOException {
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.nativeOrder());
+            buffer.putInt(tokens.limit()).putInt(lineStarts.limit());
+            for (IntBuffer ints : new IntBuffer[] { tokens, lineStarts, lineNumbers }) {
+                for (int i = 0; i < ints.limit(); i++) {
+                    if (!buffer.hasRemaining()) {
+                        flush(buffer, channel);
+                    }
+                    buffer.putInt(ints.get(i));
+                }
+            }
+            flush(buffer, channel);
+        }
+    }
+
+    private static void flush(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /** Mapea un archivo escrito con {@link #writeTo}; la caché de páginas del sistema hace el resto. */
+    public static TokenizedBook map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.nativeOrder());
+            int tokenCount = mapped.getInt(0);
+            int lineCount = mapped.getInt(Integer.BYTES);
+            IntBuffer ints = mapped.position(2 * Integer.BYTES).slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+            IntBuffer tokens = ints.duplicate().position(0).limit(tokenCount).slice();
+            IntBuffer lineStarts = ints.duplicate().position(tokenCount).limit(tokenCount + lineCount).slice();
+            IntBuffer lineNumbers = ints.duplicate().position(tokenCount + lineCount).limit(tokenCount + 2 * lineCount).slice();
+            return new TokenizedBook(tokens, lineStarts, lineNumbers);
+        }
+    }
+
+    /**
+     * Calcula el hash de 64 bits de cada ventana de {@code nWords} palabras dentro de cada
+     * línea, actualizándolo en O(1) al desplazar la ventana.
+     */
+    public void forEachNGram(int nWords, WordDictionary dictionary, NGramSink sink) {
+        long power = 1;
+        for (int k = 1; k < nWords; k++) {
+            power *= BASE;
+        }
+
+        for (int line = 0; line + 1 < lineStarts.limit(); line++) {
+            int start = lineStarts.get(line);
+            int end = lineStarts.get(line + 1);
+            if (end - start < nWords) continue;
+
+            long hash = 0;
+            for (int k = start; k < start + nWords; k++) {
+                hash = hash * BASE + dictionary.wordHash(tokens.get(k));
+            }
+            sink.accept(WordDictionary.mix(hash), start);
+
+            for (int k = start + nWords; k < end; k++) {
+                hash = (hash - dictionary.wordHash(tokens.get(k - nWords)) * power) * BASE + dictionary.wordHash(tokens.get(k));
+                sink.accept(WordDictionary.mix(hash), k - nWords + 1);
+            }
+        }
+    }
+
+    /**
+     * Como {@link #forEachNGram(int, WordDictionary, NGramSink)}, pero con todos los tamaños de
+     * {@code minWords} a {@code maxWords} en una sola pasada. Por cada token se calcula el hash de
+     * las ventanas de cada tamaño que terminan en él a partir de las que terminaban en el anterior
+     * (la de {@code n} palabras es la de {@code n - 1} por la base más la palabra nueva), así que
+     * cada palabra se lee una vez. Los hashes coinciden con los de la pasada de un solo tamaño y,
+     * para cada tamaño, las posiciones llegan en orden.
+     */
+    public void forEachNGram(int minWords, int maxWords, WordDictionary dictionary, NGramRangeSink sink) {
+        long[] hashes = new long[maxWords + 1];
+        for (int line = 0; line + 1 < lineStarts.limit(); line++) {
+            int start = lineStarts.get(line);
+            int end = lineStarts.get(line + 1);
+            for (int k = start; k < end; k++) {
+                long word = dictionary.wordHash(tokens.get(k));
+                int longest = Math.min(maxWords, k - start + 1);
+                for (int n = longest; n >= 1; n--) {
+                    hashes[n] = hashes[n - 1] * BASE + word;
+                }
+                for (int n = minWords; n <= longest; n++) {
+                    sink.accept(n, WordDictionary.mix(hashes[n]), k - n + 1);
+                }
+            }
+        }
+    }
+
+    /** Compara palabra a palabra dos n-gramas; descarta colisiones del hash de 64 bits. */
+    public boolean sameNGram(int position, TokenizedBook other, int otherPosition, int nWords) {
+        for (int k = 0; k < nWords; k++) {
+            if (tokens.get(position + k) != other.tokens.get(otherPosition + k)) return false;
+        }
+        return true;
+    }
+
+    /** Texto del n-grama que empieza en {@code position}; solo se usa para los resultados. */
+    public String phraseAt(int position, int nWords, WordDictionary dictionary) {
+        StringBuilder phrase = new StringBuilder();
+        for (int k = position; k < position + nWords; k++) {
+            if (k > position) phrase.append(' ');
+            phrase.append(dictionary.word(tokens.get(k)));
+        }
+        return phrase.toString();
+    }
+}
@@ -2,34 +2,655 @@ import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import java.io.*;
-import java.net.HttpURLConnection;
 import java.net.InetSocketAddress;
-import java.net.URL;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 
 public class WebServer {
     private static final int PORT = 8080;
-    private static final String[] SERVER_URLS = {
-        "http://processing-server-1:8081",
-        "http://processing-server-2:8082", 
-        "http://processing-server-3:8083"
-    };
+    /** N-gramas por lote al reenviar la respuesta de un servidor de procesamiento. */
+    private static final int CHUNK_PHRASES = 512;
+    /** N-gramas cuyo texto se pide en cada petición a un servidor; no más de los que admite. */
+    private static final int RESOLVE_BATCH = 1 << 18;
+    /** Palabras de una frase de {@code /lookup}; no más de las que admiten los servidores. */
+    private static final int MAX_LOOKUP_WORDS = 64;
+    
+    /** Un servidor de procesamiento que no avisa en este tiempo (tres avisos) sale del clúster. */
+    private static final long MEMBER_EXPIRY_MILLIS = 6000;
+    
+    /** Espera máxima por la respuesta de un servidor de procesamiento a una consulta. */
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
     
     private ExecutorService executorService;
+    private ExecutorService workers;
+    private HttpClient httpClient;
+    private ScheduledExecutorService scheduler;
+    private HedgedClient hedgedClient;
+    private Membership membership;
+    private ResultCache resultCache;
+    private final Metrics metrics = new Metrics();
     
     public WebServer() {
         executorService = Executors.newFixedThreadPool(10);
+        workers = Executors.newFixedThreadPool(coordinatorThreads());
+        // Un solo cliente para todas las consultas: reutiliza las conexiones con cada servidor
+        httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        hedgedClient = new HedgedClient(httpClient, scheduler, metrics);
+        membership = new Membership(MEMBER_EXPIRY_MILLIS, replication());
+        resultCache = new ResultCache(resultCacheBytes());
+    }
+    
+    /** Hilos que leen y unen las respuestas de los servidores: COORDINATOR_THREADS o, por defecto, 64. */
+    private static int coordinatorThreads() {
+        return Params.envInt("COORDINATOR_THREADS", 64);
+    }
+    
+    /** Réplicas de cada grupo de libros: REPLICATION o, por defecto, 2. */
+    private static int replication() {
+        return Params.envInt("REPLICATION", 2);
+    }
+    
+    /** Tamaño de la caché de resultados: RESULT_CACHE_MB o, por defecto, 256 MB. */
+    private static long resultCacheBytes() {
+        return Params.envLong("RESULT_CACHE_MB", 256) << 20;
     }
     
     public void start() throws IOException {
         HttpServer server = HttpServer.create(new InetSocketAddress(PORT), 0);
         server.createContext("/", new WebInterfaceHandler());
-        server.createContext("/search", new SearchHandler());
+        server.createContext("/search", metrics.timed("/search", new SearchHandler(membership, resultCache, hedgedClient, workers, metrics)));
+        server.createContext("/register", new RegisterHandler(membership));
+        server.createContext("/cluster", new ClusterHandler(membership));
+        server.createContext("/ingest", metrics.timed("/ingest", new IngestHandler(membership, httpClient)));
+        server.createContext("/lookup", metrics.timed("/lookup", new LookupHandler(membership, hedgedClient, workers)));
+        server.createContext("/similar", metrics.timed("/similar", new SimilarHandler(membership, hedgedClient, workers)));
+        server.createContext("/metrics", metrics.handler());
+        registerGauges();
         server.setExecutor(executorService);
         server.start();
-        System.out.println("Servidor web iniciado en puerto " + PORT);
-        System.out.println("Accede a http://localhost:" + PORT + " para usar la aplicación");
+        scheduler.scheduleWithFixedDelay(membership::expire, 1, 1, TimeUnit.SECONDS);
+        Log.info("Servidor web iniciado en puerto " + PORT);
+        Log.info("Accede a http://localhost:" + PORT + " para usar la aplicación");
+    }
+    
+    /** Ocupación de los pools, de la caché y tamaño del clúster. */
+    private void registerGauges() {
+        ThreadPoolExecutor requests = (ThreadPoolExecutor) executorService;
+        ThreadPoolExecutor coordinator = (ThreadPoolExecutor) workers;
+        metrics.gauge("request_pool_active", requests::getActiveCount);
+        metrics.gauge("request_pool_queued", () -> requests.getQueue().size());
+        metrics.gauge("worker_pool_active", coordinator::getActiveCount);
+        metrics.gauge("worker_pool_queued", () -> coordinator.getQueue().size());
+        metrics.gauge("result_cache_bytes", resultCache::usedBytes);
+        metrics.gauge("cluster_groups", () -> {
+            Membership.View view = membership.view();
+            return view == null ? 0 : view.groups.size();
+        });
+    }
+    
+    /**
+     * Avisos periódicos de los servidores de procesamiento: id, url, configuración aplicada y
+     * versión de sus libros. Responde con la configuración vigente y sus miembros.
+     */
+    private static class RegisterHandler implements HttpHandler {
+        private final Membership membership;
+        
+        RegisterHandler(Membership membership) {
+            this.membership = membership;
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                Map<String, String> params = Params.parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                if (!params.containsKey("id") || !params.containsKey("url")
+                        || !params.containsKey("epoch") || !params.containsKey("version")) {
+                    sendBadRequest(exchange, "Faltan id, url, epoch o version");
+                    return;
+                }
+                String members;
+                try {
+                    members = membership.register(URLDecoder.decode(params.get("id"), StandardCharsets.UTF_8),
+                            URLDecoder.decode(params.get("url"), StandardCharsets.UTF_8),
+                            Long.parseLong(params.get("epoch")), Long.parseLong(params.getOrDefault("previous", "-1")),
+                            Long.parseLong(params.get("version")), Long.parseLong(params.getOrDefault("corpus", "0")),
+                            Integer.parseInt(params.getOrDefault("books", "0")), Long.parseLong(params.getOrDefault("load", "0")),
+                            Long.parseLong(params.getOrDefault("tokens", "0")));
+                } catch (IllegalArgumentException e) {
+                    // Números mal formados o texto mal codificado en id o url
+                    sendBadRequest(exchange, "Parámetros de registro no válidos: " + e.getMessage());
+                    return;
+                }
+                byte[] response = members.getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response);
+                }
+            }
+        }
+    }
+    
+    /** Miembros del clúster y carga de cada uno, para ver si algún servidor va rezagado. */
+    private static class ClusterHandler implements HttpHandler {
+        private final Membership membership;
+        
+        ClusterHandler(Membership membership) {
+            this.membership = membership;
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("GET".equals(exchange.getRequestMethod())) {
+                byte[] response = membership.toJson().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Pide a todos los servidores que revisen ya su directorio de libros, sin esperar a la
+     * revisión periódica, y responde con el resumen de cada uno. Los libros nuevos se incorporan
+     * con la configuración que se abre a continuación.
+     */
+    private static class IngestHandler implements HttpHandler {
+        private final Membership membership;
+        private final HttpClient client;
+        
+        IngestHandler(Membership membership, HttpClient client) {
+            this.membership = membership;
+            this.client = client;
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                exchange.getRequestBody().readAllBytes();
+                Map<String, CompletableFuture<String>> summaries = new TreeMap<>();
+                for (Map.Entry<String, String> member : membership.urls().entrySet()) {
+                    HttpRequest request = HttpRequest.newBuilder(URI.create(member.getValue() + "/ingest"))
+                            .timeout(Duration.ofSeconds(30))
+                            .POST(BodyPublishers.noBody())
+                            .build();
+                    summaries.put(member.getKey(), client.sendAsync(request, BodyHandlers.ofString())
+                            .thenApply(response -> response.body().trim())
+                            .exceptionally(error -> "sin respuesta (" + error.getMessage() + ")"));
+                }
+                StringBuilder report = new StringBuilder();
+                for (Map.Entry<String, CompletableFuture<String>> summary : summaries.entrySet()) {
+                    report.append("Servidor ").append(summary.getKey()).append(": ").append(summary.getValue().join()).append('\n');
+                }
+                byte[] response = report.toString().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(response);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Busca una frase concreta en todos los libros: cada grupo de réplicas la busca en los suyos
+     * con su índice posicional y aquí se unen los resultados en orden de libro. No hay que cruzar
+     * libros, así que responde en milisegundos. De cada libro llegan todas las apariciones contadas
+     * pero solo las líneas de las primeras, para que una frase muy común no traiga el corpus
+     * entero. Con {@code format=json} responde JSON por líneas:
+     * {@code {"book":{"id","name"},"occurrences","lines":[..]}} por libro con la frase y un resumen
+     * {@code {"phrase","books","occurrences"}}; si no, HTML para la interfaz.
+     */
+    private static class LookupHandler implements HttpHandler {
+        private final Membership membership;
+        private final HedgedClient client;
+        private final ExecutorService workers;
+        
+        LookupHandler(Membership membership, HedgedClient client, ExecutorService workers) {
+            this.membership = membership;
+            this.client = client;
+            this.workers = workers;
+        }
+        
+        /** Libro con la frase, sus apariciones y la línea de las primeras. */
+        private static class Found {
+            final String name;
+            final int count;
+            final int[] lines;
+            
+            Found(String name, int count, int[] lines) {
+                this.name = name;
+                this.count = count;
+                this.lines = lines;
+            }
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                Map<String, String> params = Params.parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                boolean json = "json".equals(params.get("format"));
+                // Las mismas reglas que al tokenizar los libros: minúsculas y solo letras
+                String phrase = String.join(" ", TokenizedBook.words(URLDecoder.decode(params.getOrDefault("phrase", ""), StandardCharsets.UTF_8)));
+                int words = phrase.isEmpty() ? 0 : phrase.split(" ").length;
+                if (words == 0 || words > MAX_LOOKUP_WORDS) {
+                    sendBadRequest(exchange, "La frase debe tener entre 1 y " + MAX_LOOKUP_WORDS + " palabras");
+                    return;
+                }
+                Membership.View view = membership.view();
+                if (view == null) {
+                    sendUnavailable(exchange);
+                    return;
+                }
+                
+                String postData = "phrase=" + URLEncoder.encode(phrase, StandardCharsets.UTF_8);
+                Map<Integer, Found> found = new ConcurrentSkipListMap<>();
+                List<String> errors = Collections.synchronizedList(new ArrayList<>());
+                List<CompletableFuture<Void>> groups = new ArrayList<>();
+                for (int i = 0; i < view.groups.size(); i++) {
+                    final int group = i;
+                    groups.add(client.send("lookup", view.groups.get(i), url -> post(url + "/lookup", view.epoch,
+                                    "application/x-www-form-urlencoded", BodyPublishers.ofString(postData)))
+                            .thenAcceptAsync(response -> read(response, found), workers)
+                            .exceptionally(error -> {
+                                errors.add("grupo " + (group + 1) + ": " + rootMessage(error));
+                                return null;
+                            }));
+                }
+                CompletableFuture.allOf(groups.toArray(new CompletableFuture<?>[0]))
+                        .thenRunAsync(() -> respond(exchange, phrase, found, errors, json), workers);
+            }
+        }
+        
+        private static void read(HttpResponse<InputStream> response, Map<Integer, Found> found) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(body(response)))) {
+                for (int books = in.readInt(); books > 0; books--) {
+                    int bookId = in.readInt();
+                    String name = in.readUTF();
+                    int count = in.readInt();
+                    int[] lines = new int[in.readInt()];
+                    for (int i = 0; i < lines.length; i++) {
+                        lines[i] = in.readInt();
+                    }
+                    found.put(bookId, new Found(name, count, lines));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        private static void respond(HttpExchange exchange, String phrase, Map<Integer, Found> found, List<String> errors, boolean json) {
+            StringBuilder out = new StringBuilder();
+            long occurrences = 0;
+            for (Map.Entry<Integer, Found> book : found.entrySet()) {
+                int count = book.getValue().count;
+                int[] lines = book.getValue().lines;
+                occurrences += count;
+                if (json) {
+                    out.append("{\"book\":{\"id\":").append(book.getKey()).append(",\"name\":")
+                       .append(jsonString(book.getValue().name)).append("},\"occurrences\":").append(count)
+                       .append(",\"lines\":").append(Arrays.toString(lines).replace(" ", "")).append("}\n");
+                } else {
+                    String list = Arrays.toString(lines);
+                    out.append("<div class='result-item'>En ").append(book.getValue().name).append(", ")
+                       .append(lines.length == 1 ? "línea " : "líneas ").append(list, 1, list.length() - 1);
+                    if (count > lines.length) out.append(" y ").append(count - lines.length).append(" más");
+                    out.append("</div>\n");
+                }
+            }
+            for (String error : errors) {
+                out.append(json ? "{\"error\":" + jsonString(error) + "}\n" : "<div style='color: red;'>Error: " + error + "</div>\n");
+            }
+            if (json) {
+                out.append("{\"phrase\":").append(jsonString(phrase)).append(",\"books\":").append(found.size())
+                   .append(",\"occurrences\":").append(occurrences).append("}\n");
+            } else {
+                out.append("<p>\"").append(phrase).append("\" aparece ").append(occurrences)
+                   .append(occurrences == 1 ? " vez" : " veces").append(" en ").append(found.size())
+                   .append(found.size() == 1 ? " libro" : " libros").append(".</p>\n");
+            }
+            Log.debug(() -> "Frase \"" + phrase + "\" encontrada en " + found.size() + " libros");
+            
+            byte[] response = out.toString().getBytes(StandardCharsets.UTF_8);
+            try (OutputStream os = exchange.getResponseBody()) {
+                exchange.getResponseHeaders().set("Content-Type", json ? "application/x-ndjson; charset=UTF-8" : "text/html; charset=UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                os.write(response);
+            } catch (IOException e) {
+                Log.error("Error enviando respuesta: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Busca los pares de libros con más n-gramas en común sin cruzarlos todos con todos. Cada grupo
+     * de réplicas envía la firma MinHash de sus libros ({@code /signatures}); aquí se reparten las
+     * firmas en bandas (LSH) y solo los libros que coinciden en alguna banda son candidatos. De los
+     * candidatos se piden los n-gramas ({@code /hashes}) y se calcula la similitud de Jaccard exacta,
+     * de modo que no hay falsos positivos; algún par cerca del umbral puede no salir como candidato.
+     * Parámetros: {@code nWords}, {@code threshold} (similitud mínima, 0.05 por defecto) y
+     * {@code format=json}, que responde JSON por líneas:
+     * {@code {"pair":[a,b],"books":[..],"estimated","jaccard","shared"}} por par, de más a menos
+     * parecido, y un resumen {@code {"nWords","threshold","books","candidates","pairs","bands","rows"}}.
+     */
+    private static class SimilarHandler implements HttpHandler {
+        private static final double DEFAULT_THRESHOLD = 0.05;
+        
+        private final Membership membership;
+        private final HedgedClient client;
+        private final ExecutorService workers;
+        
+        SimilarHandler(Membership membership, HedgedClient client, ExecutorService workers) {
+            this.membership = membership;
+            this.client = client;
+            this.workers = workers;
+        }
+        
+        /** Libro de la firma: grupo que lo tiene, nombre, n-gramas distintos y firma. */
+        private static class Book {
+            final int group;
+            final String name;
+            final int size;
+            final long[] signature;
+            long[] hashes;
+            
+            Book(int group, String name, int size, long[] signature) {
+                this.group = group;
+                this.name = name;
+                this.size = size;
+                this.signature = signature;
+            }
+        }
+        
+        /** Par de libros parecidos, con la similitud estimada por las firmas y la exacta. */
+        private static class SimilarPair {
+            final int first;
+            final int second;
+            final double estimated;
+            final double jaccard;
+            final int shared;
+            
+            SimilarPair(int first, int second, double estimated, double jaccard, int shared) {
+                this.first = first;
+                this.second = second;
+                this.estimated = estimated;
+                this.jaccard = jaccard;
+                this.shared = shared;
+            }
+        }
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if ("POST".equals(exchange.getRequestMethod())) {
+                Map<String, String> params = Params.parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                boolean json = "json".equals(params.get("format"));
+                int nWords;
+                double threshold;
+                try {
+                    nWords = Integer.parseInt(params.getOrDefault("nWords", "4"));
+                    threshold = Double.parseDouble(params.getOrDefault("threshold", Double.toString(DEFAULT_THRESHOLD)));
+                } catch (NumberFormatException e) {
+                    nWords = 0;
+                    threshold = 0;
+                }
+                if (nWords < 1 || !(threshold > 0 && threshold <= 1)) {
+                    sendBadRequest(exchange, "nWords debe ser positivo y threshold estar entre 0 y 1");
+                    return;
+                }
+                Membership.View view = membership.view();
+                if (view == null) {
+                    sendUnavailable(exchange);
+                    return;
+                }
+                
+                final int n = nWords;
+                final double minimum = threshold;
+                Log.debug(() -> "Nueva consulta recibida: libros parecidos con n-gramas de " + n + " palabras (umbral " + minimum + ")");
+                String postData = "nWords=" + n;
+                Map<Integer, Book> books = new ConcurrentSkipListMap<>();
+                List<String> errors = Collections.synchronizedList(new ArrayList<>());
+                List<CompletableFuture<Void>> groups = new ArrayList<>();
+                for (int i = 0; i < view.groups.size(); i++) {
+                    final int group = i;
+                    groups.add(client.send("signatures", view.groups.get(i), url -> post(url + "/signatures", view.epoch,
+                                    "application/x-www-form-urlencoded", BodyPublishers.ofString(postData)))
+                            .thenAcceptAsync(response -> readSignatures(response, group, books), workers)
+                            .exceptionally(error -> {
+                                errors.add("grupo " + (group + 1) + ": " + rootMessage(error));
+                                return null;
+                            }));
+                }
+                int rows = MinHash.rowsPerBand(minimum);
+                CompletableFuture.allOf(groups.toArray(new CompletableFuture<?>[0]))
+                        .thenComposeAsync(ignored -> {
+                            Set<Long> candidates = candidates(books, rows, minimum);
+                            Log.debug(() -> "Similitud entre libros: " + candidates.size() + " candidatos de "
+                                    + (long) books.size() * (books.size() - 1) / 2 + " pares posibles");
+                            return fetchHashes(view, n, books, candidates, errors).thenApply(fetched -> candidates);
+                        }, workers)
+                        .thenAcceptAsync(candidates -> respond(exchange, n, minimum, rows, books, candidates.size(),
+                                exactPairs(books, candidates, minimum), errors, json), workers)
+                        .exceptionally(error -> {
+                            errors.add(rootMessage(error));
+                            respond(exchange, n, minimum, rows, books, 0, List.of(), errors, json);
+                            return null;
+                        });
+            }
+        }
+        
+        private static void readSignatures(HttpResponse<InputStream> response, int group, Map<Integer, Book> books) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(body(response), 1 << 16))) {
+                for (int count = in.readInt(); count > 0; count--) {
+                    int bookId = in.readInt();
+                    String name = in.readUTF();
+                    int size = in.readInt();
+                    long[] signature = new long[MinHash.SIZE];
+                    for (int i = 0; i < signature.length; i++) {
+                        signature[i] = in.readLong();
+                    }
+                    books.put(bookId, new Book(group, name, size, signature));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        
+        /**
+         * Pares que coinciden en alguna banda de sus firmas. Se descartan los que no pueden llegar al
+         * umbral por tamaño: la similitud de Jaccard nunca supera el cociente entre el conjunto menor
+         * y el mayor.
+         */
+        private static Set<Long> candidates(Map<Integer, Book> books, int rows, double threshold) {
+            Set<Long> candidates = new HashSet<>();
+            Map<Long, List<Integer>> buckets = new HashMap<>();
+            for (int band = 0; band < MinHash.SIZE / rows; band++) {
+                buckets.clear();
+                for (Map.Entry<Integer, Book> book : books.entrySet()) {
+                    if (book.getValue().size == 0) continue;
+                    buckets.computeIfAbsent(MinHash.bandKey(book.getValue().signature, band, rows), key -> new ArrayList<>())
+                           .add(book.getKey());
+                }
+                for (List<Integer> bucket : buckets.values()) {
+                    // Los ids están en orden ascendente, como el recorrido del mapa
+                    for (int i = 0; i < bucket.size(); i++) {
+                        for (int j = i + 1; j < bucket.size(); j++) {
+                            int first = bucket.get(i);
+                            int second = bucket.get(j);
+                            int smaller = Math.min(books.get(first).size, books.get(second).size);
+                            int larger = Math.max(books.get(first).size, books.get(second).size);
+                            if (smaller >= threshold * larger) candidates.add(pairKey(first, second));
+                        }
+                    }
+                }
+            }
+            return candidates;
+        }
+        
+        /** Pide a cada grupo los n-gramas de sus libros que forman parte de algún candidato. */
+        private CompletableFuture<Void> fetchHashes(Membership.View view, int nWords, Map<Integer, Book> books,
+                                                    Set<Long> candidates, List<String> errors) {
+            Map<Integer, List<Integer>> wanted = new TreeMap<>();
+            Set<Integer> seen = new HashSet<>();
+            for (long pair : candidates) {
+                for (int bookId : new int[] { (int) (pair >>> 32), (int) pair }) {
+                    if (seen.add(bookId)) wanted.computeIfAbsent(books.get(bookId).group, group -> new ArrayList<>()).add(bookId);
+                }
+            }
+            
+            List<CompletableFuture<Void>> requests = new ArrayList<>();
+            for (Map.Entry<Integer, List<Integer>> entry : wanted.entrySet()) {
+                int group = entry.getKey();
+                List<Integer> ids = entry.getValue();
+                ByteArrayOutputStream request = new ByteArrayOutputStream(8 + ids.size() * 4);
+                try (DataOutputStream out = new DataOutputStream(request)) {
+                    out.writeInt(nWords);
+                    out.writeInt(ids.size());
+                    for (int bookId : ids) {
+                        out.writeInt(bookId);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                byte[] body = request.toByteArray();
+                requests.add(client.send("hashes", view.groups.get(group), url -> post(url + "/hashes", view.epoch,
+                                "application/octet-stream", BodyPublishers.ofByteArray(body)))
+                        .thenAcceptAsync(response -> {
+                            try (DataInputStream in = new DataInputStream(new BufferedInputStream(body(response), 1 << 16))) {
+                                for (int bookId : ids) {
+                                    long[] hashes = new long[in.readInt()];
+                                    for (int i = 0; i < hashes.length; i++) {
+                                        hashes[i] = in.readLong();
+                                    }
+                                    books.get(bookId).hashes = hashes;
+                                }
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }, workers)
+                        .exceptionally(error -> {
+                            errors.add("grupo " + (group + 1) + ": " + rootMessage(error));
+                            return null;
+                        }));
+            }
+            return CompletableFuture.allOf(requests.toArray(new CompletableFuture<?>[0]));
+        }
+        
+        /** Similitud exacta de los candidatos cruzando sus hashes ordenados; solo los que llegan al umbral. */
+        private static List<SimilarPair> exactPairs(Map<Integer, Book> books, Set<Long> candidates, double threshold) {
+            List<SimilarPair> pairs = new ArrayList<>();
+            for (long pair : candidates) {
+                int first = (int) (pair >>> 32);
+                int second = (int) pair;
+                Book a = books.get(first);
+                Book b = books.get(second);
+                // Sin los hashes de alguno (su grupo ha fallado) el par no se puede comprobar
+                if (a.hashes == null || b.hashes == null) continue;
+                
+                int shared = 0;
+                for (int i = 0, j = 0; i < a.hashes.length && j < b.hashes.length; ) {
+                    if (a.hashes[i] < b.hashes[j]) {
+                        i++;
+                    } else if (a.hashes[i] > b.hashes[j]) {
+                        j++;
+                    } else {
+                        shared++;
+                        i++;
+                        j++;
+                    }
+                }
+                double jaccard = shared / (double) (a.hashes.length + b.hashes.length - shared);
+                if (jaccard >= threshold) {
+                    pairs.add(new SimilarPair(first, second, MinHash.similarity(a.signature, b.signature), jaccard, shared));
+                }
+            }
+            pairs.sort(Comparator.comparingDouble((SimilarPair p) -> p.jaccard).reversed()
+                    .thenComparingInt(p -> p.first).thenComparingInt(p -> p.second));
+            return pairs;
+        }
+        
+        private static void respond(HttpExchange exchange, int nWords, double threshold, int rows, Map<Integer, Book> books,
+                                    int candidates, List<SimilarPair> pairs, List<String> errors, boolean json) {
+            StringBuilder out = new StringBuilder();
+            for (SimilarPair pair : pairs) {
+                String first = books.get(pair.first).name;
+                String second = books.get(pair.second).name;
+                if (json) {
+                    out.append("{\"pair\":[").append(pair.first).append(',').append(pair.second).append("],\"books\":[")
+                       .append(jsonString(first)).append(',').append(jsonString(second)).append("],\"estimated\":")
+                       .append(String.format(Locale.ROOT, "%.4f", pair.estimated)).append(",\"jaccard\":")
+                       .append(String.format(Locale.ROOT, "%.4f", pair.jaccard)).append(",\"shared\":").append(pair.shared)
+                       .append("}\n");
+                } else {
+                    out.append("<div class='pair-count'>").append(first).append(" y ").append(second).append(": ")
+                       .append(String.format(Locale.ROOT, "%.1f %%", pair.jaccard * 100)).append(" de n-gramas en común (")
+                       .append(pair.shared).append(" compartidos; estimado ")
+                       .append(String.format(Locale.ROOT, "%.1f %%", pair.estimated * 100)).append(")</div>\n");
+                }
+            }
+            for (String error : errors) {
+                out.append(json ? "{\"error\":" + jsonString(error) + "}\n" : "<div style='color: red;'>Error: " + error + "</div>\n");
+            }
+            int bands = MinHash.SIZE / rows;
+            if (json) {
+                out.append("{\"nWords\":").append(nWords).append(",\"threshold\":").append(threshold)
+                   .append(",\"books\":").append(books.size()).append(",\"candidates\":").append(candidates)
+                   .append(",\"pairs\":").append(pairs.size())
+                   .append(",\"bands\":").append(bands).append(",\"rows\":").append(rows).append("}\n");
+            } else {
+                out.append("<p>").append(pairs.size()).append(pairs.size() == 1 ? " par" : " pares").append(" de ")
+                   .append(books.size()).append(" libros con al menos un ")
+                   .append(String.format(Locale.ROOT, "%.1f %%", threshold * 100)).append(" de n-gramas de ")
+                   .append(nWords).append(" palabras en común.</p>\n");
+            }
+            
+            byte[] response = out.toString().getBytes(StandardCharsets.UTF_8);
+            try (OutputStream os = exchange.getResponseBody()) {
+                exchange.getResponseHeaders().set("Content-Type", json ? "application/x-ndjson; charset=UTF-8" : "text/html; charset=UTF-8");
+                exchange.sendResponseHeaders(200, response.length);
+                os.write(response);
+            } catch (IOException e) {
+                Log.error("Error enviando respuesta: " + e.getMessage());
+            }
+        }
+    }
+    
+    /** 503 con {@code Retry-After}: no hay servidores, o se están repartiendo los libros. */
+    private static void sendUnavailable(HttpExchange exchange) throws IOException {
+        byte[] response = "No hay servidores de procesamiento listos; reintenta en un momento".getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Retry-After", "1");
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(503, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
+    }
+    
+    /** 400 con el motivo en texto plano: algún parámetro de la consulta no es válido. */
+    private static void sendBadRequest(HttpExchange exchange, String message) throws IOException {
+        byte[] response = message.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        exchange.sendResponseHeaders(400, response.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(response);
+        }
     }
     
     private static class WebInterfaceHandler implements HttpHandler {
@@ -38,9 +659,10 @@ public class WebServer {
             if ("GET".equals(exchange.getRequestMethod())) {
                 String htmlContent = generateWebInterface();
                 exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
-                exchange.sendResponseHeaders(200, htmlContent.getBytes().length);
+                byte[] response = htmlContent.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, response.length);
                 try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(htmlContent.getBytes());
+                    os.write(response);
                 }
             }
         }
@@ -63,6 +685,7 @@ public class WebServer {
                    "        #results { margin-top: 30px; padding: 20px; background-color: #f8f9fa; border-radius: 5px; }\n" +
                    "        .loading { color: #007bff; font-style: italic; }\n" +
                    "        .result-item { margin: 10px 0; padding: 10px; background-color: white; border-left: 4px solid #007bff; }\n" +
+                   "        .pair-count { margin: 10px 0; padding: 10px; background-color: white; border-left: 4px solid #28a745; }\n" +
                    "    </style>\n" +
                    "</head>\n" +
                    "<body>\n" +
@@ -72,13 +695,44 @@ public class WebServer {
                    "        <div class='form-group'>\n" +
                    "            <label for='nWords'>Número de palabras:</label>\n" +
                    "            <input type='number' id='nWords' min='2' max='10' value='4'>\n" +
+                   "            <select id='mode'>\n" +
+                   "                <option value='global'>Entre todos los libros</option>\n" +
+                   "                <option value='local'>Solo dentro de cada servidor</option>\n" +
+                   "            </select>\n" +
+                   "        </div>\n" +
+                   "        <div class='form-group'>\n" +
+                   "            <label for='top'>Mostrar solo las frases presentes en más libros (vacío: todas):</label>\n" +
+                   "            <input type='number' id='top' min='1'>\n" +
+                   "            <label><input type='checkbox' id='pairs'> Recuento de frases por par de libros</label>\n" +
+                   "            <label><input type='checkbox' id='passages'> Pasajes completos en lugar de frases de n palabras</label>\n" +
+                   "            <label><input type='checkbox' id='stopwords'> Descartar las frases de solo palabras vacías (\"de la\", \"en el que\")</label>\n" +
+                   "            <label for='maxBooks'>Descartar las frases presentes en más de (vacío: sin límite) libros:</label>\n" +
+                   "            <input type='number' id='maxBooks' min='2'>\n" +
+                   "        </div>\n" +
+                   "        <div class='form-group'>\n" +
                    "            <button onclick='searchPhrases()'>Buscar Frases Coincidentes</button>\n" +
                    "        </div>\n" +
+                   "        <div class='form-group'>\n" +
+                   "            <label for='phrase'>O busca en qué libros aparece una frase concreta:</label>\n" +
+                   "            <input type='text' id='phrase' size='40'>\n" +
+                   "            <button onclick='lookupPhrase()'>Buscar Frase</button>\n" +
+                   "        </div>\n" +
+                   "        <div class='form-group'>\n" +
+                   "            <label for='threshold'>O busca los pares de libros con más n-gramas en común (similitud mínima):</label>\n" +
+                   "            <input type='number' id='threshold' min='0.01' max='1' step='0.01' value='0.05'>\n" +
+                   "            <button onclick='similarBooks()'>Buscar Libros Parecidos</button>\n" +
+                   "        </div>\n" +
                    "        <div id='results'></div>\n" +
                    "    </div>\n" +
                    "    <script>\n" +
                    "        function searchPhrases() {\n" +
                    "            const nWords = document.getElementById('nWords').value;\n" +
+                   "            const mode = document.getElementById('mode').value;\n" +
+                   "            const top = document.getElementById('top').value || 0;\n" +
+                   "            const pairs = document.getElementById('pairs').checked;\n" +
+                   "            const passages = document.getElementById('passages').checked;\n" +
+                   "            const stopwords = document.getElementById('stopwords').checked;\n" +
+                   "            const maxBooks = document.getElementById('maxBooks').value || 0;\n" +
                    "            const resultsDiv = document.getElementById('results');\n" +
                    "            \n" +
                    "            if (!nWords || nWords < 2) {\n" +
@@ -86,17 +740,68 @@ public class WebServer {
                    "                return;\n" +
                    "            }\n" +
                    "            \n" +
-                   "            resultsDiv.innerHTML = '<div class=\"loading\">Procesando... Los servidores están analizando los libros en paralelo...</div>';\n" +
+                   "            resultsDiv.innerHTML = '<div class=\"loading\">Procesando... Los servidores están analizando los libros en paralelo...</div>' +\n" +
+                   "                '<h3>Resultados:</h3><div id=\"items\"></div>';\n" +
+                   "            const items = document.getElementById('items');\n" +
                    "            \n" +
+                   "            // La respuesta llega por bloques: se muestran las líneas completas según llegan\n" +
                    "            fetch('/search', {\n" +
                    "                method: 'POST',\n" +
                    "                headers: { 'Content-Type': 'application/x-www-form-urlencoded' },\n" +
-                   "                body: 'nWords=' + nWords\n" +
+                   "                body: 'nWords=' + nWords + '&mode=' + mode + '&top=' + top + '&pairs=' + pairs + '&passages=' + passages +\n" +
+                   "                    '&stopwords=' + stopwords + '&maxBooks=' + maxBooks\n" +
+                   "            })\n" +
+                   "            .then(response => {\n" +
+                   "                const reader = response.body.getReader();\n" +
+                   "                const decoder = new TextDecoder();\n" +
+                   "                let pending = '';\n" +
+                   "                function read() {\n" +
+                   "                    return reader.read().then(({ done, value }) => {\n" +
+                   "                        pending += decoder.decode(value || new Uint8Array(), { stream: !done });\n" +
+                   "                        const end = done ? pending.length : pending.lastIndexOf('\\n') + 1;\n" +
+                   "                        if (end > 0) {\n" +
+                   "                            items.insertAdjacentHTML('beforeend', pending.substring(0, end));\n" +
+                   "                            pending = pending.substring(end);\n" +
+                   "                        }\n" +
+                   "                        if (!done) return read();\n" +
+                   "                        resultsDiv.querySelector('.loading').remove();\n" +
+                   "                    });\n" +
+                   "                }\n" +
+                   "                return read();\n" +
+                   "            })\n" +
+                   "            .catch(error => {\n" +
+                   "                resultsDiv.innerHTML = '<div style=\"color: red;\">Error: ' + error.message + '</div>';\n" +
+                   "            });\n" +
+                   "        }\n" +
+                   "        \n" +
+                   "        function lookupPhrase() {\n" +
+                   "            const phrase = document.getElementById('phrase').value;\n" +
+                   "            const resultsDiv = document.getElementById('results');\n" +
+                   "            resultsDiv.innerHTML = '<div class=\"loading\">Buscando...</div>';\n" +
+                   "            fetch('/lookup', {\n" +
+                   "                method: 'POST',\n" +
+                   "                headers: { 'Content-Type': 'application/x-www-form-urlencoded' },\n" +
+                   "                body: 'phrase=' + encodeURIComponent(phrase)\n" +
                    "            })\n" +
                    "            .then(response => response.text())\n" +
-                   "            .then(data => {\n" +
-                   "                resultsDiv.innerHTML = '<h3>Resultados:</h3>' + data;\n" +
+                   "            .then(html => { resultsDiv.innerHTML = '<h3>Resultados:</h3>' + html; })\n" +
+                   "            .catch(error => {\n" +
+                   "                resultsDiv.innerHTML = '<div style=\"color: red;\">Error: ' + error.message + '</div>';\n" +
+                   "            });\n" +
+                   "        }\n" +
+                   "        \n" +
+                   "        function similarBooks() {\n" +
+                   "            const nWords = document.getElementById('nWords').value;\n" +
+                   "            const threshold = document.getElementById('threshold').value;\n" +
+                   "            const resultsDiv = document.getElementById('results');\n" +
+                   "            resultsDiv.innerHTML = '<div class=\"loading\">Comparando firmas de los libros...</div>';\n" +
+                   "            fetch('/similar', {\n" +
+                   "                method: 'POST',\n" +
+                   "                headers: { 'Content-Type': 'application/x-www-form-urlencoded' },\n" +
+                   "                body: 'nWords=' + nWords + '&threshold=' + threshold\n" +
                    "            })\n" +
+                   "            .then(response => response.text())\n" +
+                   "            .then(html => { resultsDiv.innerHTML = '<h3>Resultados:</h3>' + html; })\n" +
                    "            .catch(error => {\n" +
                    "                resultsDiv.innerHTML = '<div style=\"color: red;\">Error: ' + error.message + '</div>';\n" +
                    "            });\n" +
@@ -108,92 +813,1042 @@ public class WebServer {
     }
     
     private static class SearchHandler implements HttpHandler {
+        private final Membership membership;
+        private final ResultCache cache;
+        private final HedgedClient client;
+        private final ExecutorService workers;
+        private final Metrics metrics;
+        
+        SearchHandler(Membership membership, ResultCache cache, HedgedClient client, ExecutorService workers, Metrics metrics) {
+            this.membership = membership;
+            this.cache = cache;
+            this.client = client;
+            this.workers = workers;
+            this.metrics = metrics;
+        }
+        
+        /**
+         * Lanza la búsqueda y vuelve enseguida: la respuesta la terminan los hilos del pool
+         * compartido cuando llegan los datos de los servidores, así que un hilo del servidor HTTP
+         * no queda bloqueado durante toda la consulta.
+         */
         @Override
         public void handle(HttpExchange exchange) throws IOException {
             if ("POST".equals(exchange.getRequestMethod())) {
-                String requestBody = new String(exchange.getRequestBody().readAllBytes());
-                String[] params = requestBody.split("=");
-                int nWords = Integer.parseInt(params[1]);
+                Map<String, String> params = Params.parseForm(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+                String mode = params.getOrDefault("mode", "global");
+                boolean pairs = Boolean.parseBoolean(params.get("pairs"));
+                boolean json = "json".equals(params.get("format"));
+                boolean passages = Boolean.parseBoolean(params.get("passages"));
+                int nWords;
+                int top;
+                NGramFilter filter;
+                try {
+                    nWords = Integer.parseInt(params.get("nWords"));
+                    top = Integer.parseInt(params.getOrDefault("top", "0"));
+                    filter = NGramFilter.of(params);
+                } catch (NumberFormatException e) {
+                    sendBadRequest(exchange, "nWords, top y maxBooks deben ser números enteros");
+                    return;
+                }
+                if (nWords < 1 || top < 0) {
+                    sendBadRequest(exchange, "nWords debe ser positivo y top no ser negativo");
+                    return;
+                }
                 
-                System.out.println("Nueva consulta recibida: buscar frases de " + nWords + " palabras");
+                Log.debug(() -> "Nueva consulta recibida: buscar " + (passages ? "pasajes" : "frases") + " de " + nWords
+                        + " palabras (modo " + mode + ")" + filter.describe());
                 
-                String results = processDistributedSearch(nWords);
+                // Sin servidores, o mientras se reparten los libros, no se puede responder todavía
+                Membership.View view = membership.view();
+                if (view == null) {
+                    sendUnavailable(exchange);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", json ? "application/x-ndjson; charset=UTF-8" : "text/html; charset=UTF-8");
+                Search search = new Search(view, "local".equals(mode), nWords, top, pairs, json, passages, filter);
                 
-                exchange.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
-                exchange.sendResponseHeaders(200, results.getBytes().length);
-                try (OutputStream os = exchange.getResponseBody()) {
-                    os.write(results.getBytes());
+                // La versión cambia con la configuración del clúster y con los libros de cada servidor
+                cache.setVersion(view.version);
+                String key = view.version + "|" + mode + "|" + nWords + "|" + top + "|" + pairs + "|" + json + "|" + passages + filter.toForm();
+                byte[] cached = cache.get(key);
+                if (cached != null) {
+                    metrics.increment("result_cache_hits_total");
+                    sendCached(exchange, cached);
+                    return;
                 }
+                metrics.increment("result_cache_misses_total");
+                coalesce(exchange, search, key);
             }
         }
         
-        private String processDistributedSearch(int nWords) {
-            System.out.println("Iniciando búsqueda distribuida en 3 servidores...");
+        /**
+         * Agrupa las consultas idénticas simultáneas: la primera calcula el resultado y las demás
+         * lo esperan sin ocupar ningún hilo. Si no hay resultado que compartir (hubo errores o no
+         * cabe en la caché, lo normal con n = 2), las que esperaban vuelven a agruparse y solo una
+         * de ellas lo calcula de nuevo, en lugar de lanzarlo todas a la vez contra los servidores.
+         * Si el cálculo en curso no termina a tiempo, cada una lo calcula por su cuenta.
+         */
+        private void coalesce(HttpExchange exchange, Search search, String key) {
+            CompletableFuture<byte[]> pending = cache.joinInFlight(key);
+            if (pending == null) {
+                runSearch(exchange, search).whenComplete((result, error) -> cache.complete(key, error == null ? result : null));
+                return;
+            }
+            pending.copy().orTimeout(60, TimeUnit.SECONDS).whenComplete((result, error) -> {
+                if (error != null) {
+                    runSearch(exchange, search);
+                } else if (result != null) {
+                    sendCached(exchange, result);
+                } else {
+                    coalesce(exchange, search, key);
+                }
+            });
+        }
+        
+        private static void sendCached(HttpExchange exchange, byte[] cached) {
+            Log.debug(() -> "Consulta respondida desde la caché");
+            try (OutputStream os = exchange.getResponseBody()) {
+                exchange.getResponseHeaders().set("X-Cache", "HIT");
+                exchange.sendResponseHeaders(200, cached.length);
+                os.write(cached);
+            } catch (IOException e) {
+                Log.error("Error enviando respuesta: " + e.getMessage());
+            }
+        }
+        
+        /**
+         * Ejecuta la búsqueda. En la de pasajes, las semillas se cuentan antes de responder: si
+         * son demasiadas aún puede contestarse 400 en lugar de empezar una respuesta que no cabe.
+         */
+        private CompletableFuture<byte[]> runSearch(HttpExchange exchange, Search search) {
+            if (!search.passages) {
+                return respond(exchange, search, () -> search.local ? processDistributedSearch(search) : processShuffleSearch(search));
+            }
+            PassageSearch passages = new PassageSearch(search, (partition, partitions, bookNames, bookServers, shared) ->
+                    mergePartition(search.view, search.nWords, search.filter, partition, partitions, true, bookNames, bookServers, shared),
+                    client, workers);
+            CompletableFuture<Void> seeded;
+            try {
+                seeded = passages.seed();
+            } catch (RuntimeException e) {
+                seeded = CompletableFuture.failedFuture(e);
+            }
+            return seeded.handle((ignored, error) -> error).thenCompose(error -> {
+                String rejection = error == null ? passages.rejection() : null;
+                if (rejection == null) {
+                    return respond(exchange, search, () -> error == null ? passages.run() : CompletableFuture.failedFuture(error));
+                }
+                try {
+                    sendBadRequest(exchange, rejection);
+                } catch (IOException e) {
+                    Log.error("Error enviando respuesta: " + e.getMessage());
+                }
+                return CompletableFuture.completedFuture(null);
+            });
+        }
+        
+        /**
+         * Envía la respuesta por bloques: una línea por resultado, que el cliente procesa al
+         * llegar. Completa con la respuesta entera si puede guardarse en caché.
+         */
+        private CompletableFuture<byte[]> respond(HttpExchange exchange, Search search, Supplier<CompletableFuture<Void>> work) {
+            CapturingOutputStream capture;
+            try {
+                exchange.getResponseHeaders().set("X-Cache", "MISS");
+                exchange.sendResponseHeaders(200, 0);
+                capture = new CapturingOutputStream(exchange.getResponseBody(), cache.maxEntryBytes());
+            } catch (IOException e) {
+                exchange.close();
+                return CompletableFuture.completedFuture(null);
+            }
+            Writer out = new BufferedWriter(new OutputStreamWriter(capture, StandardCharsets.UTF_8), 1 << 16);
+            long start = System.nanoTime();
+            search.start(search.json ? new JsonResults(out, search.passages) : new HtmlResults(out, search.top, search.passages));
             
-            List<Future<String>> futures = new ArrayList<>();
-            ExecutorService executor = Executors.newFixedThreadPool(3);
+            CompletableFuture<Void> done;
+            try {
+                done = work.get();
+            } catch (RuntimeException e) {
+                done = CompletableFuture.failedFuture(e);
+            }
+            return done.handle((ignored, error) -> {
+                if (error != null) {
+                    search.error(rootMessage(error));
+                }
+                search.finish();
+                metrics.phase("search", start);
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    return null;
+                }
+                // Los resultados con errores o de clientes desconectados no se guardan
+                return search.failed() ? null : capture.captured();
+            });
+        }
+        
+        /**
+         * Reenvía las coincidencias de los servidores a medida que llegan. Cada respuesta se
+         * lee en un hilo del pool compartido y se escribe por lotes, de modo que la memoria no
+         * depende del tamaño del resultado. Los servidores tienen libros disjuntos, así que sus
+         * resultados no se repiten y no hace falta deduplicar. Con {@code top > 0} cada servidor
+         * envía sus {@code top} mejores y aquí se eligen los de todo el conjunto.
+         */
+        private CompletableFuture<Void> processDistributedSearch(Search search) {
+            List<List<String>> groups = search.view.groups;
+            Log.debug(() -> "Iniciando búsqueda distribuida en " + groups.size() + " grupos de servidores...");
             
-            for (int i = 0; i < SERVER_URLS.length; i++) {
-                final int serverIndex = i;
-                futures.add(executor.submit(() -> {
-                    try {
-                        return callProcessingServer(SERVER_URLS[serverIndex] + "/process", nWords);
-                    } catch (IOException e) {
-                        return "Error en servidor " + (serverIndex + 1) + ": " + e.getMessage();
+            String postData = "nWords=" + search.nWords + "&format=binary&top=" + search.top + "&pairs=" + search.pairs
+                    + search.filter.toForm();
+            List<CompletableFuture<Void>> servers = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int i = 0; i < groups.size(); i++) {
+                final int group = i;
+                servers.add(client.send("process:" + search.nWords, groups.get(i), url -> post(url + "/process", search.view.epoch,
+                                "application/x-www-form-urlencoded", BodyPublishers.ofString(postData)))
+                        .thenAcceptAsync(response -> {
+                            metrics.phase("fanout", start);
+                            readProcessingServer(response, search);
+                        }, workers)
+                        .handle((ignored, error) -> {
+                            if (error != null) {
+                                search.error("grupo " + (group + 1) + ": " + rootMessage(error));
+                            } else {
+                                Log.debug(() -> "Resultado recibido del grupo " + (group + 1));
+                            }
+                            return null;
+                        }));
+            }
+            return CompletableFuture.allOf(servers.toArray(new CompletableFuture<?>[0]));
+        }
+        
+        /** Lee la respuesta compacta de un servidor y la entrega por lotes a la búsqueda. */
+        private void readProcessingServer(HttpResponse<InputStream> response, Search search) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(body(response), 1 << 16))) {
+                Map<Integer, String> books = new HashMap<>();
+                for (int remaining = WireFormat.readVarint(in); remaining > 0; remaining--) {
+                    int bookId = WireFormat.readVarint(in);
+                    books.put(bookId, in.readUTF());
+                }
+                search.books(books);
+                
+                WireFormat.PhraseReader phrases = new WireFormat.PhraseReader();
+                List<SharedPhrase> batch = new ArrayList<>(CHUNK_PHRASES);
+                for (int bookCount = WireFormat.readVarint(in); bookCount > 0; bookCount = WireFormat.readVarint(in)) {
+                    int[] bookIds = new int[bookCount];
+                    for (int i = 0; i < bookCount; i++) {
+                        bookIds[i] = WireFormat.readVarint(in);
                     }
-                }));
+                    batch.add(new SharedPhrase(phrases.read(in), bookIds));
+                    if (batch.size() == CHUNK_PHRASES) {
+                        search.phrases(batch);
+                        // Si el cliente se ha ido, se deja de leer y se cierra la conexión
+                        if (search.cancelled()) return;
+                        batch = new ArrayList<>(CHUNK_PHRASES);
+                    }
+                }
+                search.phrases(batch);
+                
+                Map<Long, int[]> pairCounts = new HashMap<>();
+                for (int pairs = WireFormat.readVarint(in); pairs > 0; pairs--) {
+                    pairCounts.put(pairKey(WireFormat.readVarint(in), WireFormat.readVarint(in)),
+                            new int[] { WireFormat.readVarint(in) });
+                }
+                search.count(WireFormat.readVarint(in), WireFormat.readVarlong(in), pairCounts);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+        }
+        
+        /**
+         * Búsqueda sobre todo el corpus: cada servidor envía las huellas (hash, libro) de una
+         * partición del espacio de hashes, el coordinador las une por partición en paralelo y
+         * solo pide el texto de los n-gramas que comparten dos o más libros. Cada partición se
+         * resuelve y se envía en cuanto termina su unión. Con {@code top > 0} se espera a todas
+         * y solo se pide el texto de los {@code top} n-gramas presentes en más libros.
+         */
+        private CompletableFuture<Void> processShuffleSearch(Search search) {
+            // Una partición del espacio de hashes por grupo de réplicas
+            int partitions = search.view.groups.size();
+            Log.debug(() -> "Iniciando búsqueda global en " + partitions + " particiones...");
             
-            StringBuilder combinedResults = new StringBuilder();
-            Set<String> uniquePhrases = new HashSet<>();
+            Map<Integer, String> bookNames = new ConcurrentHashMap<>();
+            Map<Integer, Integer> bookServers = new ConcurrentHashMap<>();
+            List<CompletableFuture<List<SharedNGram>>> merges = new ArrayList<>();
+            for (int p = 0; p < partitions; p++) {
+                final int partition = p;
+                List<SharedNGram> shared = new ArrayList<>();
+                merges.add(mergePartition(search.view, search.nWords, search.filter, partition, partitions, false, bookNames, bookServers,
+                                shared::add)
+                        .thenApply(ignored -> {
+                            Log.debug(() -> "Unión de partición completada: " + shared.size() + " n-gramas compartidos");
+                            countShared(search, shared);
+                            search.books(bookNames);
+                            return shared;
+                        })
+                        .exceptionally(error -> {
+                            search.error("partición " + (partition + 1) + ": " + rootMessage(error));
+                            return Collections.emptyList();
+                        }));
+            }
             
-            for (int i = 0; i < futures.size(); i++) {
-                try {
-                    String serverResult = futures.get(i).get(30, TimeUnit.SECONDS);
-                    System.out.println("Resultado recibido del servidor " + (i + 1));
-                    
-                    String[] lines = serverResult.split("\n");
-                    for (String line : lines) {
-                        if (line.trim().startsWith("COINCIDENCIA:") && !uniquePhrases.contains(line)) {
-                            uniquePhrases.add(line);
-                            combinedResults.append("<div class='result-item'>").append(line.replace("COINCIDENCIA:", "")).append("</div>\n");
-                        }
+            if (search.top <= 0) {
+                List<CompletableFuture<Void>> writes = new ArrayList<>();
+                for (CompletableFuture<List<SharedNGram>> merge : merges) {
+                    writes.add(merge.thenCompose(shared -> resolveAndWrite(search, shared, bookServers)));
+                }
+                return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0]));
+            }
+            return CompletableFuture.allOf(merges.toArray(new CompletableFuture<?>[0])).thenCompose(ignored -> {
+                PriorityQueue<SharedNGram> best = new PriorityQueue<>(SharedNGram.MOST_SHARED.reversed());
+                for (CompletableFuture<List<SharedNGram>> merge : merges) {
+                    for (SharedNGram ngram : merge.join()) {
+                        offerBounded(best, ngram, search.top);
+                    }
+                }
+                return resolveAndWrite(search, drainBest(best), bookServers);
+            });
+        }
+        
+        /** Totales y recuentos por par de una partición; se acumulan antes de entregarlos. */
+        private static void countShared(Search search, List<SharedNGram> shared) {
+            long matches = 0;
+            Map<Long, int[]> pairCounts = new HashMap<>();
+            for (SharedNGram ngram : shared) {
+                int bookCount = ngram.books.length;
+                matches += (long) bookCount * (bookCount - 1) / 2;
+                if (!search.pairs) continue;
+                for (int i = 0; i < bookCount; i++) {
+                    for (int j = i + 1; j < bookCount; j++) {
+                        pairCounts.computeIfAbsent(pairKey(ngram.books[i], ngram.books[j]), k -> new int[1])[0]++;
                     }
-                } catch (Exception e) {
-                    combinedResults.append("<div style='color: red;'>Error en servidor ").append(i + 1).append(": ").append(e.getMessage()).append("</div>\n");
                 }
             }
-            
-            executor.shutdown();
-            
-            if (combinedResults.length() == 0) {
-                return "<p>No se encontraron frases coincidentes de " + nWords + " palabras entre los libros.</p>";
+            search.count(shared.size(), matches, pairCounts);
+        }
+        
+        /** Pide el texto de los n-gramas compartidos y los entrega en el mismo orden. */
+        private CompletableFuture<Void> resolveAndWrite(Search search, List<SharedNGram> shared, Map<Integer, Integer> bookServers) {
+            // El texto lo aporta el grupo que tiene el primer libro de cada n-grama
+            Map<Integer, List<SharedNGram>> byServer = new HashMap<>();
+            for (SharedNGram ngram : shared) {
+                byServer.computeIfAbsent(bookServers.get(ngram.books[0]), k -> new ArrayList<>()).add(ngram);
+            }
+            Map<Integer, CompletableFuture<Map<Long, String>>> resolved = new HashMap<>();
+            long start = System.nanoTime();
+            for (Map.Entry<Integer, List<SharedNGram>> entry : byServer.entrySet()) {
+                int server = entry.getKey();
+                resolved.put(server, resolvePhrases(search.view, server, search.nWords, entry.getValue())
+                        .exceptionally(error -> {
+                            search.error("grupo " + (server + 1) + ": " + rootMessage(error));
+                            return Collections.emptyMap();
+                        }));
             }
             
-            return "<p>Se encontraron " + uniquePhrases.size() + " frases coincidentes:</p>\n" + combinedResults.toString();
+            return CompletableFuture.allOf(resolved.values().toArray(new CompletableFuture<?>[0])).thenRunAsync(() -> {
+                metrics.phase("resolve", start);
+                List<SharedPhrase> phrases = new ArrayList<>(shared.size());
+                for (SharedNGram ngram : shared) {
+                    String phrase = resolved.get(bookServers.get(ngram.books[0])).join().get(ngram.hash);
+                    if (phrase != null) {
+                        phrases.add(new SharedPhrase(phrase, ngram.books));
+                    }
+                }
+                search.phrases(phrases);
+            }, workers);
         }
         
-        private String callProcessingServer(String serverUrl, int nWords) throws IOException {
-            URL url = new URL(serverUrl);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
-            connection.setDoOutput(true);
-            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-            
-            String postData = "nWords=" + nWords;
-            try (OutputStream os = connection.getOutputStream()) {
-                os.write(postData.getBytes());
+        /**
+         * Mezcla ordenada de las huellas de una partición recibidas de todos los servidores. Se
+         * envían todas las peticiones antes de leer para que los servidores trabajen a la vez.
+         * Cada servidor ya descarta lo que rechaza el filtro entre sus libros; aquí se descartan
+         * además los n-gramas que superan el máximo de libros sumando los de todos. Cada n-grama
+         * compartido se entrega a {@code shared} en cuanto se une, en el hilo de la unión.
+         */
+        private CompletableFuture<Void> mergePartition(Membership.View view, int nWords, NGramFilter filter, int partition,
+                                                       int partitions, boolean withPositions, Map<Integer, String> bookNames,
+                                                       Map<Integer, Integer> bookServers, Consumer<SharedNGram> shared) {
+            String postData = "nWords=" + nWords + "&partition=" + partition + "&partitions=" + partitions + "&positions=" + withPositions
+                    + filter.toForm();
+            List<CompletableFuture<HttpResponse<InputStream>>> responses = new ArrayList<>();
+            long start = System.nanoTime();
+            for (List<String> group : view.groups) {
+                responses.add(client.send("fingerprints:" + nWords, group, url -> post(url + "/fingerprints", view.epoch,
+                        "application/x-www-form-urlencoded", BodyPublishers.ofString(postData))));
             }
             
-            StringBuilder response = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    response.append(line).append("\n");
+            return CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).handleAsync((ignored, error) -> {
+                List<InputStream> bodies = new ArrayList<>();
+                for (CompletableFuture<HttpResponse<InputStream>> response : responses) {
+                    if (!response.isCompletedExceptionally()) {
+                        bodies.add(response.join().body());
+                    }
+                }
+                try {
+                    if (error != null) throw new CompletionException(error);
+                    // Hasta que responden todos los servidores de la partición; la unión lee a medida que llegan los bloques
+                    metrics.phase("fanout", start);
+                    long merging = System.nanoTime();
+                    List<FingerprintStream> streams = new ArrayList<>();
+                    for (int server = 0; server < responses.size(); server++) {
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(body(responses.get(server).join()), 1 << 16));
+                        bodies.add(in);
+                        int books = WireFormat.readVarint(in);
+                        for (int i = 0; i < books; i++) {
+                            int bookId = WireFormat.readVarint(in);
+                            bookNames.put(bookId, in.readUTF());
+                            bookServers.put(bookId, server);
+                        }
+                        streams.add(new FingerprintStream(in, withPositions));
+                    }
+                    mergeStreams(streams, withPositions, filter, shared);
+                    metrics.phase("merge", merging);
+                    return null;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } finally {
+                    for (InputStream body : bodies) {
+                        closeQuietly(body);
+                    }
+                }
+            }, workers);
+        }
+        
+        private static void mergeStreams(List<FingerprintStream> streams, boolean withPositions, NGramFilter filter,
+                                         Consumer<SharedNGram> shared) throws IOException {
+            int[] books = new int[streams.size() * 8];
+            int[] positions = new int[books.length];
+            while (true) {
+                FingerprintStream min = null;
+                for (FingerprintStream stream : streams) {
+                    if (stream.hasCurrent() && (min == null || stream.hash < min.hash)) {
+                        min = stream;
+                    }
+                }
+                if (min == null) break;
+                
+                long hash = min.hash;
+                int count = 0;
+                for (FingerprintStream stream : streams) {
+                    while (stream.hasCurrent() && stream.hash == hash) {
+                        if (count == books.length) {
+                            books = Arrays.copyOf(books, count * 2);
+                            positions = Arrays.copyOf(positions, count * 2);
+                        }
+                        positions[count] = stream.position;
+                        books[count++] = stream.bookId;
+                        stream.advance();
+                    }
+                }
+                if (filter.tooCommon(count)) continue;
+                if (count >= 2 && !withPositions) {
+                    int[] sharedBooks = Arrays.copyOf(books, count);
+                    Arrays.sort(sharedBooks);
+                    shared.accept(new SharedNGram(hash, sharedBooks, null));
+                } else if (count >= 2) {
+                    // Se ordenan los libros sin separarlos de sus posiciones
+                    long[] pairs = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        pairs[i] = (long) books[i] << 32 | positions[i];
+                    }
+                    Arrays.sort(pairs);
+                    int[] sharedBooks = new int[count];
+                    int[] sharedPositions = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        sharedBooks[i] = (int) (pairs[i] >>> 32);
+                        sharedPositions[i] = (int) pairs[i];
+                    }
+                    shared.accept(new SharedNGram(hash, sharedBooks, sharedPositions));
                 }
             }
+        }
+        
+        /** Texto de los n-gramas, pedido al grupo {@code server} por lotes de {@link #RESOLVE_BATCH}. */
+        private CompletableFuture<Map<Long, String>> resolvePhrases(Membership.View view, int server, int nWords, List<SharedNGram> ngrams) {
+            if (ngrams.size() <= RESOLVE_BATCH) return resolveBatch(view, server, nWords, ngrams);
+            List<CompletableFuture<Map<Long, String>>> batches = new ArrayList<>();
+            for (int from = 0; from < ngrams.size(); from += RESOLVE_BATCH) {
+                batches.add(resolveBatch(view, server, nWords, ngrams.subList(from, Math.min(ngrams.size(), from + RESOLVE_BATCH))));
+            }
+            return CompletableFuture.allOf(batches.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                Map<Long, String> phrases = new HashMap<>();
+                for (CompletableFuture<Map<Long, String>> batch : batches) {
+                    phrases.putAll(batch.join());
+                }
+                return phrases;
+            });
+        }
+        
+        private CompletableFuture<Map<Long, String>> resolveBatch(Membership.View view, int server, int nWords, List<SharedNGram> ngrams) {
+            ByteArrayOutputStream request = new ByteArrayOutputStream(8 + ngrams.size() * Long.BYTES);
+            try (DataOutputStream out = new DataOutputStream(request)) {
+                out.writeInt(nWords);
+                out.writeInt(ngrams.size());
+                for (SharedNGram ngram : ngrams) {
+                    out.writeLong(ngram.hash);
+                }
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
             
-            return response.toString();
+            byte[] hashes = request.toByteArray();
+            return client.send("resolve", view.groups.get(server), url -> post(url + "/resolve", view.epoch,
+                            "application/octet-stream", BodyPublishers.ofByteArray(hashes)))
+                    .thenApplyAsync(response -> {
+                        Map<Long, String> phrases = new HashMap<>();
+                        try (DataInputStream in = new DataInputStream(new BufferedInputStream(body(response), 1 << 16))) {
+                            WireFormat.PhraseReader reader = new WireFormat.PhraseReader();
+                            int count = WireFormat.readVarint(in);
+                            for (int i = 0; i < count; i++) {
+                                phrases.put(in.readLong(), reader.read(in));
+                            }
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        return phrases;
+                    }, workers);
+        }
+    }
+    
+    /**
+     * Petición POST a un servidor de procesamiento con el tiempo de espera de las consultas. Lleva
+     * la configuración del clúster con la que se planificó: si el servidor ya tiene otra, responde
+     * 409 en lugar de mezclar libros de dos repartos. También lleva el tiempo de espera, para que
+     * el servidor abandone el cálculo cuando aquí ya se ha dado la petición por perdida.
+     */
+    static HttpRequest post(String url, long epoch, String contentType, HttpRequest.BodyPublisher body) {
+        return HttpRequest.newBuilder(URI.create(url))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", contentType)
+                .header("X-Epoch", Long.toString(epoch))
+                .header(Deadline.HEADER, Long.toString(REQUEST_TIMEOUT.toMillis()))
+                .header("Accept-Encoding", WireFormat.ENCODING)
+                .POST(body)
+                .build();
+    }
+    
+    /**
+     * Cuerpo de una respuesta correcta, descomprimido si viene comprimido; con otro código se
+     * descarta y se lanza un error.
+     */
+    static InputStream body(HttpResponse<InputStream> response) throws IOException {
+        if (response.statusCode() != 200) {
+            closeQuietly(response.body());
+            throw new IOException("HTTP " + response.statusCode() + " de " + response.uri());
+        }
+        boolean compressed = response.headers().firstValue("Content-Encoding").filter(WireFormat.ENCODING::equals).isPresent();
+        return compressed ? WireFormat.inflate(response.body()) : response.body();
+    }
+    
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nada que hacer: la conexión ya no se usa
+        }
+    }
+    
+    /** Mensaje de la causa original, sin los envoltorios de CompletableFuture. */
+    static String rootMessage(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof ExecutionException
+                || error instanceof UncheckedIOException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error.getMessage() != null ? error.getMessage() : error.toString();
+    }
+    
+    /**
+     * Estado de una búsqueda en curso. Las respuestas de los servidores se leen en varios hilos
+     * del pool compartido, así que todo acceso al destino y a los acumulados se serializa aquí.
+     * Si escribir al cliente falla (se ha desconectado), la búsqueda queda cancelada.
+     */
+    static class Search {
+        final Membership.View view;
+        final boolean local;
+        final int nWords;
+        final int top;
+        final boolean pairs;
+        final boolean json;
+        final boolean passages;
+        final NGramFilter filter;
+        private ResultSink sink;
+        private final PriorityQueue<SharedPhrase> best = new PriorityQueue<>(SharedPhrase.MOST_SHARED.reversed());
+        private final PriorityQueue<Passage> longest = new PriorityQueue<>(Passage.LONGEST.reversed());
+        private final Map<Long, int[]> pairCounts = new TreeMap<>();
+        private long phraseTotal;
+        private long matchTotal;
+        private volatile boolean cancelled;
+        
+        Search(Membership.View view, boolean local, int nWords, int top, boolean pairs, boolean json, boolean passages,
+               NGramFilter filter) {
+            this.view = view;
+            this.local = local;
+            this.nWords = nWords;
+            this.top = top;
+            this.pairs = pairs;
+            this.json = json;
+            this.passages = passages;
+            this.filter = filter;
+        }
+        
+        synchronized void start(ResultSink sink) {
+            this.sink = sink;
+        }
+        
+        boolean cancelled() {
+            return cancelled;
+        }
+        
+        synchronized boolean failed() {
+            return cancelled || sink.failed();
+        }
+        
+        synchronized void books(Map<Integer, String> books) {
+            try {
+                for (Map.Entry<Integer, String> book : books.entrySet()) {
+                    sink.book(book.getKey(), book.getValue());
+                }
+            } catch (IOException e) {
+                cancelled = true;
+            }
+        }
+        
+        /** Escribe un lote de n-gramas y lo envía; con {@code top > 0} solo los acumula. */
+        synchronized void phrases(List<SharedPhrase> phrases) {
+            if (cancelled) return;
+            try {
+                for (SharedPhrase phrase : phrases) {
+                    if (top > 0) {
+                        offerBounded(best, phrase, top);
+                    } else {
+                        sink.phrase(phrase.phrase, phrase.books);
+                    }
+                }
+                sink.flush();
+            } catch (IOException e) {
+                cancelled = true;
+            }
+        }
+        
+        /** Escribe un lote de pasajes y lo envía; con {@code top > 0} solo acumula los más largos. */
+        synchronized void passages(List<Passage> passages) {
+            if (cancelled) return;
+            try {
+                for (Passage passage : passages) {
+                    if (top > 0) {
+                        offerBounded(longest, passage, top);
+                    } else {
+                        sink.passage(passage);
+                    }
+                }
+                sink.flush();
+            } catch (IOException e) {
+                cancelled = true;
+            }
+        }
+        
+        /**
+         * Acumula los totales: n-gramas compartidos y pares de coincidencias o, en la búsqueda
+         * de pasajes, pasajes y palabras en ellos.
+         */
+        synchronized void count(long phrases, long matches, Map<Long, int[]> pairs) {
+            phraseTotal += phrases;
+            matchTotal += matches;
+            for (Map.Entry<Long, int[]> pair : pairs.entrySet()) {
+                pairCounts.computeIfAbsent(pair.getKey(), k -> new int[1])[0] += pair.getValue()[0];
+            }
+        }
+        
+        synchronized void error(String message) {
+            try {
+                sink.error(message);
+            } catch (IOException e) {
+                cancelled = true;
+            }
+        }
+        
+        /** Escribe los mejores n-gramas (si hay {@code top}), los pares y el resumen. */
+        synchronized void finish() {
+            if (cancelled) return;
+            try {
+                for (SharedPhrase phrase : drainBest(best)) {
+                    sink.phrase(phrase.phrase, phrase.books);
+                }
+                for (Passage passage : drainBest(longest)) {
+                    sink.passage(passage);
+                }
+                for (Map.Entry<Long, int[]> entry : pairCounts.entrySet()) {
+                    sink.pair((int) (entry.getKey() >>> 32), (int) (long) entry.getKey(), entry.getValue()[0]);
+                }
+                sink.finish(nWords, phraseTotal, matchTotal);
+            } catch (IOException e) {
+                cancelled = true;
+            }
+        }
+    }
+    
+    /** Clave ordenable de un par de libros con {@code first < second}. */
+    static long pairKey(int first, int second) {
+        return (long) first << 32 | second;
+    }
+    
+    /** Mantiene en {@code heap} (cuya cabeza es el peor) los {@code limit} mejores elementos. */
+    private static <T> void offerBounded(PriorityQueue<T> heap, T item, int limit) {
+        heap.add(item);
+        if (heap.size() > limit) {
+            heap.poll();
+        }
+    }
+    
+    /** Vacía el montículo devolviendo los elementos del mejor al peor. */
+    private static <T> List<T> drainBest(PriorityQueue<T> heap) {
+        List<T> items = new ArrayList<>(heap.size());
+        while (!heap.isEmpty()) {
+            items.add(heap.poll());
+        }
+        Collections.reverse(items);
+        return items;
+    }
+    
+    /** N-grama compartido ya con su texto y los ids globales de sus libros, en orden ascendente. */
+    private static class SharedPhrase {
+        static final Comparator<SharedPhrase> MOST_SHARED = Comparator.comparingInt((SharedPhrase p) -> p.books.length)
+                .reversed().thenComparing(p -> p.phrase);
+        
+        final String phrase;
+        final int[] books;
+        
+        SharedPhrase(String phrase, int[] books) {
+            this.phrase = phrase;
+            this.books = books;
+        }
+    }
+    
+    /**
+     * Destino de los resultados agregados. Los libros se anuncian una vez y cada n-grama llega
+     * con la lista de sus libros, o cada pasaje con sus dos libros; los recuentos por par y los
+     * totales llegan al final.
+     */
+    private interface ResultSink {
+        void book(int id, String name) throws IOException;
+        void phrase(String phrase, int[] books) throws IOException;
+        void passage(Passage passage) throws IOException;
+        void pair(int first, int second, int count) throws IOException;
+        void error(String message) throws IOException;
+        void finish(int nWords, long phrases, long matches) throws IOException;
+        void flush() throws IOException;
+        boolean failed();
+    }
+    
+    /** Copia lo escrito hasta {@code limit} bytes; si se supera, deja de copiar. */
+    private static class CapturingOutputStream extends FilterOutputStream {
+        private final long limit;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        
+        CapturingOutputStream(OutputStream out, long limit) {
+            super(out);
+            this.limit = limit;
+        }
+        
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            capture(new byte[] { (byte) b }, 0, 1);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            capture(b, off, len);
+        }
+        
+        private void capture(byte[] b, int off, int len) {
+            if (copy == null) return;
+            if (copy.size() + len > limit) {
+                copy = null;
+                return;
+            }
+            copy.write(b, off, len);
+        }
+        
+        /** Lo escrito, o null si superó el límite. */
+        byte[] captured() {
+            return copy == null ? null : copy.toByteArray();
+        }
+    }
+    
+    /** Vista del navegador: una línea {@code result-item} por par de libros de cada n-grama o por pasaje. */
+    private static class HtmlResults implements ResultSink {
+        private final Writer out;
+        private final int top;
+        private final boolean passages;
+        private final Map<Integer, String> names = new HashMap<>();
+        private boolean failed;
+        
+        HtmlResults(Writer out, int top, boolean passages) {
+            this.out = out;
+            this.top = top;
+            this.passages = passages;
+        }
+        
+        @Override
+        public void book(int id, String name) {
+            names.put(id, name);
+        }
+        
+        @Override
+        public void phrase(String phrase, int[] books) throws IOException {
+            for (int i = 0; i < books.length; i++) {
+                for (int j = i + 1; j < books.length; j++) {
+                    out.append("<div class='result-item'> En ").append(names.get(books[i]))
+                       .append(" y ").append(names.get(books[j]))
+                       .append(" aparece: \"").append(phrase).append("\"</div>\n");
+                }
+            }
+        }
+        
+        @Override
+        public void passage(Passage passage) throws IOException {
+            out.append("<div class='result-item'> En ").append(names.get(passage.first))
+               .append(" (línea ").append(String.valueOf(passage.firstLine)).append(") y ").append(names.get(passage.second))
+               .append(" (línea ").append(String.valueOf(passage.secondLine)).append(") aparece un pasaje de ")
+               .append(String.valueOf(passage.words)).append(" palabras: \"").append(passage.text).append("\"</div>\n");
+        }
+        
+        @Override
+        public void pair(int first, int second, int count) throws IOException {
+            out.append("<div class='pair-count'>").append(names.get(first)).append(" y ").append(names.get(second))
+               .append(" comparten ").append(String.valueOf(count)).append(passages ? " pasajes" : " frases").append("</div>\n");
+        }
+        
+        @Override
+        public void error(String message) throws IOException {
+            failed = true;
+            out.append("<div style='color: red;'>Error: ").append(message).append("</div>\n");
+        }
+        
+        @Override
+        public boolean failed() {
+            return failed;
+        }
+        
+        @Override
+        public void finish(int nWords, long phrases, long matches) throws IOException {
+            if (passages) {
+                finishPassages(nWords, phrases, matches);
+                return;
+            }
+            if (matches == 0) {
+                out.append("<p>No se encontraron frases coincidentes de ").append(String.valueOf(nWords)).append(" palabras entre los libros.</p>\n");
+                return;
+            }
+            out.append("<p>Se encontraron ").append(String.valueOf(matches)).append(" frases coincidentes");
+            if (top > 0 && top < phrases) {
+                out.append(" (se muestran las ").append(String.valueOf(top)).append(" frases presentes en más libros)");
+            }
+            out.append(".</p>\n");
+        }
+        
+        private void finishPassages(int nWords, long count, long words) throws IOException {
+            if (count == 0) {
+                out.append("<p>No se encontraron pasajes de ").append(String.valueOf(nWords)).append(" palabras o más comunes a dos libros.</p>\n");
+                return;
+            }
+            out.append("<p>Se encontraron ").append(String.valueOf(count)).append(" pasajes compartidos, con ")
+               .append(String.valueOf(words)).append(" palabras en total");
+            if (top > 0 && top < count) {
+                out.append(" (se muestran los ").append(String.valueOf(top)).append(" más largos)");
+            }
+            out.append(".</p>\n");
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+    
+    /**
+     * Formato para cuadros de mando: JSON por líneas. Cada libro una vez
+     * ({@code {"book":{"id":..,"name":..}}}), cada n-grama con sus libros
+     * ({@code {"phrase":..,"books":[..]}}), los pares ({@code {"pair":[a,b],"count":..}}) y un
+     * resumen final ({@code {"nWords":..,"phrases":..,"matches":..}}). En la búsqueda de pasajes,
+     * cada uno con su longitud y la línea en cada libro
+     * ({@code {"passage":..,"words":..,"books":[{"id":..,"line":..},..]}}) y el resumen
+     * {@code {"nWords":..,"passages":..,"words":..}}.
+     */
+    private static class JsonResults implements ResultSink {
+        private final Writer out;
+        private final boolean passages;
+        private final Set<Integer> announced = new HashSet<>();
+        private boolean failed;
+        
+        JsonResults(Writer out, boolean passages) {
+            this.out = out;
+            this.passages = passages;
+        }
+        
+        @Override
+        public void book(int id, String name) throws IOException {
+            if (announced.add(id)) {
+                out.append("{\"book\":{\"id\":").append(String.valueOf(id)).append(",\"name\":");
+                appendString(name);
+                out.append("}}\n");
+            }
+        }
+        
+        @Override
+        public void phrase(String phrase, int[] books) throws IOException {
+            out.append("{\"phrase\":");
+            appendString(phrase);
+            out.append(",\"books\":[");
+            for (int i = 0; i < books.length; i++) {
+                if (i > 0) out.append(',');
+                out.append(String.valueOf(books[i]));
+            }
+            out.append("]}\n");
+        }
+        
+        @Override
+        public void passage(Passage passage) throws IOException {
+            out.append("{\"passage\":");
+            appendString(passage.text);
+            out.append(",\"words\":").append(String.valueOf(passage.words))
+               .append(",\"books\":[{\"id\":").append(String.valueOf(passage.first))
+               .append(",\"line\":").append(String.valueOf(passage.firstLine))
+               .append("},{\"id\":").append(String.valueOf(passage.second))
+               .append(",\"line\":").append(String.valueOf(passage.secondLine)).append("}]}\n");
+        }
+        
+        @Override
+        public void pair(int first, int second, int count) throws IOException {
+            out.append("{\"pair\":[").append(String.valueOf(first)).append(',').append(String.valueOf(second))
+               .append("],\"count\":").append(String.valueOf(count)).append("}\n");
+        }
+        
+        @Override
+        public void error(String message) throws IOException {
+            failed = true;
+            out.append("{\"error\":");
+            appendString(message);
+            out.append("}\n");
+        }
+        
+        @Override
+        public void finish(int nWords, long phrases, long matches) throws IOException {
+            out.append("{\"nWords\":").append(String.valueOf(nWords))
+               .append(passages ? ",\"passages\":" : ",\"phrases\":").append(String.valueOf(phrases))
+               .append(passages ? ",\"words\":" : ",\"matches\":").append(String.valueOf(matches)).append("}\n");
+        }
+        
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+        
+        @Override
+        public boolean failed() {
+            return failed;
+        }
+        
+        private void appendString(String value) throws IOException {
+            out.append(jsonString(value));
+        }
+    }
+    
+    /** Cadena JSON entre comillas, con las comillas, barras y caracteres de control escapados. */
+    static String jsonString(String value) {
+        StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+    
+    static class SharedNGram {
+        static final Comparator<SharedNGram> MOST_SHARED = Comparator.comparingInt((SharedNGram n) -> n.books.length)
+                .reversed().thenComparingLong(n -> n.hash);
+        
+        final long hash;
+        final int[] books;
+        /** Primera posición del n-grama en cada libro, si se pidieron; si no, null. */
+        final int[] positions;
+        
+        SharedNGram(long hash, int[] books, int[] positions) {
+            this.hash = hash;
+            this.books = books;
+            this.positions = positions;
+        }
+    }
+    
+    /** Cursor sobre los registros (hash, libro[, posición]) que envía un servidor, ordenados por hash. */
+    private static class FingerprintStream {
+        final DataInputStream in;
+        final boolean withPositions;
+        private final WireFormat.Block block = new WireFormat.Block();
+        /** Registros que quedan en el bloque actual; el bloque vacío termina la respuesta. */
+        private int remaining;
+        private boolean finished;
+        long hash;
+        int bookId;
+        int position;
+        
+        FingerprintStream(DataInputStream in, boolean withPositions) throws IOException {
+            this.in = in;
+            this.withPositions = withPositions;
+            advance();
+        }
+        
+        boolean hasCurrent() {
+            return !finished;
+        }
+        
+        void advance() throws IOException {
+            if (remaining == 0) {
+                remaining = WireFormat.readVarint(in);
+                if (remaining == 0) {
+                    finished = true;
+                    return;
+                }
+                block.readFrom(in);
+            }
+            remaining--;
+            hash = block.getDelta();
+            bookId = block.getVarint();
+            if (withPositions) position = block.getVarint();
+        }
+    }
+    
+    /**
+     * Pasaje común a dos libros ({@code first < second}): línea en la que empieza en cada uno,
+     * longitud en palabras y texto normalizado.
+     */
+    static class Passage {
+        static final Comparator<Passage> LONGEST = Comparator.comparingInt((Passage p) -> p.words).reversed()
+                .thenComparingInt(p -> p.first).thenComparingInt(p -> p.second).thenComparingInt(p -> p.firstLine);
+        
+        final int first;
+        final int firstLine;
+        final int second;
+        final int secondLine;
+        final int words;
+        final String text;
+        
+        Passage(int first, int firstLine, int second, int secondLine, int words, String text) {
+            this.first = first;
+            this.firstLine = firstLine;
+            this.second = second;
+            this.secondLine = secondLine;
+            this.words = words;
+            this.text = text;
         }
     }
     
@@ -202,10 +1857,10 @@ public class WebServer {
             WebServer server = new WebServer();
             server.start();
             
-            System.out.println("\nPara detener el servidor, presiona Ctrl+C");
+            Log.info("Para detener el servidor, presiona Ctrl+C");
             Thread.currentThread().join();
         } catch (Exception e) {
-            System.err.println("Error iniciando el servidor: " + e.getMessage());
+            Log.error("Error iniciando el servidor: " + e.getMessage());
         }
     }
 }
\ No newline at end of file
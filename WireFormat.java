@@ -0,0 +1,202 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Codificación compacta de las respuestas entre servidores. Los enteros van en varint (7 bits
+ * por byte), así que los ids de libro y los contadores ocupan casi siempre un byte, y las frases
+ * se codifican palabra a palabra contra un diccionario que se construye a medida que se escriben:
+ * cada palabra viaja entera la primera vez y después como su número de entrada. Encima, el
+ * cuerpo se comprime con deflate si el cliente lo acepta ({@code Accept-Encoding}).
+ */
+public class WireFormat {
+    public static final String ENCODING = "deflate";
+
+    /** Tamaño del búfer del compresor: el de los búferes de las respuestas. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private WireFormat() {
+    }
+
+    public static void writeVarint(DataOutput out, int value) throws IOException {
+        writeVarlong(out, value & 0xFFFFFFFFL);
+    }
+
+    public static int readVarint(DataInput in) throws IOException {
+        return (int) readVarlong(in);
+    }
+
+    /** Escribe {@code value} sin signo: los negativos ocupan los diez bytes. */
+    public static void writeVarlong(DataOutput out, long value) throws IOException {
+        // Una sola escritura por número: cada llamada a los flujos con búfer toma un cerrojo
+        byte[] bytes = new byte[10];
+        int size = putVarlong(bytes, 0, value);
+        out.write(bytes, 0, size);
+    }
+
+    private static int putVarlong(byte[] bytes, int offset, long value) {
+        while ((value & ~0x7FL) != 0) {
+            bytes[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[offset++] = (byte) value;
+        return offset;
+    }
+
+    public static long readVarlong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IOException("varint demasiado largo");
+    }
+
+    /**
+     * Compresor de una respuesta. Se usa la compresión más rápida: el cuello de botella es la
+     * red y las respuestas, con los mismos ids y palabras repetidos, se reducen igual casi todo.
+     */
+    public static OutputStream deflate(OutputStream body) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        return new DeflaterOutputStream(body, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    public static InputStream inflate(InputStream body) {
+        return new InflaterInputStream(body);
+    }
+
+    /**
+     * Bloque de números en varint que se prepara y se lee en memoria, sin pasar cada byte por los
+     * flujos: para los registros de las huellas, que son millones por respuesta. En la respuesta
+     * va precedido de su longitud en bytes. Los valores ordenados, como los hashes, pueden ir como
+     * diferencia con el anterior del bloque ({@link #putDelta}).
+     */
+    public static class Block {
+        private byte[] bytes = new byte[1 << 16];
+        private int size;
+        private int position;
+        /** Último valor escrito o leído con {@link #putDelta} o {@link #getDelta}; 0 al empezar el bloque. */
+        private long last;
+
+        public void putVarint(int value) {
+            putVarlong(value & 0xFFFFFFFFL);
+        }
+
+        public void putVarlong(long value) {
+            if (size + 10 > bytes.length) bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            size = WireFormat.putVarlong(bytes, size, value);
+        }
+
+        /**
+         * Escribe la diferencia con el valor anterior del bloque. Con valores en orden ascendente
+         * la diferencia es pequeña; si no, se desborda igual al escribir y al leer y se recupera
+         * el mismo valor.
+         */
+        public void putDelta(long value) {
+            putVarlong(value - last);
+            last = value;
+        }
+
+        public void reset() {
+            size = 0;
+            position = 0;
+            last = 0;
+        }
+
+        public void writeTo(DataOutput out) throws IOException {
+            writeVarint(out, size);
+            out.write(bytes, 0, size);
+        }
+
+        /** Lee el siguiente bloque de {@code in}, escrito con {@link #writeTo}. */
+        public void readFrom(DataInput in) throws IOException {
+            reset();
+            size = readVarint(in);
+            if (size > bytes.length) bytes = new byte[Math.max(size, bytes.length * 2)];
+            in.readFully(bytes, 0, size);
+        }
+
+        public int getVarint() throws IOException {
+            return (int) getVarlong();
+        }
+
+        public long getDelta() throws IOException {
+            last += getVarlong();
+            return last;
+        }
+
+        public long getVarlong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64 && position < size; shift += 7) {
+                int b = bytes[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new IOException("varint incompleto o demasiado largo");
+        }
+    }
+
+    /** Codifica frases contra el diccionario de las palabras ya escritas en la misma respuesta. */
+    public static class PhraseWriter {
+        private final Map<String, Integer> words = new HashMap<>();
+
+        /** Número de palabras y, por palabra, 0 seguido del texto si es nueva o su entrada + 1. */
+        public void write(DataOutput out, String phrase) throws IOException {
+            String[] parts = phrase.split(" ");
+            writeVarint(out, parts.length);
+            for (String word : parts) {
+                Integer entry = words.get(word);
+                if (entry != null) {
+                    writeVarint(out, entry + 1);
+                } else {
+                    writeVarint(out, 0);
+                    out.writeUTF(word);
+                    words.put(word, words.size());
+                }
+            }
+        }
+    }
+
+    /** Decodifica las frases de un {@link PhraseWriter}, en el mismo orden. */
+    public static class PhraseReader {
+        private final List<String> words = new ArrayList<>();
+        private final StringBuilder phrase = new StringBuilder();
+
+        public String read(DataInput in) throws IOException {
+            phrase.setLength(0);
+            for (int remaining = readVarint(in); remaining > 0; remaining--) {
+                int entry = readVarint(in);
+                String word;
+                if (entry == 0) {
+                    word = in.readUTF();
+                    words.add(word);
+                } else {
+                    word = words.get(entry - 1);
+                }
+                if (phrase.length() > 0) phrase.append(' ');
+                phrase.append(word);
+            }
+            return phrase.toString();
+        }
+    }
+}
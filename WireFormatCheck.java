@@ -0,0 +1,222 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Comprueba que lo que se escribe con {@link WireFormat} se lee igual: varints y varlongs en los
+ * flujos y en bloques (con los valores límite y otros al azar), hashes ordenados como diferencias
+ * repartidos en varios bloques, como las huellas de {@code /fingerprints}, y frases codificadas
+ * contra el diccionario de la respuesta; todo con y sin deflate. Un varint cortado tiene que dar
+ * error y no un valor. Termina con código 1 si algo no coincide.
+ *
+ * <pre>
+ * java WireFormatCheck --seed 1
+ * </pre>
+ */
+public class WireFormatCheck {
+    private static final long[] EDGE_VALUES = {
+        0, 1, 0x7F, 0x80, 0x3FFF, 0x4000, Integer.MAX_VALUE, Integer.MIN_VALUE, 0xFFFFFFFFL,
+        -1, Long.MAX_VALUE, Long.MIN_VALUE, Long.MIN_VALUE + 1
+    };
+    /** Hashes por bloque, como {@code FINGERPRINT_BLOCK} en los servidores pero más pequeño para cruzar varios. */
+    private static final int RECORDS_PER_BLOCK = 1000;
+    private static final int HASHES = 100_000;
+
+    private final Random random;
+    private int failures;
+
+    WireFormatCheck(long seed) {
+        this.random = new Random(seed);
+    }
+
+    /** Escribe algo en un flujo, comprimido o no. */
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /** Lee lo escrito y lo compara; devuelve la diferencia o null si coincide. */
+    private interface Reader {
+        String read(DataInputStream in) throws IOException;
+    }
+
+    private void check(String name, Writer writer, Reader reader) throws IOException {
+        for (boolean compressed : new boolean[] { false, true }) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            OutputStream body = compressed ? WireFormat.deflate(bytes) : bytes;
+            try (DataOutputStream out = new DataOutputStream(body)) {
+                writer.write(out);
+            }
+            String mismatch;
+            try (DataInputStream in = new DataInputStream(compressed
+                    ? WireFormat.inflate(new ByteArrayInputStream(bytes.toByteArray()))
+                    : new ByteArrayInputStream(bytes.toByteArray()))) {
+                mismatch = reader.read(in);
+                if (mismatch == null && in.read() >= 0) mismatch = "quedan bytes sin leer";
+            }
+            String label = name + (compressed ? " (deflate)" : "");
+            if (mismatch != null) failures++;
+            System.out.println(String.format("%-46s %s", label, mismatch == null ? bytes.size() + " bytes, igual" : "DISTINTO: " + mismatch));
+        }
+    }
+
+    void run() throws IOException {
+        long[] values = new long[EDGE_VALUES.length + 10_000];
+        System.arraycopy(EDGE_VALUES, 0, values, 0, EDGE_VALUES.length);
+        for (int i = EDGE_VALUES.length; i < values.length; i++) {
+            // Tamaños repartidos: desplazar un valor al azar da varints de todas las longitudes
+            values[i] = random.nextLong() >>> random.nextInt(64);
+        }
+
+        check("varint", out -> {
+            for (long value : values) {
+                WireFormat.writeVarint(out, (int) value);
+            }
+        }, in -> {
+            for (long value : values) {
+                int read = WireFormat.readVarint(in);
+                if (read != (int) value) return (int) value + " se leyó como " + read;
+            }
+            return null;
+        });
+
+        check("varlong", out -> {
+            for (long value : values) {
+                WireFormat.writeVarlong(out, value);
+            }
+        }, in -> {
+            for (long value : values) {
+                long read = WireFormat.readVarlong(in);
+                if (read != value) return value + " se leyó como " + read;
+            }
+            return null;
+        });
+
+        check("bloque de varints y varlongs", out -> {
+            WireFormat.Block block = new WireFormat.Block();
+            for (long value : values) {
+                block.putVarint((int) value);
+                block.putVarlong(value);
+            }
+            block.writeTo(out);
+        }, in -> {
+            WireFormat.Block block = new WireFormat.Block();
+            block.readFrom(in);
+            for (long value : values) {
+                int readInt = block.getVarint();
+                long readLong = block.getVarlong();
+                if (readInt != (int) value || readLong != value) return value + " se leyó como " + readInt + " y " + readLong;
+            }
+            return null;
+        });
+
+        // Hashes con signo en orden ascendente, con los extremos, y libros de cada uno
+        long[] hashes = new long[HASHES];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+        }
+        hashes[0] = Long.MIN_VALUE;
+        hashes[1] = Long.MAX_VALUE;
+        Arrays.sort(hashes);
+        int[] books = new int[HASHES];
+        Arrays.setAll(books, i -> random.nextInt(1 << 12));
+        check("hashes como diferencias en bloques", out -> {
+            WireFormat.Block block = new WireFormat.Block();
+            for (int i = 0; i < hashes.length; i += RECORDS_PER_BLOCK) {
+                int records = Math.min(RECORDS_PER_BLOCK, hashes.length - i);
+                for (int k = i; k < i + records; k++) {
+                    block.putDelta(hashes[k]);
+                    block.putVarint(books[k]);
+                }
+                WireFormat.writeVarint(out, records);
+                block.writeTo(out);
+                block.reset();
+            }
+            WireFormat.writeVarint(out, 0);
+        }, in -> {
+            WireFormat.Block block = new WireFormat.Block();
+            int read = 0;
+            for (int records = WireFormat.readVarint(in); records > 0; records = WireFormat.readVarint(in)) {
+                block.readFrom(in);
+                for (; records > 0; records--, read++) {
+                    if (read == hashes.length) return "sobran registros";
+                    long hash = block.getDelta();
+                    int book = block.getVarint();
+                    if (hash != hashes[read] || book != books[read]) {
+                        return "registro " + read + ": " + hash + "/" + book + ", se esperaba " + hashes[read] + "/" + books[read];
+                    }
+                }
+            }
+            return read == hashes.length ? null : read + " registros, se esperaban " + hashes.length;
+        });
+
+        List<String> phrases = new ArrayList<>();
+        String[] words = { "de", "la", "que", "el", "cigüeña", "año", "ñandú", "x", "" + (char) 0x4E2D + (char) 0x6587 };
+        for (int i = 0; i < 5000; i++) {
+            StringBuilder phrase = new StringBuilder();
+            for (int k = 1 + random.nextInt(8); k > 0; k--) {
+                if (phrase.length() > 0) phrase.append(' ');
+                phrase.append(random.nextInt(4) == 0 ? "palabra" + random.nextInt(1000) : words[random.nextInt(words.length)]);
+            }
+            phrases.add(phrase.toString());
+        }
+        check("frases con diccionario", out -> {
+            WireFormat.PhraseWriter writer = new WireFormat.PhraseWriter();
+            for (String phrase : phrases) {
+                writer.write(out, phrase);
+            }
+        }, in -> {
+            WireFormat.PhraseReader reader = new WireFormat.PhraseReader();
+            for (String phrase : phrases) {
+                String read = reader.read(in);
+                if (!read.equals(phrase)) return "\"" + phrase + "\" se leyó como \"" + read + "\"";
+            }
+            return null;
+        });
+
+        checkTruncated();
+    }
+
+    /** Un varint al que le falta el último byte no puede leerse como un valor. */
+    private void checkTruncated() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            WireFormat.Block block = new WireFormat.Block();
+            block.putVarlong(Long.MAX_VALUE);
+            block.writeTo(out);
+        }
+        byte[] written = bytes.toByteArray();
+        // Se reduce en uno la longitud declarada y se quita el último byte
+        written[0]--;
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(written, 0, written.length - 1));
+        WireFormat.Block block = new WireFormat.Block();
+        block.readFrom(in);
+        String result;
+        try {
+            result = "DISTINTO: se leyó " + block.getVarlong();
+            failures++;
+        } catch (IOException e) {
+            result = "error, como se esperaba";
+        }
+        System.out.println(String.format("%-46s %s", "varint cortado", result));
+    }
+
+    public static void main(String[] args) throws IOException {
+        long seed = 1;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if ("--seed".equals(args[i])) seed = Long.parseLong(args[i + 1]);
+        }
+        WireFormatCheck check = new WireFormatCheck(seed);
+        check.run();
+        if (check.failures > 0) {
+            System.out.println(check.failures + " comprobaciones no coinciden");
+            System.exit(1);
+        }
+    }
+}
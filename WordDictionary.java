@@ -0,0 +1,125 @@
+import java.util.Arrays;
+
+/**
+ * Diccionario de palabras del servidor: asigna un id entero a cada palabra distinta y guarda
+ * un hash de 64 bits de su contenido. El hash no depende del id, así que las huellas de
+ * n-gramas calculadas en servidores distintos son comparables.
+ * Un solo hilo a la vez puede llamar a {@link #intern}; las lecturas de ids ya publicados son
+ * seguras en paralelo porque los arreglos se copian antes de sustituirse, y {@link #find} puede
+ * consultar sin lock mientras otro hilo añade palabras.
+ */
+public class WordDictionary {
+    private volatile String[] words = new String[1024];
+    private volatile long[] hashes = new long[1024];
+    private volatile int[] slots = new int[2048];
+    private int size;
+
+    public WordDictionary() {
+        Arrays.fill(slots, -1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String word(int id) {
+        return words[id];
+    }
+
+    public long wordHash(int id) {
+        return hashes[id];
+    }
+
+    /**
+     * Id de una palabra ya normalizada, o -1 si ningún libro la contiene. No añade nada. Si otro
+     * hilo está añadiendo palabras puede no ver las más recientes, que aún no están en ningún libro
+     * publicado.
+     */
+    public int find(String word) {
+        char[] chars = word.toCharArray();
+        long hash = hash(chars, chars.length);
+        int[] slots = this.slots;
+        String[] words = this.words;
+        long[] hashes = this.hashes;
+        int mask = slots.length - 1;
+        int slot = (int) hash & mask;
+        for (int probes = 0; probes < slots.length && slots[slot] >= 0; probes++) {
+            int id = slots[slot];
+            if (id < words.length && hashes[id] == hash && words[id] != null && sameWord(words[id], chars, chars.length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** Devuelve el id de la palabra {@code chars[0..length)}; solo crea un String si es nueva. */
+    public int intern(char[] chars, int length) {
+        long hash = hash(chars, length);
+        int[] slots = this.slots;
+        int mask = slots.length - 1;
+        int slot = (int) hash & mask;
+        while (slots[slot] >= 0) {
+            int id = slots[slot];
+            if (hashes[id] == hash && sameWord(words[id], chars, length)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == words.length) {
+            words = Arrays.copyOf(words, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        int id = size++;
+        words[id] = new String(chars, 0, length);
+        hashes[id] = hash;
+        slots[slot] = id;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    private void rehash() {
+        // Se rellena una tabla nueva y después se publica, para las lecturas de find
+        int[] rehashed = new int[slots.length * 2];
+        Arrays.fill(rehashed, -1);
+        int mask = rehashed.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = (int) hashes[id] & mask;
+            while (rehashed[slot] >= 0) {
+                slot = (slot + 1) & mask;
+            }
+            rehashed[slot] = id;
+        }
+        slots = rehashed;
+    }
+
+    private static boolean sameWord(String word, char[] chars, int length) {
+        if (word.length() != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (word.charAt(i) != chars[i]) return false;
+        }
+        return true;
+    }
+
+    private static long hash(char[] chars, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash ^= chars[i];
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /** Finalizador de MurmurHash3: reparte los bits para que los rangos de hash queden equilibrados. */
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
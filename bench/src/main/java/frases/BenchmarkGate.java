@@ -0,0 +1,99 @@
+package frases;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Control antes de desplegar: compara dos resultados de JMH guardados con
+ * {@code -rf csv -rff fichero.csv} y termina con código 1 si alguna prueba pierde más de
+ * {@code --tolerance} de rendimiento (10 % por defecto) y además los intervalos de error de las
+ * dos medidas no se solapan, para no fallar por el ruido. Solo se comparan las medidas principales,
+ * no las de los perfiladores como {@code -prof gc}.
+ *
+ * <pre>
+ * java -cp bench/target/benchmarks.jar frases.BenchmarkGate base.csv nuevo.csv --tolerance 0.1
+ * </pre>
+ */
+public class BenchmarkGate {
+    /** Puntuación y error de una prueba con unos parámetros. */
+    private static class Score {
+        final double value;
+        final double error;
+
+        Score(double value, double error) {
+            this.value = value;
+            this.error = Double.isNaN(error) ? 0 : error;
+        }
+    }
+
+    /** Medidas principales por nombre de la prueba y valores de sus parámetros. */
+    private static Map<String, Score> load(String file) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(file));
+        Map<String, Score> scores = new LinkedHashMap<>();
+        for (String line : lines.subList(1, lines.size())) {
+            List<String> fields = fields(line);
+            if (fields.size() < 7 || fields.get(0).contains(":")) continue;
+            StringBuilder name = new StringBuilder(fields.get(0).replaceFirst("^frases\\.", ""));
+            for (String param : fields.subList(7, fields.size())) {
+                if (!param.isEmpty()) name.append(' ').append(param);
+            }
+            scores.put(name.toString(), new Score(Double.parseDouble(fields.get(4)), Double.parseDouble(fields.get(5))));
+        }
+        return scores;
+    }
+
+    /** Campos de una línea del CSV de JMH, sin las comillas. */
+    private static List<String> fields(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Uso: BenchmarkGate referencia.csv nuevo.csv [--tolerance 0.1]");
+            System.exit(2);
+        }
+        double tolerance = args.length >= 4 && "--tolerance".equals(args[2]) ? Double.parseDouble(args[3]) : 0.1;
+        Map<String, Score> baseline = load(args[0]);
+        Map<String, Score> current = load(args[1]);
+
+        int regressions = 0;
+        System.out.println("Comparación con la referencia (tolerancia " + Math.round(tolerance * 100) + " %):");
+        for (Map.Entry<String, Score> entry : current.entrySet()) {
+            Score reference = baseline.get(entry.getKey());
+            if (reference == null) {
+                System.out.println(String.format(Locale.ROOT, "%-48s sin referencia", entry.getKey()));
+                continue;
+            }
+            Score score = entry.getValue();
+            double change = score.value / reference.value - 1;
+            boolean regressed = change < -tolerance && score.value + score.error < reference.value - reference.error;
+            if (regressed) regressions++;
+            System.out.println(String.format(Locale.ROOT, "%-48s %+7.1f %%%s", entry.getKey(), change * 100, regressed ? "  EMPEORA" : ""));
+        }
+        if (regressions > 0) {
+            System.out.println(regressions + " pruebas han empeorado");
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package frases;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/** Libros de las pruebas: los primeros {@code count} .txt del directorio, por nombre. */
+final class Books {
+    private Books() {
+    }
+
+    static List<Path> list(String directory, int count) throws IOException {
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(Paths.get(directory))) {
+            paths = files.filter(path -> path.toString().endsWith(".txt")).sorted().collect(Collectors.toList());
+        }
+        if (paths.size() < count) {
+            throw new IllegalStateException("Hacen falta " + count + " libros en " + directory + " y hay " + paths.size());
+        }
+        return paths.subList(0, count);
+    }
+
+    static ByteBuffer[] read(List<Path> paths) throws IOException {
+        ByteBuffer[] texts = new ByteBuffer[paths.size()];
+        for (int i = 0; i < texts.length; i++) {
+            texts[i] = ByteBuffer.wrap(Files.readAllBytes(paths.get(i)));
+        }
+        return texts;
+    }
+
+    /** Tokeniza los textos con un diccionario compartido, como un shard. */
+    static TokenizedBook[] tokenize(ByteBuffer[] texts, WordDictionary dictionary) {
+        TokenizedBook[] books = new TokenizedBook[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            TokenizedBook.Tokenizer tokenizer = new TokenizedBook.Tokenizer(dictionary);
+            BookStore.decode(texts[i].duplicate(), tokenizer);
+            books[i] = tokenizer.finish();
+        }
+        return books;
+    }
+}
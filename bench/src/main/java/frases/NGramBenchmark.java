@@ -0,0 +1,76 @@
+package frases;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fases de la búsqueda que dependen del tamaño de los n-gramas: extraer el conjunto de cada libro
+ * a partir de sus tokens y cruzar los conjuntos ordenados de todos los libros, como hace un
+ * servidor al construir su índice. Los libros se tokenizan una vez, fuera de la medida.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 3, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class NGramBenchmark {
+    /** Directorio de los libros, relativo a donde se lanza el jar. */
+    @Param("data")
+    public String books;
+
+    @Param({ "10", "46" })
+    public int bookCount;
+
+    @Param({ "2", "4", "6" })
+    public int nWords;
+
+    private WordDictionary dictionary;
+    private TokenizedBook[] tokenized;
+    private NGramSet[] sets;
+    private int[] from;
+    private int[] to;
+
+    @Setup
+    public void setUp() throws IOException {
+        dictionary = new WordDictionary();
+        tokenized = Books.tokenize(Books.read(Books.list(books, bookCount)), dictionary);
+        sets = new NGramSet[tokenized.length];
+        from = new int[sets.length];
+        to = new int[sets.length];
+        for (int i = 0; i < sets.length; i++) {
+            sets[i] = NGramSet.of(tokenized[i], nWords, dictionary);
+            to[i] = sets[i].size();
+        }
+    }
+
+    @Benchmark
+    public long extractNGrams() {
+        long size = 0;
+        for (TokenizedBook book : tokenized) {
+            size += NGramSet.of(book, nWords, dictionary).size();
+        }
+        return size;
+    }
+
+    /** La mezcla de los conjuntos ordenados de todos los libros; cuenta las apariciones compartidas. */
+    @Benchmark
+    public long intersect() {
+        long[] shared = { 0 };
+        NGramSet.merge(sets, from, to, (hash, members, positions, count) -> {
+            if (count >= 2) shared[0] += count;
+        });
+        return shared[0];
+    }
+}
@@ -0,0 +1,65 @@
+package frases;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fases que no dependen del tamaño de los n-gramas: decodificar y tokenizar el texto de los
+ * libros con un diccionario nuevo, como al cargar un shard, y acortar sus nombres.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 3, jvmArgsAppend = { "-Xms2g", "-Xmx2g" })
+public class TokenizeBenchmark {
+    /** Directorio de los libros, relativo a donde se lanza el jar. */
+    @Param("data")
+    public String books;
+
+    @Param({ "10", "46" })
+    public int bookCount;
+
+    private ByteBuffer[] texts;
+    private String[] names;
+
+    @Setup
+    public void setUp() throws IOException {
+        List<Path> paths = Books.list(books, bookCount);
+        texts = Books.read(paths);
+        names = paths.stream().map(path -> path.getFileName().toString()).toArray(String[]::new);
+    }
+
+    @Benchmark
+    public long tokenize() {
+        long tokens = 0;
+        for (TokenizedBook book : Books.tokenize(texts, new WordDictionary())) {
+            tokens += book.tokenCount();
+        }
+        return tokens;
+    }
+
+    @Benchmark
+    public long shortenBookName() {
+        long length = 0;
+        for (String name : names) {
+            length += ProcessingServer.shortenBookName(name).length();
+        }
+        return length;
+    }
+}